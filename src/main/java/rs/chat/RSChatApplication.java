@@ -3,6 +3,7 @@ package rs.chat;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import rs.chat.cache.HistoryWriter;
 import rs.chat.storage.S3;
 
 @Slf4j
@@ -17,6 +18,7 @@ public class RSChatApplication {
 
 		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
 			log.info("Shutting down RSChatApplication");
+			HistoryWriter.INSTANCE.close();
 			S3.getInstance().close();
 		}));
 	}
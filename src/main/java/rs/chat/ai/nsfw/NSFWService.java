@@ -1,26 +1,75 @@
 package rs.chat.ai.nsfw;
 
 import com.google.gson.JsonObject;
-import lombok.AccessLevel;
-import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestTemplate;
 import rs.chat.ai.nsfw.NSFWResponse.ClassificationClass;
+import rs.chat.observability.metrics.Metrics;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.function.Supplier;
 
 import static rs.chat.utils.Constants.GSON;
 import static rs.chat.utils.Constants.NSFW_API_URL;
+import static rs.chat.utils.Constants.NSFW_CONNECT_TIMEOUT_MILLIS;
+import static rs.chat.utils.Constants.NSFW_READ_TIMEOUT_MILLIS;
+import static rs.chat.utils.Constants.NSFW_SIMILARITY_LOOKUP;
+import static rs.chat.utils.Constants.NSFW_SIMILARITY_MAX_DISTANCE;
+import static rs.chat.utils.Constants.NSFW_VERDICT_CACHE_MAX_ENTRIES;
+import static rs.chat.utils.Constants.NSFW_VERDICT_CACHE_TTL_HOURS;
 
-@NoArgsConstructor(access = AccessLevel.PRIVATE)
 @Slf4j
 @Component
 public class NSFWService {
-	private static final RestTemplate restTemplate = new RestTemplate();
+	private final RestTemplate restTemplate;
+	private final NSFWVerdictCache verdicts = new NSFWVerdictCache(
+			NSFW_VERDICT_CACHE_MAX_ENTRIES,
+			Duration.ofHours(NSFW_VERDICT_CACHE_TTL_HOURS),
+			NSFW_SIMILARITY_LOOKUP,
+			NSFW_SIMILARITY_MAX_DISTANCE
+	);
+	private final Metrics metrics;
+
+	public NSFWService(Metrics metrics) {
+		SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+		requestFactory.setConnectTimeout(NSFW_CONNECT_TIMEOUT_MILLIS);
+		requestFactory.setReadTimeout(NSFW_READ_TIMEOUT_MILLIS);
+
+		this.restTemplate = new RestTemplate(requestFactory);
+		this.metrics = metrics;
+		this.metrics.bind(this.verdicts);
+	}
+
+	/**
+	 * Checks if a file is NSFW. The verdicts are cached by the content of the files, so
+	 * the classifier is only called for content that has not been checked recently (see
+	 * {@link NSFWVerdictCache}).
+	 *
+	 * @param hash       SHA-256 of the content of the file, in hexadecimal.
+	 * @param file       the file, to compute its perceptual hash (if enabled).
+	 * @param base64File supplier of the content of the file encoded in base64 (only
+	 *                   called if the classifier is called).
+	 * @param endpoint   endpoint of the classifier ({@code image} or {@code gif}).
+	 *
+	 * @return true if the file is NSFW, false otherwise.
+	 */
+	public boolean isNSFW(String hash, Path file, Supplier<String> base64File, String endpoint) {
+		return this.verdicts.isNSFW(
+				endpoint + ":" + hash,
+				() -> endpoint.equals("image") ? PerceptualHash.of(file) : null, // The frames of a GIF may differ
+				() -> this.classify(base64File.get(), endpoint)
+		);
+	}
+
+	private boolean classify(String base64File, String endpoint) {
+		long start = System.nanoTime();
 
-	public boolean isNSFW(String base64File, String endpoint) {
 		try {
-			ResponseEntity<String> response = restTemplate.postForEntity(
+			ResponseEntity<String> response = this.restTemplate.postForEntity(
 					NSFW_API_URL.resolve("/api/v1/nsfw/" + endpoint),
 					new ReqImage(base64File),
 					String.class
@@ -28,9 +77,12 @@ public class NSFWService {
 
 			JsonObject responseObject = GSON.fromJson(response.getBody(), JsonObject.class);
 			NSFWResponse nsfwResponse = new NSFWResponse(responseObject);
+			boolean nsfw = isVerySexyOrHentaiOrPorn(nsfwResponse);
 
-			return isVerySexyOrHentaiOrPorn(nsfwResponse);
+			this.metrics.recordNSFWClassification(endpoint, nsfw ? "nsfw" : "safe", System.nanoTime() - start);
+			return nsfw;
 		} catch (Exception e) {
+			this.metrics.recordNSFWClassification(endpoint, "error", System.nanoTime() - start);
 			log.error("An error occurred while trying to determine if the file is NSFW.", e);
 			throw new RuntimeException(e);
 		}
@@ -0,0 +1,118 @@
+package rs.chat.ai.nsfw;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import rs.chat.exceptions.CacheException;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Cache of the verdicts of the NSFW classifier, so that the same content is classified
+ * only once. The verdicts are stored by the hash of the content of the files (and the
+ * endpoint of the classifier), with a maximum number of verdicts and a time to live.
+ * <p>
+ * Optionally, the verdicts of the images are also stored by their {@link PerceptualHash},
+ * so that images that are almost the same (e.g. resized or re-encoded) reuse the verdict
+ * of a previous one.
+ */
+public final class NSFWVerdictCache implements MeterBinder {
+	private final Cache<String, Boolean> verdicts;
+	/**
+	 * Verdicts by perceptual hash ({@code null} if the similarity lookup is disabled).
+	 */
+	private final Cache<Long, Boolean> similarVerdicts;
+	private final int maxDistance;
+	private final AtomicLong similarHits = new AtomicLong();
+
+	/**
+	 * Constructor that creates the cache.
+	 *
+	 * @param maxEntries  maximum number of verdicts stored.
+	 * @param ttl         time after which a verdict is removed.
+	 * @param similarity  whether to reuse the verdicts of similar images.
+	 * @param maxDistance maximum number of different bits of the perceptual hashes of
+	 *                    two images considered similar.
+	 */
+	public NSFWVerdictCache(long maxEntries, Duration ttl, boolean similarity, int maxDistance) {
+		this.verdicts = CacheBuilder.newBuilder()
+		                            .maximumSize(maxEntries)
+		                            .expireAfterWrite(ttl)
+		                            .recordStats()
+		                            .build();
+		this.similarVerdicts = !similarity ? null : CacheBuilder.newBuilder()
+		                                                        .maximumSize(maxEntries)
+		                                                        .expireAfterWrite(ttl)
+		                                                        .build();
+		this.maxDistance = maxDistance;
+	}
+
+	/**
+	 * Returns the verdict of the given content, classifying it if there is no verdict of
+	 * the same content (or of a similar image). Concurrent requests of the same content
+	 * share the classification. Errors of the classifier are not cached.
+	 *
+	 * @param key            hash of the content and endpoint of the classifier.
+	 * @param perceptualHash supplier of the perceptual hash of the image, returning
+	 *                       {@code null} if it is not an image (only called if the
+	 *                       similarity lookup is enabled).
+	 * @param classifier     classifies the content.
+	 *
+	 * @return true if the content is NSFW, false otherwise.
+	 */
+	public boolean isNSFW(String key, Supplier<@Nullable Long> perceptualHash, BooleanSupplier classifier) {
+		try {
+			return this.verdicts.get(key, () -> this.classify(perceptualHash, classifier));
+		} catch (UncheckedExecutionException e) {
+			throw e.getCause() instanceof RuntimeException cause ? cause : e;
+		} catch (ExecutionException e) {
+			throw new CacheException(e.getMessage());
+		}
+	}
+
+	private boolean classify(Supplier<Long> perceptualHash, BooleanSupplier classifier) {
+		Long hash = this.similarVerdicts == null ? null : perceptualHash.get();
+
+		if (hash != null) {
+			for (Map.Entry<Long, Boolean> entry : this.similarVerdicts.asMap().entrySet()) {
+				if (Long.bitCount(entry.getKey() ^ hash) <= this.maxDistance) {
+					this.similarHits.incrementAndGet();
+					return entry.getValue();
+				}
+			}
+		}
+
+		boolean nsfw = classifier.getAsBoolean();
+
+		if (hash != null) {
+			this.similarVerdicts.put(hash, nsfw);
+		}
+
+		return nsfw;
+	}
+
+	/**
+	 * Publishes the statistics of the cache (hits, misses, load time, evictions and size)
+	 * and the misses resolved with the verdict of a similar image
+	 * ({@code chat.nsfw.verdicts.similar}).
+	 *
+	 * @param registry registry to publish the metrics to.
+	 */
+	@Override
+	public void bindTo(@NotNull MeterRegistry registry) {
+		GuavaCacheMetrics.monitor(registry, this.verdicts, "chat.nsfw.verdicts");
+		FunctionCounter.builder("chat.nsfw.verdicts.similar", this.similarHits, AtomicLong::get)
+		               .register(registry);
+	}
+}
@@ -0,0 +1,102 @@
+package rs.chat.ai.nsfw;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * Difference hash (dHash) of images: 64 bits that tell whether each pixel of the image,
+ * reduced to 9x8 pixels in grayscale, is brighter than the next one in its row. Similar
+ * images (resized, re-encoded or slightly edited) have hashes that differ in a few bits.
+ */
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class PerceptualHash {
+	private static final int WIDTH = 9;
+	private static final int HEIGHT = 8;
+	/**
+	 * Minimum size of the image decoded with subsampling, to keep enough detail.
+	 */
+	private static final int MIN_DECODED_SIZE = 64;
+
+	/**
+	 * Computes the hash of an image file. Large images are decoded with subsampling.
+	 *
+	 * @param path the image file.
+	 *
+	 * @return the hash, or {@code null} if the file cannot be decoded.
+	 */
+	public static @Nullable Long of(Path path) {
+		try (ImageInputStream input = ImageIO.createImageInputStream(path.toFile())) {
+			Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+
+			if (readers == null || !readers.hasNext()) {
+				return null;
+			}
+
+			ImageReader reader = readers.next();
+
+			try {
+				reader.setInput(input, true, true);
+				int subsampling = Math.max(1, Math.min(reader.getWidth(0), reader.getHeight(0)) / MIN_DECODED_SIZE);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				return of(reader.read(0, param));
+			} finally {
+				reader.dispose();
+			}
+		} catch (IOException | RuntimeException e) {
+			log.debug("Could not compute the perceptual hash of {}", path, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Computes the hash of an image. Each pixel of the reduced image is the average
+	 * brightness of the pixels of its area.
+	 *
+	 * @param image the image.
+	 *
+	 * @return the hash.
+	 */
+	public static long of(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		long[] brightness = new long[WIDTH * HEIGHT];
+		int[] pixels = new int[WIDTH * HEIGHT];
+
+		for (int y = 0; y < height; y++) {
+			int row = y * HEIGHT / height;
+
+			for (int x = 0; x < width; x++) {
+				int rgb = image.getRGB(x, y);
+				int cell = row * WIDTH + x * WIDTH / width;
+				brightness[cell] += ((rgb >> 16) & 0xFF) * 299L + ((rgb >> 8) & 0xFF) * 587L + (rgb & 0xFF) * 114L;
+				pixels[cell]++;
+			}
+		}
+
+		long hash = 0;
+
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH - 1; x++) {
+				int cell = y * WIDTH + x;
+				// Compare the averages without dividing (left / leftPixels > right / rightPixels)
+				boolean brighter = brightness[cell] * Math.max(pixels[cell + 1], 1) > brightness[cell + 1] * Math.max(pixels[cell], 1);
+				hash = (hash << 1) | (brighter ? 1 : 0);
+			}
+		}
+
+		return hash;
+	}
+}
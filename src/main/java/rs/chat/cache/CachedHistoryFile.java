@@ -2,75 +2,348 @@ package rs.chat.cache;
 
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.IOUtils;
+import org.jetbrains.annotations.Nullable;
 import rs.chat.storage.S3;
 import rs.chat.utils.Constants;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static rs.chat.utils.Constants.HISTORY_PAGE_SIZE;
 
 /**
- * Class for caching the history file in memory. This file is cached in memory to
- * speed up the process of reading the messages. The cache is updated every time a new
- * message is going to be sent to the chat. The cache is used to read the history file and
- * send it to the client faster.
+ * Append-only log with the history of a chat. Messages are stored in the history file, one
+ * per line, and only a sparse index is kept in memory: the byte offset of the first message
+ * of every segment of {@link #SEGMENT_SIZE} messages. Pages are read from a memory-mapped
+ * view of the file, starting at the segment that contains them, so the memory used does not
+ * depend on the size of the history and the messages are not decoded unless needed.
  */
-@Getter
 @Slf4j
 public class CachedHistoryFile {
+	/**
+	 * Number of messages of each segment of the index.
+	 */
+	static final int SEGMENT_SIZE = 64;
+	private static final int READ_BUFFER_SIZE = 8192;
+	private static final ByteBuffer EMPTY_PAGE = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+	@Getter
 	private final String chatId;
+	@Getter
 	private final File file;
-	private final List<String> history = new ArrayList<>();
-	private final PrintWriter writer;
+	private final FileChannel writer;
+	private final FileChannel reader;
+	private final HistoryWriter historyWriter;
+	/**
+	 * Byte offset of the first message of each segment.
+	 */
+	private long[] segmentOffsets = new long[16];
+	private int messageCount = 0;
+	private long size = 0;
 	private boolean closed = false;
 	/**
-	 * Lock object for synchronizing the access to the history cache. Used when reading the
-	 * history file and when updating the cache.
+	 * Set when a message could not be written, so the index no longer matches the file. The
+	 * file is not read nor written anymore and it is loaded again (see {@link HistoryFilesCache}).
+	 */
+	private volatile boolean broken = false;
+	/**
+	 * Completed when the last message has been written to the file.
+	 */
+	private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+	/**
+	 * Lock object for synchronizing the access to the index. Used when writing a message and
+	 * when reading the position of a page.
 	 */
 	private final Object lock = new Object();
+	/**
+	 * Memory-mapped view of the history file, replaced when the file grows beyond it.
+	 */
+	private MappedByteBuffer mapping;
+	private final Object mapLock = new Object();
+	/**
+	 * Bytes of the file that are known to be in S3 ({@code -1} until the first upload, because
+	 * the file may have been created locally).
+	 */
+	private long uploadedSize = -1;
+	private final Object syncLock = new Object();
+	/**
+	 * Bytes of the messages of the file held in memory outside it (the tail of its
+	 * {@link ChatHistory}).
+	 */
+	private long retainedBytes = 0;
+	/**
+	 * Bytes held in memory when the file was weighed by the {@link HistoryFilesCache}.
+	 */
+	private volatile long weighedBytes = 0;
 
 	/**
-	 * Create a new instance of {@link CachedHistoryFile} and read the history file. When the
-	 * constructor is called, the history file is downloaded from S3 and cached in memory.
-	 * The history file is also opened for writing.
+	 * Create a new instance of {@link CachedHistoryFile} for the history file of the chat. When
+	 * the constructor is called, the history file is downloaded from S3 and indexed.
 	 *
 	 * @param chatId {@link String} with the chat ID.
 	 *
 	 * @throws IOException if an error occurs while reading the history file.
 	 */
 	public CachedHistoryFile(String chatId) throws IOException {
+		this(chatId, S3.getInstance().downloadHistoryFile(chatId));
+	}
+
+	/**
+	 * Create a new instance of {@link CachedHistoryFile} for a local history file, which is
+	 * created if it does not exist. The file is indexed and opened for appending.
+	 *
+	 * @param chatId {@link String} with the chat ID.
+	 * @param file   history file of the chat.
+	 *
+	 * @throws IOException if an error occurs while reading the history file.
+	 */
+	public CachedHistoryFile(String chatId, File file) throws IOException {
+		this(chatId, file, HistoryWriter.INSTANCE);
+	}
+
+	/**
+	 * Create a new instance of {@link CachedHistoryFile} for a local history file whose
+	 * messages are written by the given writer.
+	 *
+	 * @param chatId        {@link String} with the chat ID.
+	 * @param file          history file of the chat.
+	 * @param historyWriter writer of the new messages.
+	 *
+	 * @throws IOException if an error occurs while reading the history file.
+	 */
+	public CachedHistoryFile(String chatId, File file, HistoryWriter historyWriter) throws IOException {
 		this.chatId = chatId;
-		this.file = S3.getInstance().downloadHistoryFile(chatId);
+		this.file = file;
+		this.historyWriter = historyWriter;
+		this.writer = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		this.reader = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.buildIndex();
+	}
+
+	/**
+	 * Scans the history file once to build the index. Only the line breaks are searched,
+	 * the messages are not decoded.
+	 *
+	 * @throws IOException if an error occurs while reading the history file.
+	 */
+	private void buildIndex() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		long position = 0;
+		boolean lineStart = true;
+		int read;
+
+		while ((read = this.reader.read(buffer.clear(), position)) > 0) {
+			for (int i = 0; i < read; i++) {
+				if (lineStart) {
+					this.addMessageOffset(position + i);
+					lineStart = false;
+				}
+
+				if (buffer.get(i) == '\n') {
+					lineStart = true;
+				}
+			}
+
+			position += read;
+		}
+
+		this.size = position;
+
+		// The last message must end with a line break before appending new ones.
+		if (!lineStart) {
+			this.writer.write(ByteBuffer.wrap(new byte[]{'\n'}));
+			this.size++;
+		}
+	}
+
+	/**
+	 * Registers a new message starting at the given offset.
+	 *
+	 * @param offset byte offset of the message in the file.
+	 */
+	private void addMessageOffset(long offset) {
+		if (this.messageCount % SEGMENT_SIZE == 0) {
+			int segment = this.messageCount / SEGMENT_SIZE;
+
+			if (segment == this.segmentOffsets.length) {
+				this.segmentOffsets = Arrays.copyOf(this.segmentOffsets, segment * 2);
+			}
+
+			this.segmentOffsets[segment] = offset;
+		}
+
+		this.messageCount++;
+	}
+
+	/**
+	 * Write a new message to the history file and update the index. The message is written
+	 * by the {@link HistoryWriter} in the background; the pages that contain it wait for it.
+	 *
+	 * @param message {@link String} with the JSON message to write (see {@link #encode(String)}).
+	 *
+	 * @return {@code true} if the message has been written, {@code false} if the file has
+	 * been closed or is broken (see {@link #isBroken()}).
+	 */
+	public boolean write(String message) {
+		return this.write(encode(message));
+	}
+
+	/**
+	 * Write a new message, already encoded with {@link #encode(String)}, to the history file.
+	 *
+	 * @param line the encoded message.
+	 *
+	 * @return {@code true} if the message has been written, {@code false} if the file has
+	 * been closed or is broken (see {@link #isBroken()}).
+	 *
+	 * @see #write(String)
+	 */
+	public boolean write(byte[] line) {
+		synchronized (this.lock) {
+			if (this.closed || this.broken) {
+				return false;
+			}
+
+			this.lastWrite = this.historyWriter.append(this.writer, line);
+			// Not synchronized, the writer completes the future while the lock may be held by close.
+			this.lastWrite.exceptionally(e -> {
+				this.broken = true;
+				return null;
+			});
+			this.addMessageOffset(this.size);
+			this.size += line.length;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Encodes a message as a line of the history file.
+	 * <p>
+	 * The lines of the file are sent to the clients as they are stored, so the message must
+	 * be a valid JSON value, and it is checked that it does not contain line breaks.
+	 *
+	 * @param message {@link String} with the JSON message.
+	 *
+	 * @return the UTF-8 bytes of the message followed by a line break.
+	 *
+	 * @throws IllegalArgumentException if the message contains line breaks.
+	 */
+	public static byte[] encode(String message) {
+		if (message.indexOf('\n') >= 0 || message.indexOf('\r') >= 0) {
+			throw new IllegalArgumentException("History messages cannot contain line breaks");
+		}
+
+		return (message + '\n').getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Uploads the history file to S3 if messages have been written since the last upload.
+	 * Only the messages written to the file when this method is called are uploaded, the file
+	 * can be written meanwhile. The file can be synced after being closed.
+	 *
+	 * @param uploader uploads the new bytes of the file.
+	 *
+	 * @return number of bytes uploaded ({@code 0} if the file has not changed).
+	 */
+	public long sync(Uploader uploader) {
+		synchronized (this.syncLock) {
+			long size;
+			CompletableFuture<Void> written;
+
+			synchronized (this.lock) {
+				size = this.size;
+				written = this.lastWrite;
+			}
+
+			if (size == this.uploadedSize) {
+				return 0;
+			}
+
+			awaitWrite(written);
 
-		try (FileReader fileReader = new FileReader(this.file)) {
-			this.history.addAll(IOUtils.readLines(fileReader));
-		} catch (FileNotFoundException ignored) {/**/}
+			if (this.broken) {
+				size = this.file.length(); // The messages after the failed ones may have been written
+			}
 
-		FileWriter fileWriter = new FileWriter(this.file, true);
-		BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-		this.writer = new PrintWriter(bufferedWriter, true); // Auto-Flush enabled
+			long uploaded = uploader.upload(this.chatId, this.file, size);
+			this.uploadedSize = size;
+			return uploaded;
+		}
 	}
 
 	/**
-	 * Write a new message to the history file and update the cache.
+	 * Sets the bytes of the messages of the file held in memory outside it, which are counted
+	 * by {@link #memoryBytes()}.
 	 *
-	 * @param message {@link String} with the message to write.
+	 * @param bytes bytes of the retained messages.
 	 */
-	public void write(String message) {
-		this.writer.println(message);
+	public void retain(long bytes) {
+		synchronized (this.lock) {
+			this.retainedBytes = bytes;
+		}
+	}
 
-		synchronized (lock) {
-			this.history.add(message);
+	/**
+	 * Returns the bytes held in memory for the file: its index and the retained messages (see
+	 * {@link #retain(long)}). The mapped messages are not counted, they are in the page cache
+	 * of the operating system.
+	 *
+	 * @return the size of the index plus the retained bytes.
+	 */
+	public long memoryBytes() {
+		synchronized (this.lock) {
+			return (long) this.segmentOffsets.length * Long.BYTES + this.retainedBytes;
+		}
+	}
+
+	/**
+	 * Records the bytes held in memory for the file when it is weighed by the cache.
+	 *
+	 * @return the bytes held in memory (see {@link #memoryBytes()}).
+	 */
+	long weigh() {
+		long bytes = this.memoryBytes();
+		this.weighedBytes = bytes;
+		return bytes;
+	}
+
+	/**
+	 * @return {@code true} if the bytes held in memory have grown by more than a quarter
+	 * since the file was weighed, so it must be weighed again.
+	 */
+	boolean grownSinceWeighed() {
+		long weighed = this.weighedBytes;
+		return this.memoryBytes() > weighed + weighed / 4;
+	}
+
+	/**
+	 * Checks if a message could not be written to the file. The index of a broken file does
+	 * not match the file, so it is neither read nor written: it must be closed and loaded again.
+	 *
+	 * @return {@code true} if the file is broken.
+	 */
+	public boolean isBroken() {
+		return this.broken;
+	}
+
+	/**
+	 * @return number of messages of the history.
+	 */
+	public int messageCount() {
+		synchronized (this.lock) {
+			return this.messageCount;
 		}
 	}
 
@@ -80,39 +353,214 @@ public class CachedHistoryFile {
 	 *
 	 * @param offset {@link Integer} with the offset from the end of the history file.
 	 *
-	 * @return {@link List} of {@link String} with the messages.
+	 * @return {@link List} of {@link String} with the messages (empty if the file has been closed).
 	 */
 	public List<String> getMoreMessagesFromOffset(int offset) {
-		synchronized (lock) {
-			int start = this.history.size() - offset - HISTORY_PAGE_SIZE;
-			int end = start + HISTORY_PAGE_SIZE;
+		ByteBuffer page = this.readPage(offset);
+
+		if (page == null) {
+			return List.of();
+		}
+
+		List<String> messages = new ArrayList<>(HISTORY_PAGE_SIZE);
+		int lineStart = page.position();
 
-			if (start < 0) {
-				start = 0;
+		for (int i = page.position(); i < page.limit(); i++) {
+			if (page.get(i) == '\n') {
+				messages.add(decode(page, lineStart, i));
+				lineStart = i + 1;
 			}
+		}
 
-			if (end > this.history.size()) {
-				end = this.history.size();
+		return messages;
+	}
+
+	/**
+	 * Get the previous {@link Constants#HISTORY_PAGE_SIZE} messages from the history file before
+	 * the given offset, as they are stored in the file (UTF-8, each one followed by a line break).
+	 * <p>
+	 * The returned buffer is a read-only view of the memory-mapped history file, so the
+	 * messages are not copied nor decoded.
+	 *
+	 * @param offset {@link Integer} with the offset from the end of the history file.
+	 *
+	 * @return read-only buffer with the messages of the page (between its position and limit),
+	 * or {@code null} if the file has been closed or is broken.
+	 */
+	@Nullable
+	public ByteBuffer readPage(int offset) {
+		int start;
+		int end;
+
+		synchronized (this.lock) {
+			start = Math.max(this.messageCount - offset - HISTORY_PAGE_SIZE, 0);
+			end = Math.min(this.messageCount - offset, this.messageCount);
+		}
+
+		return this.readRange(start, end);
+	}
+
+	/**
+	 * Get the messages of the history file in the given range, as they are stored in the
+	 * file (see {@link #readPage(int)}).
+	 *
+	 * @param start index of the first message (from the beginning of the history).
+	 * @param end   index after the last message (messages beyond the end of the history
+	 *              are ignored).
+	 *
+	 * @return read-only buffer with the messages (between its position and limit), or
+	 * {@code null} if the file has been closed or is broken.
+	 */
+	@Nullable
+	public ByteBuffer readRange(int start, int end) {
+		long segmentOffset;
+		long limit;
+		CompletableFuture<Void> written;
+
+		synchronized (this.lock) {
+			if (this.closed || this.broken) {
+				return null;
 			}
 
+			end = Math.min(end, this.messageCount);
+
 			if (start >= end) {
-				return Collections.emptyList();
+				return EMPTY_PAGE;
+			}
+
+			segmentOffset = this.segmentOffsets[start / SEGMENT_SIZE];
+			int nextSegment = (end - 1) / SEGMENT_SIZE + 1;
+			// The range ends before the segment that follows its last message (messages written
+			// after this point are not read).
+			limit = nextSegment * SEGMENT_SIZE < this.messageCount ? this.segmentOffsets[nextSegment] : this.size;
+			written = this.lastWrite;
+		}
+
+		awaitWrite(written);
+
+		if (this.broken) {
+			return null; // The messages of the range may not have been written
+		}
+
+		ByteBuffer view;
+
+		try {
+			view = this.mappedView(segmentOffset, limit);
+		} catch (ClosedChannelException e) {
+			return null; // Closed while reading
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		// Only the first message of the segment is indexed, the rest are found by their line breaks.
+		int position = view.position();
+		int skip = start % SEGMENT_SIZE;
+		int count = end - start;
+		int pageStart = -1;
+
+		for (int lines = 0; position < view.limit() && lines < skip + count; position++) {
+			if (lines == skip && pageStart < 0) {
+				pageStart = position;
+			}
+
+			if (view.get(position) == '\n') {
+				lines++;
+			}
+		}
+
+		return view.limit(position).position(Math.max(pageStart, view.position())).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns a view of the given region of the history file. The whole file is mapped and
+	 * the mapping is reused until the file grows beyond it. Files too big to be mapped at once
+	 * are mapped by regions: only the given region, up to {@link Integer#MAX_VALUE} bytes.
+	 *
+	 * @param from first byte of the region.
+	 * @param to   byte after the last byte of the region (never beyond the written messages).
+	 *
+	 * @return buffer whose position and limit are the bounds of the region.
+	 *
+	 * @throws IOException if the file cannot be mapped.
+	 */
+	private ByteBuffer mappedView(long from, long to) throws IOException {
+		if (to > Integer.MAX_VALUE) {
+			return this.reader.map(FileChannel.MapMode.READ_ONLY, from, Math.min(to - from, Integer.MAX_VALUE));
+		}
+
+		MappedByteBuffer mapping;
+
+		synchronized (this.mapLock) {
+			if (this.mapping == null || this.mapping.capacity() < to) {
+				this.mapping = this.reader.map(FileChannel.MapMode.READ_ONLY, 0, to);
 			}
 
-			return this.history.subList(start, end);
+			mapping = this.mapping;
 		}
+
+		return mapping.duplicate().limit((int) to).position((int) from);
 	}
 
 	/**
-	 * Close the history file and mark it as closed.
+	 * Waits until a write of the {@link HistoryWriter} completes. Errors are logged by the
+	 * writer, so they are ignored.
+	 *
+	 * @param write future of the write.
 	 */
-	public synchronized void close() {
-		if (this.closed) {
-			return;
+	private static void awaitWrite(CompletableFuture<Void> write) {
+		if (!write.isDone()) {
+			write.exceptionally(e -> null).join();
 		}
+	}
+
+	private static String decode(ByteBuffer buffer, int from, int to) {
+		byte[] bytes = new byte[to - from];
+		buffer.get(from, bytes);
+		String decoded = new String(bytes, StandardCharsets.UTF_8);
+		return decoded.endsWith("\r") ? decoded.substring(0, decoded.length() - 1) : decoded;
+	}
 
-		this.writer.close();
-		this.closed = true;
-		S3.getInstance().uploadHistoryFile(this.chatId, true);
+	/**
+	 * Close the history file and mark it as closed, after writing the pending messages.
+	 * The file is not uploaded to S3 (see {@link HistoryFilesCache}).
+	 */
+	public void close() {
+		synchronized (this.lock) {
+			if (this.closed) {
+				return;
+			}
+
+			this.closed = true;
+			awaitWrite(this.lastWrite);
+		}
+
+		synchronized (this.mapLock) {
+			this.mapping = null; // Released when the pages that use it are not referenced
+		}
+
+		try {
+			this.writer.close();
+			this.reader.close();
+		} catch (IOException e) {
+			log.error("Error while closing the history file of chat {}", this.chatId, e);
+		}
+	}
+
+	/**
+	 * Uploads a history file to S3.
+	 */
+	@FunctionalInterface
+	public interface Uploader {
+		/**
+		 * Uploads the first bytes of the history file. The bytes that are already stored
+		 * need not be uploaded again.
+		 *
+		 * @param chatId id of the chat.
+		 * @param file   history file of the chat.
+		 * @param size   number of bytes of the file to upload (the file may be longer).
+		 *
+		 * @return number of bytes uploaded.
+		 */
+		long upload(String chatId, File file, long size);
 	}
 }
@@ -0,0 +1,270 @@
+package rs.chat.cache;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static rs.chat.utils.Constants.HISTORY_LOAD_THREADS;
+import static rs.chat.utils.Constants.HISTORY_PAGE_SIZE;
+
+/**
+ * History of an open chat. The last messages (the tail) are kept in memory, in a ring
+ * buffer, because most of the pages requested by the clients are the last ones. Older
+ * messages are read from the history file through the {@link ColdPageCache}.
+ * <p>
+ * The messages are kept as they are stored in the history file, so the pages are copied
+ * to the responses without encoding them again.
+ * <p>
+ * The history file is loaded in the background (it may have to be downloaded from S3), so
+ * the chat is available immediately. Meanwhile, the new messages are kept in memory and
+ * written once the history is loaded, and the pages wait for it. If the file is removed from
+ * the {@link HistoryFilesCache} while the chat is open, it is loaded again in the same way.
+ */
+@Slf4j
+public class ChatHistory {
+	private static final ByteBuffer[] EMPTY_PAGE = new ByteBuffer[0];
+	private static final ExecutorService LOAD_EXECUTOR;
+
+	static {
+		AtomicInteger threadCount = new AtomicInteger();
+
+		LOAD_EXECUTOR = Executors.newFixedThreadPool(HISTORY_LOAD_THREADS, runnable -> {
+			Thread t = new Thread(runnable, "history-load-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	private final String chatId;
+	private final HistoryFilesCache files;
+	private final Executor executor;
+	private final ColdPageCache coldPages;
+	/**
+	 * Last messages of the history. The message {@code i} (counting from the beginning of
+	 * the history) is in the position {@code i % tail.length}.
+	 */
+	private final byte[][] tail;
+	/**
+	 * Bytes of the messages of the tail, weighed with the history file (see
+	 * {@link HistoryFilesCache#retain(String, long)}).
+	 */
+	private long tailBytes;
+	/**
+	 * Number of messages of the history.
+	 */
+	private int messageCount;
+	/**
+	 * Messages received while the history file is loaded ({@code null} once it has been loaded).
+	 */
+	private List<byte[]> pending = new ArrayList<>();
+	/**
+	 * {@code false} if the tail could not be loaded, so the pages are read from the file.
+	 */
+	private boolean tailLoaded = false;
+	private final CompletableFuture<Void> loaded;
+
+	/**
+	 * Creates the history of the chat and starts loading its last messages from the history
+	 * file in the background.
+	 *
+	 * @param chatId       id of the chat.
+	 * @param files        history files of the chats.
+	 * @param coldPages    cache of the messages that are not in the tail.
+	 * @param tailMessages number of messages kept in memory (at least a block of the
+	 *                     {@link ColdPageCache}).
+	 */
+	public ChatHistory(String chatId, HistoryFilesCache files, ColdPageCache coldPages, int tailMessages) {
+		this(chatId, files, coldPages, tailMessages, LOAD_EXECUTOR);
+	}
+
+	/**
+	 * Creates the history of the chat and starts loading its last messages from the history
+	 * file with the given executor.
+	 *
+	 * @param chatId       id of the chat.
+	 * @param files        history files of the chats.
+	 * @param coldPages    cache of the messages that are not in the tail.
+	 * @param tailMessages number of messages kept in memory (at least a block of the
+	 *                     {@link ColdPageCache}).
+	 * @param executor     executor that loads the history.
+	 */
+	public ChatHistory(String chatId, HistoryFilesCache files, ColdPageCache coldPages, int tailMessages, Executor executor) {
+		this.chatId = chatId;
+		this.files = files;
+		this.executor = executor;
+		this.coldPages = coldPages;
+		this.tail = new byte[Math.max(tailMessages, ColdPageCache.BLOCK_SIZE)][];
+		this.loaded = CompletableFuture.runAsync(this::load, executor);
+	}
+
+	/**
+	 * Reads the last messages of the history file and writes the messages received meanwhile.
+	 * If the history file cannot be loaded, the pending messages are written anyway (the
+	 * file is loaded again by {@link HistoryFilesCache}) and the pages are read from the file.
+	 */
+	private void load() {
+		ByteBuffer messages = null;
+		int start = 0;
+
+		try {
+			int count = this.files.get(this.chatId).messageCount();
+			start = Math.max(count - this.tail.length, 0);
+			messages = this.files.readRange(this.chatId, start, count);
+		} catch (RuntimeException e) {
+			log.error("Error while loading the history of chat {}", this.chatId, e);
+		}
+
+		synchronized (this) {
+			if (messages != null) {
+				this.loadTail(start, messages);
+			}
+
+			this.writePending();
+		}
+	}
+
+	/**
+	 * Loads the history file again after it has been removed from the cache, and writes the
+	 * messages received meanwhile. The tail is kept in memory, so it is not read again.
+	 */
+	private void reload() {
+		try {
+			this.files.get(this.chatId);
+		} catch (RuntimeException e) {
+			log.error("Error while loading the history file of chat {} again", this.chatId, e);
+		}
+
+		synchronized (this) {
+			this.writePending();
+		}
+	}
+
+	private void writePending() {
+		try {
+			if (this.tailLoaded) {
+				this.files.retain(this.chatId, this.tailBytes);
+			}
+
+			for (byte[] line : this.pending) {
+				this.write(line);
+			}
+		} catch (RuntimeException e) {
+			log.error("Error while writing the pending messages of chat {}", this.chatId, e);
+		}
+
+		this.pending = null;
+	}
+
+	private void loadTail(int start, ByteBuffer messages) {
+		this.messageCount = start;
+		int lineStart = messages.position();
+
+		for (int i = messages.position(); i < messages.limit(); i++) {
+			if (messages.get(i) == '\n') {
+				byte[] line = new byte[i + 1 - lineStart];
+				messages.get(lineStart, line);
+				this.addToTail(line);
+				lineStart = i + 1;
+			}
+		}
+
+		this.tailLoaded = true;
+	}
+
+	private void write(byte[] line) {
+		this.files.write(this.chatId, line);
+		this.written(line);
+	}
+
+	private void written(byte[] line) {
+		if (this.tailLoaded) {
+			this.addToTail(line);
+			this.files.retain(this.chatId, this.tailBytes);
+		}
+	}
+
+	private void addToTail(byte[] line) {
+		byte[] replaced = this.tail[this.messageCount % this.tail.length];
+		this.tail[this.messageCount % this.tail.length] = line;
+		this.tailBytes += line.length - (replaced == null ? 0 : replaced.length);
+		this.messageCount++;
+	}
+
+	/**
+	 * Stores a message in the history. If the history file is being loaded, or it is not in
+	 * the cache (so it is loaded again in the background), the message is written once it
+	 * has been loaded.
+	 *
+	 * @param message the JSON message.
+	 */
+	public synchronized void append(String message) {
+		byte[] line = CachedHistoryFile.encode(message);
+
+		if (this.pending == null && this.files.writeIfLoaded(this.chatId, line)) {
+			this.written(line);
+			return;
+		}
+
+		if (this.pending == null) {
+			log.debug("History file of chat {} is not in the cache, loading it again", this.chatId);
+			this.pending = new ArrayList<>();
+			this.executor.execute(this::reload);
+		}
+
+		this.pending.add(line);
+	}
+
+	/**
+	 * Get the previous {@link rs.chat.utils.Constants#HISTORY_PAGE_SIZE} messages before the
+	 * given offset, as they are stored in the history file (UTF-8, each one followed by a
+	 * line break). The messages of the tail are not copied.
+	 * <p>
+	 * The page is read once the history has been loaded.
+	 *
+	 * @param offset number of messages from the end of the history.
+	 *
+	 * @return future with read-only buffers with the messages of the page.
+	 */
+	public CompletableFuture<ByteBuffer[]> page(int offset) {
+		return this.loaded.thenApply(v -> this.loadedPage(offset));
+	}
+
+	private ByteBuffer[] loadedPage(int offset) {
+		// Set while loading the history, it does not change afterwards.
+		if (!this.tailLoaded) {
+			return new ByteBuffer[]{this.files.readPage(this.chatId, offset)};
+		}
+
+		List<ByteBuffer> page = new ArrayList<>();
+		int start;
+		int end;
+		int tailStart;
+
+		synchronized (this) {
+			start = Math.max(this.messageCount - offset - HISTORY_PAGE_SIZE, 0);
+			end = Math.min(this.messageCount - offset, this.messageCount);
+			tailStart = Math.max(this.messageCount - this.tail.length, 0);
+
+			if (start >= end) {
+				return EMPTY_PAGE;
+			}
+
+			for (int i = Math.max(start, tailStart); i < end; i++) {
+				page.add(ByteBuffer.wrap(this.tail[i % this.tail.length]).asReadOnlyBuffer());
+			}
+		}
+
+		if (start < tailStart) {
+			page.addAll(0, this.coldPages.read(this.chatId, start, Math.min(end, tailStart), this.files));
+		}
+
+		return page.toArray(ByteBuffer[]::new);
+	}
+}
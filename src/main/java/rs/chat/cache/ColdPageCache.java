@@ -0,0 +1,141 @@
+package rs.chat.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import org.jetbrains.annotations.NotNull;
+import rs.chat.exceptions.CacheException;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static rs.chat.utils.Constants.HISTORY_COLD_PAGE_CACHE_BYTES;
+
+/**
+ * Cache of the old messages of the chats, the ones that are not in the tail of the
+ * {@link ChatHistory}. They are read from the history files in blocks of
+ * {@link #BLOCK_SIZE} messages counted from the beginning of the history, so the blocks
+ * never change once they are complete and the same blocks are used whatever the offset
+ * requested by the clients.
+ */
+public final class ColdPageCache implements MeterBinder {
+	/**
+	 * Number of messages of each block.
+	 */
+	public static final int BLOCK_SIZE = 128;
+
+	public static final ColdPageCache INSTANCE = new ColdPageCache(HISTORY_COLD_PAGE_CACHE_BYTES, Duration.ofMinutes(10));
+
+	private final Cache<BlockKey, Block> cache;
+
+	/**
+	 * Constructor that creates the cache.
+	 *
+	 * @param maxBytes   maximum bytes of the cached blocks.
+	 * @param idleExpiry time after which a block that has not been used is removed.
+	 */
+	public ColdPageCache(long maxBytes, Duration idleExpiry) {
+		this.cache = CacheBuilder.newBuilder()
+		                         .maximumWeight(maxBytes)
+		                         .weigher((BlockKey key, Block block) -> block.bytes().length)
+		                         .expireAfterAccess(idleExpiry)
+		                         .recordStats()
+		                         .build();
+	}
+
+	/**
+	 * Reads the messages of a chat in the given range.
+	 *
+	 * @param chatId id of the chat.
+	 * @param start  index of the first message (from the beginning of the history).
+	 * @param end    index after the last message.
+	 * @param files  history files to read the blocks that are not cached.
+	 *
+	 * @return the messages of the range, as stored in the history file (one buffer per block).
+	 */
+	public List<ByteBuffer> read(String chatId, int start, int end, HistoryFilesCache files) {
+		List<ByteBuffer> buffers = new ArrayList<>();
+
+		for (int block = start / BLOCK_SIZE; block * BLOCK_SIZE < end; block++) {
+			int blockStart = block * BLOCK_SIZE;
+			Block messages = this.block(chatId, block, files);
+			int from = Math.max(start - blockStart, 0);
+			int to = Math.min(end - blockStart, messages.count());
+
+			if (from < to) {
+				buffers.add(messages.slice(from, to));
+			}
+		}
+
+		return buffers;
+	}
+
+	/**
+	 * Publishes the statistics of the cache (hits, misses, load time, evictions and size).
+	 *
+	 * @param registry registry to publish the metrics to.
+	 */
+	@Override
+	public void bindTo(@NotNull MeterRegistry registry) {
+		GuavaCacheMetrics.monitor(registry, this.cache, "chat.history.cold.pages");
+	}
+
+	private Block block(String chatId, int block, HistoryFilesCache files) {
+		BlockKey key = new BlockKey(chatId, block);
+		Block messages;
+
+		try {
+			messages = this.cache.get(key, () -> Block.of(files.readRange(chatId, block * BLOCK_SIZE, (block + 1) * BLOCK_SIZE)));
+		} catch (ExecutionException e) {
+			throw new CacheException(e.getMessage());
+		}
+
+		// The last block of the history is not kept until it is complete.
+		if (messages.count() < BLOCK_SIZE) {
+			this.cache.invalidate(key);
+		}
+
+		return messages;
+	}
+
+	private record BlockKey(String chatId, int block) {
+	}
+
+	/**
+	 * Messages of a block.
+	 *
+	 * @param bytes      the messages, as stored in the history file.
+	 * @param lineStarts offset of each message in the bytes, followed by the length of the bytes.
+	 */
+	private record Block(byte[] bytes, int[] lineStarts) {
+		static Block of(ByteBuffer messages) {
+			byte[] bytes = new byte[messages.remaining()];
+			messages.get(messages.position(), bytes);
+			int[] lineStarts = new int[BLOCK_SIZE + 1];
+			int count = 0;
+
+			for (int i = 0; i < bytes.length; i++) {
+				if (bytes[i] == '\n') {
+					lineStarts[++count] = i + 1;
+				}
+			}
+
+			return new Block(bytes, Arrays.copyOf(lineStarts, count + 1));
+		}
+
+		int count() {
+			return this.lineStarts.length - 1;
+		}
+
+		ByteBuffer slice(int from, int to) {
+			return ByteBuffer.wrap(this.bytes, this.lineStarts[from], this.lineStarts[to] - this.lineStarts[from])
+			                 .asReadOnlyBuffer();
+		}
+	}
+}
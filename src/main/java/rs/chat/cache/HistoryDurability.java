@@ -0,0 +1,17 @@
+package rs.chat.cache;
+
+/**
+ * Durability of the messages written to the history files by the {@link HistoryWriter}.
+ */
+public enum HistoryDurability {
+	/**
+	 * The messages are written to the files, and the operating system decides when they
+	 * are stored in the disk. A crash of the machine may lose the last messages.
+	 */
+	WRITE,
+	/**
+	 * The files are synchronized with the disk ({@code fsync}) after writing each batch, so
+	 * the messages are not lost once the batch is completed.
+	 */
+	FSYNC
+}
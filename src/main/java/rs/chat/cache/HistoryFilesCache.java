@@ -2,28 +2,100 @@ package rs.chat.cache;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
 import rs.chat.exceptions.CacheException;
+import rs.chat.storage.S3;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import static rs.chat.net.ws.Message.GET_HISTORY_MESSAGE;
+import static rs.chat.utils.Constants.HISTORY_CACHE_IDLE_EXPIRY_MINUTES;
+import static rs.chat.utils.Constants.HISTORY_CACHE_MAX_BYTES;
 
 /**
  * Class that manages all the opened files when the chats are opened.
+ * <p>
+ * The files are weighed by the bytes that they hold in memory (see
+ * {@link CachedHistoryFile#memoryBytes()}), and weighed again when they grow, and expire
+ * when they are not used for a while. A file never weighs more than half of the cache, so
+ * the files of big chats are not evicted as soon as they are loaded.
+ * When a file is removed from the cache it is closed and persisted to S3 in the background
+ * (only the messages that have not been uploaded yet, see {@link #syncAll(HistoryPersister)}).
+ * If the chat is opened again before that, the file is not loaded until it has been persisted,
+ * and if it could not be persisted the local file is opened again instead of downloading it.
  */
-public final class HistoryFilesCache {
-	public static final HistoryFilesCache INSTANCE = new HistoryFilesCache();
-	private final Cache<String, CachedHistoryFile> cache;
+@Slf4j
+public final class HistoryFilesCache implements MeterBinder {
+	private static final ExecutorService PERSIST_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+		Thread t = new Thread(runnable, "history-persist");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public static final HistoryFilesCache INSTANCE = new HistoryFilesCache(
+			HISTORY_CACHE_MAX_BYTES,
+			Duration.ofMinutes(HISTORY_CACHE_IDLE_EXPIRY_MINUTES),
+			(chatId, unsynced) -> unsynced
+			                      ? new CachedHistoryFile(chatId, GET_HISTORY_MESSAGE.getFileInDisk(chatId))
+			                      : new CachedHistoryFile(chatId),
+			file -> HistoryPersister.INSTANCE.sync(file)
+			                                 .thenRun(() -> S3.getInstance().deleteLocalHistoryFile(file.getFile()))
+	);
+
+	private final Cache<String, Entry> cache;
+	private final Loader loader;
+	private final Function<CachedHistoryFile, CompletableFuture<Void>> persister;
+	/**
+	 * Persistence of the last file loaded of each chat, by chat id (see {@link Entry#persisted()}).
+	 * Registered when the file is loaded, so it is never loaded again before being persisted,
+	 * and removed once it has been persisted.
+	 */
+	private final Map<String, CompletableFuture<Boolean>> persisted = new ConcurrentHashMap<>();
 
 	/**
 	 * Constructor that creates the cache.
+	 *
+	 * @param maxBytes   maximum bytes held in memory by the cached files.
+	 * @param idleExpiry time after which a file that has not been used is removed.
+	 * @param loader     loads the file of a chat.
+	 * @param persister  persists a file once it has been removed and closed, returns a
+	 *                   future completed when it has been persisted.
 	 */
-	private HistoryFilesCache() {
+	public HistoryFilesCache(long maxBytes, Duration idleExpiry, Loader loader, Function<CachedHistoryFile, CompletableFuture<Void>> persister) {
+		this.loader = loader;
+		this.persister = persister;
+		// A single segment, otherwise the maximum weight is split between the segments and
+		// the files of big chats would be evicted as soon as they are loaded.
+		long maxFileWeight = Math.min(maxBytes / 2, Integer.MAX_VALUE);
 		this.cache = CacheBuilder.newBuilder()
-		                         .maximumSize(1000)
+		                         .concurrencyLevel(1)
+		                         .maximumWeight(maxBytes)
+		                         .weigher((String chatId, Entry entry) -> (int) Math.min(entry.file().weigh(), maxFileWeight))
+		                         .expireAfterAccess(idleExpiry)
+		                         .removalListener(this::onRemoval)
+		                         .recordStats()
 		                         .build();
 	}
 
 	/**
 	 * Returns the cached file for the specified chatId or creates a new one if it doesn't exist.
+	 * Broken files (see {@link CachedHistoryFile#isBroken()}) are removed and loaded again.
 	 *
 	 * @param chatId id of the chat to get the file.
 	 *
@@ -32,19 +104,257 @@ public final class HistoryFilesCache {
 	 * @throws CacheException if the file cannot be created.
 	 */
 	public CachedHistoryFile get(String chatId) {
+		return this.entry(chatId).file();
+	}
+
+	private Entry entry(String chatId) {
 		try {
-			return this.cache.get(chatId, () -> new CachedHistoryFile(chatId));
+			Entry entry;
+
+			while ((entry = this.cache.get(chatId, () -> this.load(chatId))).file().isBroken()) {
+				log.warn("History file of chat {} could not be written, loading it again", chatId);
+				this.cache.asMap().remove(chatId, entry);
+			}
+
+			return entry;
 		} catch (ExecutionException e) {
 			throw new CacheException(e.getMessage());
 		}
 	}
 
 	/**
-	 * Invalidates the cached file for the specified chatId.
+	 * Writes a message to the history file of the chat. If the file is removed from the
+	 * cache meanwhile, it is loaded again.
+	 *
+	 * @param chatId id of the chat.
+	 * @param line   message to write (see {@link CachedHistoryFile#encode(String)}).
+	 */
+	public void write(String chatId, byte[] line) {
+		Entry entry;
+
+		while (!(entry = this.entry(chatId)).file().write(line)) {
+			log.debug("History file of chat {} closed while writing, loading it again", chatId);
+		}
+
+		this.reweighIfGrown(chatId, entry);
+	}
+
+	/**
+	 * Writes a message to the history file of the chat only if the file is in the cache, so
+	 * the caller never waits for the file to be loaded.
+	 *
+	 * @param chatId id of the chat.
+	 * @param line   message to write (see {@link CachedHistoryFile#encode(String)}).
+	 *
+	 * @return {@code false} if the message has not been written because the file is not in
+	 * the cache, or it is closed or broken (see {@link #write(String, byte[])}).
+	 */
+	public boolean writeIfLoaded(String chatId, byte[] line) {
+		Entry entry = this.cache.getIfPresent(chatId);
+
+		if (entry == null || !entry.file().write(line)) {
+			return false;
+		}
+
+		this.reweighIfGrown(chatId, entry);
+		return true;
+	}
+
+	/**
+	 * Sets the bytes of the messages of the chat held in memory outside its history file
+	 * (see {@link CachedHistoryFile#retain(long)}), which are weighed with the file. Nothing
+	 * is done if the file is not in the cache (it is not loaded for this).
+	 *
+	 * @param chatId id of the chat.
+	 * @param bytes  bytes of the retained messages.
+	 */
+	public void retain(String chatId, long bytes) {
+		Entry entry = this.cache.getIfPresent(chatId);
+
+		if (entry != null) {
+			entry.file().retain(bytes);
+			this.reweighIfGrown(chatId, entry);
+		}
+	}
+
+	/**
+	 * Weighs a file again if it has grown since it was weighed (Guava only weighs the entries
+	 * when they are stored), storing it again in the cache.
+	 */
+	private void reweighIfGrown(String chatId, Entry entry) {
+		if (entry.file().grownSinceWeighed()) {
+			this.cache.asMap().replace(chatId, entry, entry);
+		}
+	}
+
+	/**
+	 * Reads a page of the history file of the chat. If the file is removed from the cache
+	 * meanwhile, it is loaded again.
+	 *
+	 * @param chatId id of the chat.
+	 * @param offset offset from the end of the history (see {@link CachedHistoryFile#readPage(int)}).
+	 *
+	 * @return the messages of the page.
+	 */
+	public ByteBuffer readPage(String chatId, int offset) {
+		ByteBuffer page;
+
+		while ((page = this.get(chatId).readPage(offset)) == null) {
+			log.debug("History file of chat {} closed while reading, loading it again", chatId);
+		}
+
+		return page;
+	}
+
+	/**
+	 * Reads a range of messages of the history file of the chat. If the file is removed
+	 * from the cache meanwhile, it is loaded again.
+	 *
+	 * @param chatId id of the chat.
+	 * @param start  index of the first message (see {@link CachedHistoryFile#readRange(int, int)}).
+	 * @param end    index after the last message.
+	 *
+	 * @return the messages of the range.
+	 */
+	public ByteBuffer readRange(String chatId, int start, int end) {
+		ByteBuffer messages;
+
+		while ((messages = this.get(chatId).readRange(start, end)) == null) {
+			log.debug("History file of chat {} closed while reading, loading it again", chatId);
+		}
+
+		return messages;
+	}
+
+	/**
+	 * Uploads the messages written since the last upload to the cached files (see
+	 * {@link CachedHistoryFile#sync(CachedHistoryFile.Uploader)}). The files are not accessed,
+	 * so syncing them does not prevent them from expiring.
+	 *
+	 * @param persister persister that uploads the files.
+	 *
+	 * @return future completed when all the files have been synced (errors are logged by
+	 * the persister).
+	 */
+	public CompletableFuture<Void> syncAll(HistoryPersister persister) {
+		return CompletableFuture.allOf(
+				this.cache.asMap()
+				          .values()
+				          .stream()
+				          .map(entry -> persister.sync(entry.file()).exceptionally(e -> 0L))
+				          .toArray(CompletableFuture[]::new)
+		);
+	}
+
+	/**
+	 * Removes all the files from the cache, closing and persisting them.
+	 *
+	 * @return future completed when all the files removed from the cache (also the ones
+	 * removed before) have been persisted.
+	 */
+	public CompletableFuture<Void> persistAll() {
+		CompletableFuture<?>[] persisted = this.persisted.values().toArray(CompletableFuture[]::new);
+		this.cache.invalidateAll();
+
+		return CompletableFuture.allOf(persisted);
+	}
+
+	/**
+	 * Invalidates the cached file for the specified chatId. The file is closed and persisted
+	 * in the background.
 	 *
 	 * @param chatId id of the chat to invalidate the file.
 	 */
 	public void invalidate(String chatId) {
 		this.cache.invalidate(chatId);
 	}
+
+	/**
+	 * Publishes the statistics of the cache (hits, misses, load time, evictions and size)
+	 * and the bytes held in memory by the cached files.
+	 *
+	 * @param registry registry to publish the metrics to.
+	 */
+	@Override
+	public void bindTo(@NotNull MeterRegistry registry) {
+		GuavaCacheMetrics.monitor(registry, this.cache, "chat.history.files");
+		Gauge.builder("chat.history.files.memory", this, c -> c.cache.asMap().values().stream()
+		                                                             .mapToLong(entry -> entry.file().memoryBytes())
+		                                                             .sum())
+		     .baseUnit("bytes")
+		     .register(registry);
+	}
+
+	private Entry load(String chatId) throws IOException {
+		// Registered before the file is in the cache, so it cannot be loaded again until it has
+		// been removed and persisted (the cache loads each chat once at a time).
+		CompletableFuture<Boolean> persisted = new CompletableFuture<>();
+		CompletableFuture<Boolean> previous = this.persisted.put(chatId, persisted);
+		boolean unsynced = previous != null && !previous.join();
+
+		try {
+			return new Entry(this.loader.load(chatId, unsynced), persisted);
+		} catch (IOException | RuntimeException e) {
+			persisted.complete(!unsynced); // The local file has not changed
+			throw e;
+		}
+	}
+
+	private void onRemoval(RemovalNotification<String, Entry> notification) {
+		String chatId = notification.getKey();
+		Entry entry = notification.getValue();
+
+		// Replaced by itself when it is weighed again, it is still in the cache.
+		if (chatId == null || entry == null || notification.getCause() == RemovalCause.REPLACED) {
+			return;
+		}
+
+		log.debug("History file of chat {} removed from the cache ({})", chatId, notification.getCause());
+
+		CachedHistoryFile file = entry.file();
+		CompletableFuture.supplyAsync(() -> {
+			                 file.close();
+			                 return this.persister.apply(file);
+		                 }, PERSIST_EXECUTOR)
+		                 .thenCompose(Function.identity())
+		                 .handle((v, e) -> {
+			                 if (e != null) {
+				                 log.error("Error while persisting the history file of chat {}, it is kept in the disk", chatId, e);
+				                 return false;
+			                 }
+
+			                 // Nothing is left to upload, the next time the file is downloaded
+			                 this.persisted.remove(chatId, entry.persisted());
+			                 return true;
+		                 })
+		                 .thenAccept(entry.persisted()::complete);
+	}
+
+	/**
+	 * File of a chat in the cache.
+	 *
+	 * @param file      the history file.
+	 * @param persisted completed when the file has been removed from the cache, closed and
+	 *                  persisted, with {@code false} if it could not be persisted (so the local
+	 *                  file has messages that are not in S3).
+	 */
+	private record Entry(CachedHistoryFile file, CompletableFuture<Boolean> persisted) {
+	}
+
+	/**
+	 * Loads the history file of a chat.
+	 */
+	@FunctionalInterface
+	public interface Loader {
+		/**
+		 * @param chatId   id of the chat.
+		 * @param unsynced {@code true} if the local history file has messages that could not
+		 *                 be uploaded to S3, so it must not be replaced by the one in S3.
+		 *
+		 * @return the history file of the chat.
+		 *
+		 * @throws IOException if the file cannot be loaded.
+		 */
+		CachedHistoryFile load(String chatId, boolean unsynced) throws IOException;
+	}
 }
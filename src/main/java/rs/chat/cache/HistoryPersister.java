@@ -0,0 +1,191 @@
+package rs.chat.cache;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import rs.chat.storage.S3;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static rs.chat.utils.Constants.HISTORY_UPLOAD_MAX_ATTEMPTS;
+import static rs.chat.utils.Constants.HISTORY_UPLOAD_RETRY_DELAY_MILLIS;
+import static rs.chat.utils.Constants.HISTORY_UPLOAD_THREADS;
+
+/**
+ * Uploads the history files to S3 in the background, with a bounded number of uploads in
+ * parallel. Failed uploads are retried with exponential backoff.
+ * <p>
+ * The uploads are coalesced by chat: if the upload of a file is requested while another
+ * upload of the same file is waiting, both requests share the upload (it uploads all the
+ * messages written when it starts). If the upload of the chat is running, the new one
+ * starts when it finishes.
+ */
+@Slf4j
+public final class HistoryPersister implements MeterBinder {
+	public static final HistoryPersister INSTANCE;
+
+	static {
+		AtomicInteger threadCount = new AtomicInteger();
+
+		INSTANCE = new HistoryPersister(
+				Executors.newFixedThreadPool(HISTORY_UPLOAD_THREADS, runnable -> {
+					Thread t = new Thread(runnable, "history-upload-" + threadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}),
+				HISTORY_UPLOAD_MAX_ATTEMPTS,
+				Duration.ofMillis(HISTORY_UPLOAD_RETRY_DELAY_MILLIS),
+				(chatId, file, size) -> S3.getInstance().uploadHistoryFile(chatId, file, size)
+		);
+	}
+
+	private final Executor executor;
+	private final int maxAttempts;
+	private final Duration retryDelay;
+	private final CachedHistoryFile.Uploader uploader;
+	/**
+	 * Last upload requested for each chat, removed when it finishes.
+	 */
+	private final Map<String, Upload> uploads = new HashMap<>();
+	/**
+	 * Uploads requested that have not finished (waiting, running or waiting to be retried).
+	 */
+	private final AtomicInteger pending = new AtomicInteger();
+	@Setter
+	private volatile HistoryPersisterListener listener = HistoryPersisterListener.NO_OP;
+
+	/**
+	 * Constructor that creates the persister.
+	 *
+	 * @param executor    executor that runs the uploads (its threads bound the uploads in parallel).
+	 * @param maxAttempts maximum number of attempts of each upload.
+	 * @param retryDelay  delay before the first retry, doubled on each retry.
+	 * @param uploader    uploads the new bytes of the files.
+	 */
+	public HistoryPersister(Executor executor, int maxAttempts, Duration retryDelay, CachedHistoryFile.Uploader uploader) {
+		this.executor = executor;
+		this.maxAttempts = Math.max(maxAttempts, 1);
+		this.retryDelay = retryDelay;
+		this.uploader = uploader;
+	}
+
+	/**
+	 * Uploads the messages of the history file that have not been uploaded yet (see
+	 * {@link CachedHistoryFile#sync(CachedHistoryFile.Uploader)}).
+	 *
+	 * @param file the history file.
+	 *
+	 * @return future completed with the bytes uploaded, or exceptionally if all the attempts failed.
+	 */
+	public CompletableFuture<Long> sync(CachedHistoryFile file) {
+		Upload previous;
+		Upload upload;
+
+		synchronized (this.uploads) {
+			previous = this.uploads.get(file.getChatId());
+
+			if (previous != null && !previous.started && previous.file == file) {
+				return previous.future;
+			}
+
+			upload = new Upload(file);
+			this.uploads.put(file.getChatId(), upload);
+		}
+
+		this.pending.incrementAndGet();
+
+		if (previous == null) {
+			this.executor.execute(() -> this.run(upload, 1));
+		} else {
+			previous.future.whenComplete((bytes, e) -> this.executor.execute(() -> this.run(upload, 1)));
+		}
+
+		return upload.future;
+	}
+
+	/**
+	 * @return number of uploads that have not finished.
+	 */
+	public int pending() {
+		return this.pending.get();
+	}
+
+	/**
+	 * Publishes the number of uploads that have not finished ({@code chat.history.uploads.pending}).
+	 *
+	 * @param registry registry to publish the metrics to.
+	 */
+	@Override
+	public void bindTo(@NotNull MeterRegistry registry) {
+		Gauge.builder("chat.history.uploads.pending", this.pending, AtomicInteger::get)
+		     .register(registry);
+	}
+
+	private void run(Upload upload, int attempt) {
+		synchronized (this.uploads) {
+			upload.started = true;
+		}
+
+		long start = System.nanoTime();
+
+		try {
+			long bytes = upload.file.sync(this.uploader);
+
+			if (bytes > 0) {
+				this.listener.onUploaded(bytes, System.nanoTime() - start);
+			}
+
+			this.finish(upload);
+			upload.future.complete(bytes);
+		} catch (RuntimeException e) {
+			if (attempt < this.maxAttempts) {
+				long delay = this.retryDelay.toMillis() << (attempt - 1);
+				log.warn("Error while uploading the history file of chat {} (attempt {} of {}), retrying in {} ms",
+				         upload.file.getChatId(), attempt, this.maxAttempts, delay, e);
+				this.listener.onRetry();
+				CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, this.executor)
+				                 .execute(() -> this.run(upload, attempt + 1));
+			} else {
+				log.error("Could not upload the history file of chat {} after {} attempts",
+				          upload.file.getChatId(), attempt, e);
+				this.listener.onFailed();
+				this.finish(upload);
+				upload.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	private void finish(Upload upload) {
+		synchronized (this.uploads) {
+			this.uploads.remove(upload.file.getChatId(), upload);
+		}
+
+		this.pending.decrementAndGet();
+	}
+
+	/**
+	 * Upload of a history file.
+	 */
+	private static final class Upload {
+		private final CachedHistoryFile file;
+		private final CompletableFuture<Long> future = new CompletableFuture<>();
+		/**
+		 * Set when the upload starts, the requests received afterwards start a new upload.
+		 */
+		private boolean started = false;
+
+		private Upload(CachedHistoryFile file) {
+			this.file = file;
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package rs.chat.cache;
+
+/**
+ * Receives the events of the {@link HistoryPersister}.
+ */
+public interface HistoryPersisterListener {
+	/**
+	 * Listener that ignores all the events.
+	 */
+	HistoryPersisterListener NO_OP = new HistoryPersisterListener() {
+	};
+
+	/**
+	 * Called when new messages of a history file have been uploaded.
+	 *
+	 * @param bytes bytes uploaded.
+	 * @param nanos time spent uploading them.
+	 */
+	default void onUploaded(long bytes, long nanos) {
+	}
+
+	/**
+	 * Called when an upload fails and is going to be retried.
+	 */
+	default void onRetry() {
+	}
+
+	/**
+	 * Called when an upload fails and is not retried anymore.
+	 */
+	default void onFailed() {
+	}
+}
@@ -0,0 +1,239 @@
+package rs.chat.cache;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static rs.chat.utils.Constants.HISTORY_DURABILITY;
+import static rs.chat.utils.Constants.HISTORY_FLUSH_INTERVAL_MILLIS;
+import static rs.chat.utils.Constants.HISTORY_MAX_BATCH_SIZE;
+
+/**
+ * Group-commit writer of the history files. The messages of all the chats are queued and
+ * written in batches by a dedicated thread, so the threads that handle the messages never
+ * wait for the disk and every file is written (and synchronized, depending on the
+ * {@link HistoryDurability}) once per batch instead of once per message.
+ * <p>
+ * A batch is written when it reaches the maximum size or when the flush interval has
+ * elapsed since its first message was queued. The messages of each file are written in
+ * the order they were queued.
+ */
+@Slf4j
+public final class HistoryWriter {
+	/**
+	 * Marks the end of the queue when the writer is closed.
+	 */
+	private static final Append STOP = new Append(null, null, null);
+
+	public static final HistoryWriter INSTANCE = new HistoryWriter(
+			Duration.ofMillis(HISTORY_FLUSH_INTERVAL_MILLIS),
+			HISTORY_MAX_BATCH_SIZE,
+			HISTORY_DURABILITY
+	);
+
+	private final long flushIntervalNanos;
+	private final int maxBatchSize;
+	private final HistoryDurability durability;
+	private final BlockingQueue<Append> queue = new LinkedBlockingQueue<>();
+	private final Thread thread;
+	private boolean closed = false;
+	@Setter
+	private volatile HistoryWriterListener listener = HistoryWriterListener.NO_OP;
+
+	/**
+	 * Creates a writer and starts its thread.
+	 *
+	 * @param flushInterval maximum time that a message waits for more messages to be
+	 *                      written with it.
+	 * @param maxBatchSize  maximum number of messages written in a batch.
+	 * @param durability    durability of the written messages.
+	 */
+	public HistoryWriter(Duration flushInterval, int maxBatchSize, HistoryDurability durability) {
+		this.flushIntervalNanos = flushInterval.toNanos();
+		this.maxBatchSize = maxBatchSize;
+		this.durability = durability;
+		this.thread = new Thread(this::run, "history-writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Queues a message to be appended to a history file.
+	 *
+	 * @param channel channel of the history file, opened for appending.
+	 * @param bytes   bytes of the message (including its line break).
+	 *
+	 * @return future completed when the message has been written, or completed
+	 * exceptionally if it could not be written.
+	 */
+	public CompletableFuture<Void> append(FileChannel channel, byte[] bytes) {
+		Append append = new Append(channel, ByteBuffer.wrap(bytes), new CompletableFuture<>());
+
+		// Synchronized with close, so no message is queued after the thread stops.
+		synchronized (this.queue) {
+			if (this.closed) {
+				return CompletableFuture.failedFuture(new IllegalStateException("The history writer is closed"));
+			}
+
+			this.queue.add(append);
+		}
+
+		return append.written();
+	}
+
+	/**
+	 * Writes the queued messages and stops the thread. The messages queued afterwards
+	 * are not written.
+	 */
+	public void close() {
+		synchronized (this.queue) {
+			if (this.closed) {
+				return;
+			}
+
+			this.closed = true;
+			this.queue.add(STOP);
+		}
+
+		try {
+			this.thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		List<Append> batch = new ArrayList<>(this.maxBatchSize);
+		boolean stopped = false;
+
+		// The thread is never interrupted, since it would close the channels of the files.
+		while (!stopped) {
+			this.collectBatch(batch);
+			stopped = batch.removeIf(append -> append == STOP);
+
+			if (stopped) {
+				this.queue.drainTo(batch);
+			}
+
+			this.writeBatch(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Waits for the first message and collects more until the batch is full or the flush
+	 * interval elapses.
+	 */
+	private void collectBatch(List<Append> batch) {
+		batch.add(takeUninterruptibly(this.queue));
+		long deadline = System.nanoTime() + this.flushIntervalNanos;
+
+		while (batch.size() < this.maxBatchSize) {
+			this.queue.drainTo(batch, this.maxBatchSize - batch.size());
+
+			long remaining = deadline - System.nanoTime();
+
+			if (batch.size() == this.maxBatchSize || remaining <= 0) {
+				return;
+			}
+
+			Append next = pollUninterruptibly(this.queue, remaining);
+
+			if (next == null) {
+				return;
+			}
+
+			batch.add(next);
+		}
+	}
+
+	private static Append takeUninterruptibly(BlockingQueue<Append> queue) {
+		while (true) {
+			try {
+				return queue.take();
+			} catch (InterruptedException e) {
+				log.warn("The history writer thread cannot be interrupted");
+			}
+		}
+	}
+
+	@Nullable
+	private static Append pollUninterruptibly(BlockingQueue<Append> queue, long nanos) {
+		try {
+			return queue.poll(nanos, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			log.warn("The history writer thread cannot be interrupted");
+			return null;
+		}
+	}
+
+	private void writeBatch(List<Append> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		long bytes = 0;
+		Map<FileChannel, List<Append>> appendsByFile = new IdentityHashMap<>();
+
+		for (Append append : batch) {
+			appendsByFile.computeIfAbsent(append.channel(), c -> new ArrayList<>()).add(append);
+		}
+
+		for (Map.Entry<FileChannel, List<Append>> entry : appendsByFile.entrySet()) {
+			try {
+				bytes += this.writeFile(entry.getKey(), entry.getValue());
+				entry.getValue().forEach(append -> append.written().complete(null));
+			} catch (IOException e) {
+				log.error("Error while writing {} messages to a history file", entry.getValue().size(), e);
+				entry.getValue().forEach(append -> append.written().completeExceptionally(e));
+				this.listener.onWriteFailed(entry.getValue().size());
+			}
+		}
+
+		this.listener.onBatchWritten(batch.size(), appendsByFile.size(), bytes, System.nanoTime() - start);
+	}
+
+	/**
+	 * Writes the messages of a file with a single gathering write (or as few as possible).
+	 *
+	 * @return number of bytes written.
+	 */
+	private long writeFile(FileChannel channel, List<Append> appends) throws IOException {
+		ByteBuffer[] buffers = new ByteBuffer[appends.size()];
+		long bytes = 0;
+
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = appends.get(i).bytes();
+			bytes += buffers[i].remaining();
+		}
+
+		long written = 0;
+
+		while (written < bytes) {
+			written += channel.write(buffers);
+		}
+
+		if (this.durability == HistoryDurability.FSYNC) {
+			channel.force(false);
+		}
+
+		return bytes;
+	}
+
+	private record Append(FileChannel channel, ByteBuffer bytes, CompletableFuture<Void> written) {
+	}
+}
@@ -0,0 +1,31 @@
+package rs.chat.cache;
+
+/**
+ * Receives the events of the {@link HistoryWriter}.
+ */
+public interface HistoryWriterListener {
+	/**
+	 * Listener that ignores all the events.
+	 */
+	HistoryWriterListener NO_OP = new HistoryWriterListener() {
+	};
+
+	/**
+	 * Called when a batch of messages has been written.
+	 *
+	 * @param messages number of messages of the batch.
+	 * @param files    number of history files written.
+	 * @param bytes    bytes written.
+	 * @param nanos    time spent writing (and synchronizing) the files.
+	 */
+	default void onBatchWritten(int messages, int files, long bytes, long nanos) {
+	}
+
+	/**
+	 * Called when the messages of a history file could not be written.
+	 *
+	 * @param messages number of messages lost.
+	 */
+	default void onWriteFailed(int messages) {
+	}
+}
@@ -1,5 +1,6 @@
 package rs.chat.config.security;
 
+import jakarta.servlet.DispatcherType;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Bean;
@@ -137,6 +138,13 @@ public class WebSecurityConfig {
 				    EIGHT_BALL_URL
 		    )
 		    .permitAll();
+
+		// Controllers that complete asynchronously (e.g. the uploads) are dispatched again
+		// once they complete. The original request has already been authorized, and the
+		// authentication is not kept between requests (stateless sessions).
+		http.authorizeHttpRequests()
+		    .dispatcherTypeMatchers(DispatcherType.ASYNC)
+		    .permitAll();
 	}
 
 	/**
@@ -6,6 +6,7 @@ import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 import rs.chat.net.ws.WebSocketHandler;
+import rs.chat.net.ws.protocol.ProtocolHandshakeHandler;
 
 import static rs.chat.router.Routes.WS_CHAT_ENDPOINT;
 import static rs.chat.utils.Constants.ACCEPTED_ORIGINS;
@@ -26,6 +27,7 @@ public class WebSocketConfig implements WebSocketConfigurer {
 	@Override
 	public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
 		registry.addHandler(this.webSocketHandler, WS_CHAT_ENDPOINT)
+		        .setHandshakeHandler(new ProtocolHandshakeHandler())
 		        .setAllowedOrigins(ACCEPTED_ORIGINS.toArray(STRING_ARRAY));
 	}
 }
@@ -15,6 +15,8 @@ import rs.chat.net.http.HttpRequest;
 
 import java.io.IOException;
 
+import static rs.chat.router.Routes.PostRoute.UPLOAD_STREAM_URL;
+
 /**
  * Class that caches the request received in the server. This allows to
  * read the body of the request multiple times.
@@ -42,4 +44,15 @@ public class HttpRequestContentCachingFilter extends OncePerRequestFilter {
 	                                FilterChain filterChain) throws ServletException, IOException {
 		filterChain.doFilter(new HttpRequest(request), response);
 	}
+
+	/**
+	 * The body of the streaming uploads is not cached, it is read by the controller
+	 * while it is received.
+	 * <p>
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean shouldNotFilter(@NotNull HttpServletRequest request) {
+		return request.getRequestURI().equals(UPLOAD_STREAM_URL);
+	}
 }
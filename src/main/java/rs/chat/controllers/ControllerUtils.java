@@ -9,6 +9,8 @@ import org.springframework.web.bind.annotation.ResponseStatus;
 import rs.chat.net.http.HttpResponse;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
 @Slf4j
@@ -34,18 +36,66 @@ public final class ControllerUtils {
 		try {
 			return action.apply();
 		} catch (Exception e) {
-			// Get the status of the exception with reflection
-			ResponseStatus annotation = e.getClass().getAnnotation(ResponseStatus.class);
+			sendError(res, e);
+			throw e; // Exit from executing the rest of the controller method.
+		}
+	}
+
+	/**
+	 * Sends the error to the response, with the status of the exception (see
+	 * {@link #performActionThatMayThrowException(HttpResponse, Function0)}), and logs it.
+	 *
+	 * @param res response to send the error to.
+	 * @param e   the error.
+	 *
+	 * @throws IOException if an error occurs while sending the response.
+	 */
+	private static void sendError(HttpResponse res, Throwable e) throws IOException {
+		// Get the status of the exception with reflection
+		ResponseStatus annotation = e.getClass().getAnnotation(ResponseStatus.class);
 
-			// If the exception does not have a status, set the response to 502
-			// to indicate that the handled exception does not have the annotation.
-			HttpStatus status = annotation == null
-			                    ? HttpStatus.BAD_GATEWAY
-			                    : annotation.value(); // If the exception has a status, set it to the response
+		// If the exception does not have a status, set the response to 502
+		// to indicate that the handled exception does not have the annotation.
+		HttpStatus status = annotation == null
+		                    ? HttpStatus.BAD_GATEWAY
+		                    : annotation.value(); // If the exception has a status, set it to the response
 
-			res.status(status).send(e.getMessage());
-			log.error("Error while performing action", e);
-			throw e; // Exit from executing the rest of the controller method.
+		res.status(status).send(e.getMessage());
+		log.error("Error while performing action", e);
+	}
+
+	/**
+	 * Performs the given asynchronous function. If the function throws an exception or the
+	 * returned future completes exceptionally, the error is sent to the response as in
+	 * {@link #performActionThatMayThrowException(HttpResponse, Function0)}.
+	 *
+	 * @param res    response to send the error to.
+	 * @param action function to perform.
+	 * @param <R>    type of the result.
+	 *
+	 * @return future completed with the result of the function, or exceptionally (with the
+	 * original exception) once the error has been sent.
+	 */
+	public static <R> CompletableFuture<R> performAsyncActionThatMayThrowException(HttpResponse res,
+	                                                                               Function0<CompletableFuture<R>> action) {
+		CompletableFuture<R> result;
+
+		try {
+			result = performActionThatMayThrowException(res, action);
+		} catch (Exception e) {
+			return CompletableFuture.failedFuture(e); // The error has already been sent
 		}
+
+		return result.exceptionallyCompose(e -> {
+			Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+
+			try {
+				sendError(res, cause);
+			} catch (IOException sendException) {
+				cause.addSuppressed(sendException);
+			}
+
+			return CompletableFuture.failedFuture(cause);
+		});
 	}
 }
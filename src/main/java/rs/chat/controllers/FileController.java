@@ -1,12 +1,16 @@
 package rs.chat.controllers;
 
 import com.google.gson.JsonObject;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
+import org.jooq.lambda.function.Function0;
 import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.util.MimeType;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import rs.chat.ai.events.NSFWUploadEvent;
 import rs.chat.ai.nsfw.NSFWService;
@@ -20,14 +24,32 @@ import rs.chat.exceptions.NSFWContentException;
 import rs.chat.net.http.HttpRequest;
 import rs.chat.net.http.HttpResponse;
 import rs.chat.storage.strategies.upload.FileUploadStrategy;
+import rs.chat.storage.strategies.upload.ImageVariants;
 import rs.chat.storage.strategies.upload.MediaUploadDTO;
+import rs.chat.storage.strategies.upload.MediaUploadPipeline;
 import rs.chat.storage.strategies.upload.UploadMappings;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Clock;
 import java.time.Instant;
 import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+import static org.springframework.util.MimeTypeUtils.APPLICATION_OCTET_STREAM_VALUE;
+import static rs.chat.router.Routes.PostRoute.UPLOAD_STREAM_URL;
 import static rs.chat.router.Routes.PostRoute.UPLOAD_URL;
 import static rs.chat.utils.Constants.MAX_FILE_BYTES;
 
@@ -44,16 +66,31 @@ public class FileController {
 	private final Clock clock;
 	private final ApplicationEventPublisher eventPublisher;
 
+	private static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * File uploaded by a client, stored in a temporary file.
+	 *
+	 * @param path the temporary file.
+	 * @param hash SHA-256 of the content of the file, in hexadecimal.
+	 */
+	private record StoredFile(Path path, String hash) {
+	}
+
 	/**
-	 * Uploads a file to the server.
+	 * Uploads a file to the server. The file is sent encoded in base64 inside a JSON body,
+	 * so it is held in memory several times; prefer {@link #uploadFileStream}.
+	 * <p>
+	 * The file is uploaded to S3 without blocking the request thread, and the response is
+	 * sent when the upload completes.
 	 *
 	 * @param request request that contains the file.
 	 * @param res     response that will be sent to the client.
 	 *
-	 * @throws IOException if an I/O error occurs.
+	 * @return future completed when the response has been sent.
 	 */
 	@PostMapping(UPLOAD_URL)
-	public void uploadFile(HttpRequest request, HttpServletResponse res) throws IOException {
+	public CompletableFuture<Void> uploadFile(HttpRequest request, HttpServletResponse res) {
 		HttpResponse response = new HttpResponse(res);
 		JsonObject body = request.body();
 
@@ -61,52 +98,257 @@ public class FileController {
 		JsonObject file = body.get("file").getAsJsonObject();
 		String fileName = file.get("name").getAsString().replace(" ", "_");
 		String mimeType = file.get("type").getAsString();
-		String[] mimeTypes = mimeType.split("/");
 		String encodedData = file.get("data").getAsString().split(",")[1];
 
-		FileDto fileDto = ControllerUtils.performActionThatMayThrowException(response, () -> {
+		return this.upload(response, userId, fileName, mimeType, () -> {
 			byte[] fileBytes = Base64.getDecoder().decode(encodedData);
 
-			if (fileBytes.length == 0) {
-				throw new BadRequestException("File is empty");
-			} else if (fileBytes.length > MAX_FILE_BYTES) {
+			if (fileBytes.length > MAX_FILE_BYTES) {
 				throw new BadRequestException("File is too big");
 			}
 
+			Path path = createTempFile();
+
 			try {
-				checkForNSFWOfImageOrGif(fileName, encodedData, mimeTypes[1]);
-			} catch (NSFWContentException e) {
-				this.eventPublisher.publishEvent(new NSFWUploadEvent(this, userId));
-				throw e; // Throw the exception so that the file is not uploaded
+				Files.write(path, fileBytes);
+			} catch (IOException e) {
+				deleteTempFile(path);
+				throw new CouldNotUploadFileException(e.getMessage());
 			}
 
-			File fileToSave = new File(
-					null,
-					fileName,
-					Instant.now(this.clock),
-					fileBytes.length,
-					"",
-					new JsonObject(),
-					mimeTypes[0],
-					this.userService.getUserById(userId)
-			);
+			return new StoredFile(path, HexFormat.of().formatHex(sha256().digest(fileBytes)));
+		}, path -> encodedData);
+	}
+
+	/**
+	 * Uploads a file to the server. The body of the request is the content of the file,
+	 * whose MIME type is the content type of the request. The body is written to a temporary
+	 * file while it is received, so the file is never held in memory.
+	 * <p>
+	 * The file is uploaded to S3 without blocking the request thread, and the response is
+	 * sent when the upload completes.
+	 *
+	 * @param request request whose body is the file.
+	 * @param res     response that will be sent to the client.
+	 * @param userId  id of the user that uploads the file.
+	 * @param name    name of the file.
+	 *
+	 * @return future completed when the response has been sent.
+	 */
+	@PostMapping(UPLOAD_STREAM_URL)
+	public CompletableFuture<Void> uploadFileStream(HttpServletRequest request, HttpServletResponse res,
+	                                                @RequestParam Long userId, @RequestParam String name) {
+		HttpResponse response = new HttpResponse(res);
+		String fileName = name.replace(" ", "_");
+		String mimeType = Optional.ofNullable(request.getContentType())
+		                          .map(MimeType::valueOf)
+		                          .map(type -> type.getType() + "/" + type.getSubtype())
+		                          .orElse(APPLICATION_OCTET_STREAM_VALUE); // Not supported by any strategy
+
+		return this.upload(response, userId, fileName, mimeType, () -> {
+			if (request.getContentLengthLong() > MAX_FILE_BYTES) {
+				throw new BadRequestException("File is too big");
+			}
 
 			try {
-				FileUploadStrategy strategy = UploadMappings.getStrategy(mimeType);
+				return storeInTempFile(request.getInputStream());
+			} catch (IOException e) {
+				throw new CouldNotUploadFileException(e.getMessage());
+			}
+		}, FileController::encodeFile);
+	}
+
+	/**
+	 * Checks and uploads a file stored in a temporary file, which is deleted once it has
+	 * been uploaded (or once the variants of the image have been generated), and saves it.
+	 * <p>
+	 * If a file with the same content and type has already been uploaded, the new file
+	 * reuses its object in S3 and its metadata: the file is not uploaded nor checked again.
+	 *
+	 * @param response response that will be sent to the client.
+	 * @param userId   id of the user that uploads the file.
+	 * @param fileName name of the file.
+	 * @param mimeType MIME type of the file.
+	 * @param store    stores the content of the file in a temporary file and hashes it.
+	 * @param base64   returns the content of the file, encoded in base64 (only for the
+	 *                 files that are checked to be NSFW).
+	 *
+	 * @return future completed when the response has been sent.
+	 */
+	private CompletableFuture<Void> upload(HttpResponse response, Long userId, String fileName, String mimeType,
+	                                       Function0<StoredFile> store, Function<Path, String> base64) {
+		String[] mimeTypes = mimeType.split("/");
+
+		CompletableFuture<FileDto> upload = ControllerUtils.performAsyncActionThatMayThrowException(response, () -> {
+			FileUploadStrategy strategy = UploadMappings.getStrategy(mimeType);
+			StoredFile stored = store.apply();
+			Path path = stored.path();
+			CompletableFuture<FileDto> saved;
+			File fileToSave;
+
+			try {
+				long size = Files.size(path);
+
+				if (size == 0) {
+					throw new BadRequestException("File is empty");
+				}
+
+				fileToSave = new File(
+						null,
+						fileName,
+						Instant.now(this.clock),
+						(int) size,
+						"",
+						new JsonObject(),
+						mimeTypes[0],
+						this.userService.getUserById(userId),
+						stored.hash()
+				);
+
+				Optional<File> existing = this.fileService.findByHash(stored.hash(), mimeTypes[0]);
+
+				if (existing.isPresent()) {
+					deleteTempFile(path);
+					fileToSave.setPath(existing.get().getPath());
+					fileToSave.setMetadata(existing.get().getMetadata().deepCopy());
+					log.info("File ({}) already uploaded, reusing {}", fileName, fileToSave.getPath());
+					return CompletableFuture.completedFuture(this.fileService.save(fileToSave));
+				}
+
 				log.info("Uploading file ({}) with strategy ({})", fileName, strategy.getClass().getSimpleName());
-				strategy.handle(new MediaUploadDTO(fileBytes, mimeTypes[1], fileToSave)); // Modifies the fileToSave object
+				saved = MediaUploadPipeline.INSTANCE.upload( // Modifies the fileToSave object
+						strategy,
+						new MediaUploadDTO(path, size, mimeTypes[1], fileToSave),
+						() -> checkForNSFWOfImageOrGif(fileName, stored, () -> base64.apply(path), mimeTypes[1]),
+						() -> this.fileService.save(fileToSave),
+						() -> this.fileService.findByHash(stored.hash(), mimeTypes[0]).isPresent()
+				);
 			} catch (IOException e) {
+				deleteTempFile(path);
 				throw new CouldNotUploadFileException(e.getMessage());
+			} catch (RuntimeException e) {
+				deleteTempFile(path);
+				throw e;
 			}
 
-			return this.fileService.save(fileToSave);
+			saved.whenComplete((fileDto, e) -> {
+				if (e == null && ImageVariants.supports(mimeTypes[1])) {
+					this.generateVariants(fileDto, path); // Deletes the temporary file when finished
+				} else {
+					deleteTempFile(path);
+				}
+
+				if (e != null && e.getCause() instanceof NSFWContentException) {
+					this.eventPublisher.publishEvent(new NSFWUploadEvent(this, userId));
+				}
+			});
+
+			return saved;
+		});
+
+		return upload.thenAccept(fileDto -> {
+			try {
+				response.ok().send(fileDto);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			log.info("File ({}) uploaded successfully", fileName);
 		});
+	}
+
+	/**
+	 * Generates the variants of an uploaded image in the background and adds their URIs to
+	 * the metadata of the file ({@code variants}). The response is not delayed.
+	 *
+	 * @param fileDto the uploaded image.
+	 * @param path    temporary file of the image, deleted when the variants are generated.
+	 */
+	private void generateVariants(FileDto fileDto, Path path) {
+		ImageVariants.INSTANCE.generate(path, URI.create(fileDto.path()))
+		                      .whenComplete((variants, e) -> deleteTempFile(path))
+		                      .thenAccept(variants -> {
+			                      if (!variants.isEmpty()) {
+				                      JsonObject uris = new JsonObject();
+				                      variants.forEach((variant, uri) -> uris.addProperty(variant, uri.toString()));
+				                      this.fileService.addMetadata(fileDto.id(), "variants", uris);
+			                      }
+		                      })
+		                      .exceptionally(e -> {
+			                      log.warn("Could not generate the variants of image ({})", fileDto.name(), e);
+			                      return null;
+		                      });
+	}
+
+	/**
+	 * Writes the given stream to a temporary file, checking that it is not bigger than
+	 * {@link rs.chat.utils.Constants#MAX_FILE_BYTES}, and hashes it while it is written.
+	 *
+	 * @param content stream with the content of the file.
+	 *
+	 * @return the temporary file and its hash.
+	 *
+	 * @throws IOException if the stream cannot be read or the file cannot be written.
+	 */
+	private static StoredFile storeInTempFile(InputStream content) throws IOException {
+		Path path = createTempFile();
+		MessageDigest digest = sha256();
+
+		try (InputStream in = content; OutputStream out = new DigestOutputStream(Files.newOutputStream(path), digest)) {
+			byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
+			long size = 0;
+			int read;
+
+			while ((read = in.read(buffer)) >= 0) {
+				size += read;
+
+				if (size > MAX_FILE_BYTES) {
+					throw new BadRequestException("File is too big");
+				}
+
+				out.write(buffer, 0, read);
+			}
+		} catch (IOException | RuntimeException e) {
+			deleteTempFile(path);
+			throw e;
+		}
 
-		response.ok().send(fileDto);
-		log.info("File ({}) uploaded successfully", fileName);
+		return new StoredFile(path, HexFormat.of().formatHex(digest.digest()));
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // Every Java platform supports SHA-256
+		}
+	}
+
+	private static Path createTempFile() {
+		try {
+			return Files.createTempFile("upload-", null);
+		} catch (IOException e) {
+			throw new CouldNotUploadFileException(e.getMessage());
+		}
+	}
+
+	private static void deleteTempFile(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			log.warn("Could not delete temporary file {}", path, e);
+		}
+	}
+
+	private static String encodeFile(Path path) {
+		try {
+			return Base64.getEncoder().encodeToString(Files.readAllBytes(path));
+		} catch (IOException e) {
+			throw new CouldNotUploadFileException(e.getMessage());
+		}
 	}
 
-	private void checkForNSFWOfImageOrGif(String fileName, String base64File, @NotNull String mimeType) {
+	private void checkForNSFWOfImageOrGif(String fileName, StoredFile file, Supplier<String> base64File, @NotNull String mimeType) {
 		String serviceEndpoint;
 
 		if (mimeType.matches("^(jp(e)?g|png)$")) {
@@ -117,7 +359,7 @@ public class FileController {
 			return;
 		}
 
-		if (this.nsfwService.isNSFW(base64File, serviceEndpoint)) {
+		if (this.nsfwService.isNSFW(file.hash(), file.path(), base64File, serviceEndpoint)) {
 			throw new NSFWContentException("File %s is NSFW".formatted(fileName));
 		}
 	}
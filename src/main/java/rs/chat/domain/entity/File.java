@@ -8,6 +8,7 @@ import jakarta.persistence.FetchType;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.ManyToOne;
 import jakarta.persistence.Table;
@@ -32,7 +33,7 @@ import java.time.Instant;
 @ToString
 @Entity
 @Builder
-@Table(name = "files")
+@Table(name = "files", indexes = @Index(name = "ix_file_hash", columnList = "hash"))
 public class File {
 	@Id
 	@GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -72,4 +73,12 @@ public class File {
 	@JoinColumn(name = "user_id", nullable = false)
 	@ToString.Exclude
 	private User user;
+
+	/**
+	 * SHA-256 of the content of the file, in hexadecimal. The files with the same content
+	 * share the object in S3.
+	 */
+	@Size(max = 64)
+	@Column(name = "hash", length = 64)
+	private String hash;
 }
@@ -3,6 +3,10 @@ package rs.chat.domain.repository;
 import org.springframework.data.jpa.repository.JpaRepository;
 import rs.chat.domain.entity.File;
 
+import java.util.Optional;
+
 public interface FileRepository extends JpaRepository<File, Long> {
 	File findByName(String name);
+
+	Optional<File> findFirstByHashAndType(String hash, String type);
 }
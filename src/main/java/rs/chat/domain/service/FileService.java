@@ -1,5 +1,7 @@
 package rs.chat.domain.service;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
@@ -8,6 +10,9 @@ import rs.chat.domain.entity.File;
 import rs.chat.domain.entity.dtos.FileDto;
 import rs.chat.domain.entity.mappers.FileMapper;
 import rs.chat.domain.repository.FileRepository;
+import rs.chat.exceptions.NotFoundException;
+
+import java.util.Optional;
 
 @Service
 @RequiredArgsConstructor
@@ -20,4 +25,34 @@ public class FileService {
 	public FileDto save(File file) {
 		return this.fileMapper.toDto(this.fileRepository.save(file));
 	}
+
+	/**
+	 * Finds a file with the given content, to reuse its object in S3 and its metadata.
+	 *
+	 * @param hash SHA-256 of the content of the file, in hexadecimal.
+	 * @param type type of the file.
+	 *
+	 * @return the file, or empty if no file with that content has been uploaded.
+	 */
+	public Optional<File> findByHash(String hash, String type) {
+		return this.fileRepository.findFirstByHashAndType(hash, type);
+	}
+
+	/**
+	 * Adds a property to the metadata of a file, replacing it if it exists.
+	 *
+	 * @param id    id of the file.
+	 * @param key   name of the property.
+	 * @param value value of the property.
+	 */
+	public void addMetadata(Long id, String key, JsonElement value) {
+		File file = this.fileRepository.findById(id)
+		                                .orElseThrow(() -> new NotFoundException("File with id %d not found.".formatted(id)));
+
+		// Replace the object so that the change is detected
+		JsonObject metadata = file.getMetadata().deepCopy();
+		metadata.add(key, value);
+		file.setMetadata(metadata);
+		this.fileRepository.save(file);
+	}
 }
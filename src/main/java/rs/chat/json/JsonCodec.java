@@ -0,0 +1,299 @@
+package rs.chat.json;
+
+import com.fatboyindustrial.gsonjavatime.Converters;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serialization of the JSON sent to the clients (WebSocket messages and HTTP responses).
+ * <p>
+ * Everything is written with Gson (the library used to read the messages), directly from
+ * the objects to the output, without building intermediate trees or converting them to
+ * other libraries. The type adapters are cached by class, so they are only looked up once.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class JsonCodec {
+	/**
+	 * Same configuration as {@link rs.chat.utils.Constants#GSON}, but without escaping HTML
+	 * characters, since the output is never embedded in HTML.
+	 */
+	private static final Gson WRITER = Converters.registerAll(new GsonBuilder())
+	                                             .disableHtmlEscaping()
+	                                             .create();
+	private static final int BUFFER_SIZE = 8192;
+	private static final Map<Class<?>, TypeAdapter<Object>> ADAPTERS = new ConcurrentHashMap<>();
+	private static final byte[] ARRAY_MESSAGE_SUFFIX = "]\"}}".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] VALUE_SEPARATOR = {','};
+	private static final byte[] NULL_VALUE = "null,".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Writes the given value as JSON. {@code null} values inside objects are omitted.
+	 * <p>
+	 * The output is buffered, since {@link JsonWriter} writes every token separately and
+	 * servlet writers may flush on each write.
+	 *
+	 * @param value value to write.
+	 * @param out   writer to write the JSON to. It is flushed, but not closed.
+	 *
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public static void write(@Nullable Object value, Writer out) throws IOException {
+		JsonWriter writer = WRITER.newJsonWriter(new BufferedWriter(out, BUFFER_SIZE));
+		writeValue(writer, value);
+		writer.flush();
+	}
+
+	/**
+	 * Converts the given value to JSON.
+	 *
+	 * @param value value to convert.
+	 *
+	 * @return the JSON string.
+	 */
+	public static String toJson(@Nullable Object value) {
+		StringWriter out = new StringWriter();
+
+		try {
+			writeValue(WRITER.newJsonWriter(out), value);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // Never happens with a StringWriter
+		}
+
+		return out.toString();
+	}
+
+	/**
+	 * Writes a WebSocket message with the structure described in
+	 * {@link rs.chat.net.ws.JsonMessageWrapper} (without session id and token).
+	 *
+	 * @param username username of the sender.
+	 * @param chatId   chat id of the message.
+	 * @param type     type of the message.
+	 * @param date     date of the message.
+	 * @param content  content of the message.
+	 *
+	 * @return the message as a JSON string.
+	 */
+	public static String message(String username, String chatId, String type, long date, String content) {
+		// The structure is fixed, so it is written directly instead of using a JsonWriter.
+		StringBuilder out = headers(username, chatId, type, date, content == null ? 128 : content.length() + 128);
+		appendString(out, content);
+		return out.append("}}").toString();
+	}
+
+	/**
+	 * Writes a WebSocket message like {@link #message(String, String, String, long, String)}
+	 * whose content is a JSON array (as a string) with the given JSON values, one per line.
+	 * <p>
+	 * The lines are copied to the message as they are, only escaping them to be inside a
+	 * JSON string, without decoding nor parsing them. They must be JSON values without line
+	 * breaks, as the lines of the history files. The control characters are escaped inside
+	 * the strings of the values (the history stores them as the clients sent them) and
+	 * removed outside them, and blank lines are written as {@code null}.
+	 *
+	 * @param username username of the sender.
+	 * @param chatId   chat id of the message.
+	 * @param type     type of the message.
+	 * @param date     date of the message.
+	 * @param lines    UTF-8 JSON values, each one followed by a line break (between the
+	 *                 position and the limit of the buffers, which are not modified). A
+	 *                 buffer may contain several lines, but a line cannot be split.
+	 *
+	 * @return the message as UTF-8 bytes.
+	 */
+	public static byte[] arrayMessage(String username, String chatId, String type, long date, ByteBuffer... lines) {
+		byte[] prefix = headers(username, chatId, type, date, 128).append("\"[").toString()
+		                                                           .getBytes(StandardCharsets.UTF_8);
+
+		// The size of the message is computed first, so the lines are copied only once.
+		int escapedSize = 0;
+
+		for (ByteBuffer buffer : lines) {
+			escapedSize = copyEscaped(buffer, null, escapedSize);
+		}
+
+		// The separator after the last value is not copied, it is where the array ends.
+		boolean empty = escapedSize == 0;
+		byte[] out = new byte[prefix.length + (empty ? 0 : escapedSize - 1) + ARRAY_MESSAGE_SUFFIX.length];
+		System.arraycopy(prefix, 0, out, 0, prefix.length);
+		int written = prefix.length;
+
+		for (ByteBuffer buffer : lines) {
+			written = copyEscaped(buffer, out, written);
+		}
+
+		int end = empty ? written : written - 1;
+		System.arraycopy(ARRAY_MESSAGE_SUFFIX, 0, out, end, ARRAY_MESSAGE_SUFFIX.length);
+		return out;
+	}
+
+	/**
+	 * Copies the lines to the output escaping them to be inside a JSON string. The line
+	 * breaks are replaced by commas, the control characters are escaped inside the strings
+	 * of the values and removed outside them, and blank lines are replaced by {@code null}.
+	 *
+	 * @param out     output to copy the lines to, or {@code null} to only count the bytes.
+	 * @param written position of the output to copy the lines at.
+	 *
+	 * @return the position of the output after the copied bytes (also if it is {@code null}).
+	 */
+	private static int copyEscaped(ByteBuffer lines, byte @Nullable [] out, int written) {
+		int copied = lines.position();
+		boolean inString = false;
+		boolean escaping = false;
+		boolean blank = true;
+
+		for (int i = lines.position(); i < lines.limit(); i++) {
+			byte b = lines.get(i);
+			boolean escaped = escaping;
+			escaping = false;
+
+			if (b == '\n') {
+				written = copy(lines, copied, i, out, written);
+				written = copy(blank ? NULL_VALUE : VALUE_SEPARATOR, out, written);
+				copied = i + 1;
+				inString = false;
+				blank = true;
+				continue;
+			}
+
+			blank &= b == ' ' || b == '\t' || b == '\r';
+
+			if (b == '"') {
+				inString ^= !escaped;
+			} else if (b == '\\') {
+				escaping = inString && !escaped;
+			} else if (b < 0 || b >= 0x20) {
+				continue; // Copied as it is
+			}
+
+			written = copy(lines, copied, i, out, written);
+			copied = i + 1;
+
+			if (b == '"' || b == '\\') {
+				// Escaped for the JSON string of the content
+				if (out != null) {
+					out[written] = '\\';
+					out[written + 1] = b;
+				}
+
+				written += 2;
+			} else if (inString) {
+				// Escaped for the string of the value (backslash, u, 4 hex digits) and then for the content
+				if (out != null) {
+					out[written] = '\\';
+					out[written + 1] = '\\';
+					out[written + 2] = 'u';
+					out[written + 3] = '0';
+					out[written + 4] = '0';
+					out[written + 5] = HEX_DIGITS[b >> 4];
+					out[written + 6] = HEX_DIGITS[b & 0xF];
+				}
+
+				written += 7;
+			} // Outside the strings the control characters are whitespace, they are removed
+		}
+
+		return copy(lines, copied, lines.limit(), out, written);
+	}
+
+	private static int copy(ByteBuffer lines, int from, int to, byte @Nullable [] out, int written) {
+		if (out != null) {
+			lines.get(from, out, written, to - from);
+		}
+
+		return written + to - from;
+	}
+
+	private static int copy(byte[] bytes, byte @Nullable [] out, int written) {
+		if (out != null) {
+			System.arraycopy(bytes, 0, out, written, bytes.length);
+		}
+
+		return written + bytes.length;
+	}
+
+	private static StringBuilder headers(String username, String chatId, String type, long date, int capacity) {
+		StringBuilder out = new StringBuilder(capacity);
+		out.append("{\"headers\":{\"username\":");
+		appendString(out, username);
+		out.append(",\"chatId\":");
+		appendString(out, chatId);
+		out.append(",\"type\":");
+		appendString(out, type);
+		out.append(",\"date\":").append(date);
+		return out.append("},\"body\":{\"content\":");
+	}
+
+	/**
+	 * Appends the given string as a JSON string (quoted and escaped).
+	 *
+	 * @param out   builder to append the string to.
+	 * @param value string to append ({@code null} is appended as a JSON null).
+	 */
+	public static void appendString(StringBuilder out, @Nullable String value) {
+		if (value == null) {
+			out.append("null");
+			return;
+		}
+
+		out.append('"');
+		int copied = 0;
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			String escaped;
+
+			if (c == '"') {
+				escaped = "\\\"";
+			} else if (c == '\\') {
+				escaped = "\\\\";
+			} else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+				escaped = switch (c) {
+					case '\n' -> "\\n";
+					case '\r' -> "\\r";
+					case '\t' -> "\\t";
+					case '\b' -> "\\b";
+					case '\f' -> "\\f";
+					default -> "\\u%04x".formatted((int) c);
+				};
+			} else {
+				continue;
+			}
+
+			out.append(value, copied, i).append(escaped);
+			copied = i + 1;
+		}
+
+		out.append(value, copied, value.length()).append('"');
+	}
+
+	private static void writeValue(JsonWriter writer, @Nullable Object value) throws IOException {
+		if (value == null) {
+			writer.nullValue();
+		} else {
+			adapterFor(value.getClass()).write(writer, value);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static TypeAdapter<Object> adapterFor(Class<?> type) {
+		return ADAPTERS.computeIfAbsent(type, t -> (TypeAdapter<Object>) WRITER.getAdapter(t));
+	}
+}
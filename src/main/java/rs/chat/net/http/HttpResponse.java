@@ -1,7 +1,5 @@
 package rs.chat.net.http;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpServletResponseWrapper;
 import lombok.extern.slf4j.Slf4j;
@@ -9,17 +7,18 @@ import org.jetbrains.annotations.NotNull;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import rs.chat.exceptions.InternalServerException;
+import rs.chat.json.JsonCodec;
 import rs.chat.utils.Constants;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import static org.springframework.http.HttpHeaders.LOCATION;
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
 import static rs.chat.utils.Constants.DATA_JSON_KEY;
 import static rs.chat.utils.Constants.ERROR_JSON_KEY;
-import static rs.chat.utils.Constants.GSON;
-import static rs.chat.utils.Constants.OBJECT_MAPPER;
 
 /**
  * Class that simplifies the management of the response to the client.
@@ -155,13 +154,7 @@ public class HttpResponse extends HttpServletResponseWrapper {
 
 		this.setContentType(APPLICATION_JSON_VALUE);
 
-		if (body == HttpResponseBody.EMPTY) {
-			// This is done like this to send a completely empty response body.
-			this.getWriter().print(body.value()); // Empty string
-			return;
-		}
-
-		JsonElement responseBody = body.data;
+		Object responseBody = body.data;
 
 		// If the response body contains only one element, send it directly (without the key)
 		// to simplify the json sent to the client.
@@ -170,19 +163,20 @@ public class HttpResponse extends HttpServletResponseWrapper {
 		}
 
 		// Serialize the response body to json and send it to the client.
-		OBJECT_MAPPER.writeValue(this.getWriter(), responseBody);
+		JsonCodec.write(responseBody, this.getWriter());
 	}
 
 	/**
 	 * Class that represents the body of a response.
-	 * Contains a {@link JsonObject} of elements to be sent in the response.
+	 * Contains the elements to be sent in the response, which are serialized when the
+	 * response is sent (see {@link JsonCodec}).
 	 */
 	public static class HttpResponseBody {
 		/**
 		 * An empty response body.
 		 */
 		public static final HttpResponseBody EMPTY = new HttpResponseBody(DATA_JSON_KEY, "");
-		private final JsonObject data = new JsonObject();
+		private final Map<String, Object> data = new LinkedHashMap<>();
 
 		/**
 		 * Constructs a response body with the given key and value.
@@ -203,7 +197,7 @@ public class HttpResponse extends HttpServletResponseWrapper {
 		 * @return this response body with the element added.
 		 */
 		public HttpResponseBody add(String key, Object value) {
-			this.data.add(key, GSON.toJsonTree(value));
+			this.data.put(key, value);
 			return this;
 		}
 
@@ -212,8 +206,8 @@ public class HttpResponse extends HttpServletResponseWrapper {
 		 *
 		 * @return the value of the first element in the body.
 		 */
-		public JsonElement value() {
-			return this.data.asMap().values().iterator().next();
+		public Object value() {
+			return this.data.values().iterator().next();
 		}
 	}
 }
@@ -1,38 +1,64 @@
 package rs.chat.net.ws;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
-import rs.chat.cache.CachedHistoryFile;
+import org.jetbrains.annotations.Nullable;
+import rs.chat.cache.ChatHistory;
+import rs.chat.cache.ColdPageCache;
 import rs.chat.cache.HistoryFilesCache;
-import rs.chat.storage.S3;
+import rs.chat.net.ws.protocol.EncodedMessage;
+import rs.chat.observability.metrics.Metrics;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.stream.IntStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
+import static rs.chat.utils.Constants.HISTORY_TAIL_MESSAGES;
+
 /**
- * Class that stores the clients in a {@link CopyOnWriteArrayList} and have
- * a {@link CachedHistoryFile} associated to a file to store all the messages received.
- * This allows to read and write to the file faster, since the file is cached in memory.
+ * Class that stores the clients in a {@link ClientRegistry} and have
+ * a {@link ChatHistory} associated to a file to store all the messages received.
+ * The last messages are kept in memory, so the pages requested by the clients when they
+ * connect are not read from the file.
  */
 @Getter
 @Slf4j
 public class Chat {
 	private final String chatId;
-	private final CopyOnWriteArrayList<Client> clients = new CopyOnWriteArrayList<>();
-	private final CachedHistoryFile historyFile;
+	@Getter(AccessLevel.NONE)
+	private final ClientRegistry clients = new ClientRegistry();
+	@Getter(AccessLevel.NONE)
+	private final ChatHistory history;
+	@Getter(AccessLevel.NONE)
+	private final Metrics metrics;
 
 	/**
 	 * Creates the chat with the specified chatId.
 	 *
-	 * @param chatId id of the chat that is created.
+	 * @param chatId  id of the chat that is created.
+	 * @param metrics metrics to record the outbound frames of the chat.
 	 */
-	public Chat(String chatId) {
+	public Chat(String chatId, Metrics metrics) {
+		this(chatId, metrics, new ChatHistory(chatId, HistoryFilesCache.INSTANCE, ColdPageCache.INSTANCE, HISTORY_TAIL_MESSAGES));
+	}
+
+	/**
+	 * Creates the chat with the specified chatId and history.
+	 *
+	 * @param chatId  id of the chat that is created.
+	 * @param metrics metrics to record the outbound frames of the chat.
+	 * @param history history of the chat.
+	 */
+	public Chat(String chatId, Metrics metrics, ChatHistory history) {
 		this.chatId = chatId;
-		this.historyFile = HistoryFilesCache.INSTANCE.get(chatId);
+		this.metrics = metrics;
+		this.history = history;
 	}
 
 	/**
@@ -60,26 +86,10 @@ public class Chat {
 	 *
 	 * @param clientID id of the client to remove.
 	 *
-	 * @return {@code true} if the client was removed, {@code false} otherwise.
+	 * @return {@link Optional} with the removed client, empty if the client was not in the chat.
 	 */
-	public boolean removeClient(ClientID clientID) {
-		final int ignoredIndex = -1;
-		final boolean[] removed = { false };
-
-		return IntStream.range(0, this.clients.size())
-		                .map(i -> {
-			                Client client = this.clients.get(i);
-
-			                if (!removed[0] && client.getClientID().equals(clientID)) {
-				                this.clients.remove(i);
-				                removed[0] = true;
-
-				                return i;
-			                }
-
-			                return ignoredIndex;
-		                })
-		                .anyMatch(i -> i != ignoredIndex /* A user was removed */);
+	public Optional<Client> removeClient(ClientID clientID) {
+		return Optional.ofNullable(this.clients.remove(clientID));
 	}
 
 	/**
@@ -88,7 +98,18 @@ public class Chat {
 	 * @param message message to store in the file.
 	 */
 	public void saveMessageToHistoryFile(String message) {
-		this.historyFile.write(message);
+		this.history.append(message);
+	}
+
+	/**
+	 * Reads a page of the history of the chat (see {@link ChatHistory#page(int)}).
+	 *
+	 * @param offset number of messages from the end of the history.
+	 *
+	 * @return future with the messages of the page, completed once the history is loaded.
+	 */
+	public CompletableFuture<ByteBuffer[]> historyPage(int offset) {
+		return this.history.page(offset);
 	}
 
 	/**
@@ -99,7 +120,7 @@ public class Chat {
 	 * @param save    {@code true} if the message should be saved to the history file, {@code false} otherwise.
 	 */
 	public void broadcast(String message, boolean save) {
-		this.availableClientsStream().forEach(client -> client.send(message));
+		this.sendToAll(message, null, !save);
 		if (save) this.saveMessageToHistoryFile(message);
 	}
 
@@ -112,36 +133,77 @@ public class Chat {
 	 * @param save     {@code true} if the message should be saved to the history file, {@code false} otherwise.
 	 */
 	public void sendWithClientExclusion(String message, ClientID clientID, boolean save) {
-		this.availableClientsStream()
-		    .filter(client -> !client.getClientID().equals(clientID))
-		    .forEach(client -> client.send(message));
+		this.sendToAll(message, clientID, !save);
 		if (save) this.saveMessageToHistoryFile(message);
 	}
 
 	/**
-	 * Closes the writer and uploads the file to S3 bucket with all the messages stored.
+	 * Sends the message to all the available clients. The message is encoded only once
+	 * for each protocol used by the clients, and the same frame is sent to every client.
+	 *
+	 * @param message        message to send.
+	 * @param excluded       id of the client to exclude, {@code null} to send it to everyone.
+	 * @param transientFrame {@code true} if the message is not stored in the history, so slow
+	 *                       clients can skip it.
+	 */
+	private void sendToAll(String message, @Nullable ClientID excluded, boolean transientFrame) {
+		EncodedMessage encoded = new EncodedMessage(message);
+		int recipients = 0;
+
+		for (Client client : this.clients.snapshot()) {
+			if (ClientRegistry.isAvailable(client) && !client.getClientID().equals(excluded)) {
+				client.send(encoded, transientFrame);
+				recipients++;
+			}
+		}
+
+		this.metrics.recordSharedFrame(encoded.encodedBytes(), recipients);
+	}
+
+	/**
+	 * Sends the message to a single client, recording the frame allocated for it.
+	 *
+	 * @param client  client to send the message to.
+	 * @param message message to send.
+	 */
+	private void sendToSingleClient(Client client, String message) {
+		EncodedMessage encoded = new EncodedMessage(message);
+		client.send(encoded, false);
+		this.metrics.recordDirectFrame(encoded.encodedBytes());
+	}
+
+	/**
+	 * Closes the history file and uploads it to S3 bucket with all the messages stored
+	 * (in the background, see {@link HistoryFilesCache}).
 	 * <p>
 	 * This method is called when the last client of the chat has left.
 	 */
 	public synchronized void finish() {
-		this.historyFile.close();
 		HistoryFilesCache.INSTANCE.invalidate(this.chatId);
 		this.clients.clear();
 	}
 
 	/**
-	 * Uploads the file to S3 bucket with all the messages stored. The file stored on disk
-	 * is not deleted.
+	 * Removes exactly the specified session from the chat (<b>without</b> closing the connection).
+	 * Other sessions of the same user are kept.
+	 *
+	 * @param client client to remove.
+	 *
+	 * @return {@code true} if the client was removed, {@code false} if it was not in the chat.
 	 */
-	public void saveToS3() {
-		S3.getInstance().uploadHistoryFile(this.chatId, false);
+	boolean removeSession(Client client) {
+		return this.clients.remove(client);
 	}
 
 	/**
-	 * Deletes the users that are null or cannot send messages.
+	 * Performs the given action for each client of the chat (available or not).
+	 *
+	 * @param action action to perform.
 	 */
-	void deleteUnwantedUsers() {
-		this.clients.removeIf(client -> client == null || !client.canSend());
+	void forEachClient(Consumer<Client> action) {
+		for (Client client : this.clients.snapshot()) {
+			action.accept(client);
+		}
 	}
 
 	/**
@@ -149,7 +211,7 @@ public class Chat {
 	 */
 	@NotNull
 	private Stream<Client> availableClientsStream() {
-		return this.clients.stream().filter(client -> client != null && client.canSend());
+		return Arrays.stream(this.clients.snapshot()).filter(ClientRegistry::isAvailable);
 	}
 
 	/**
@@ -159,10 +221,7 @@ public class Chat {
 	 * @param username username of the user to send the mention to.
 	 */
 	public void mention(String message, String username) {
-		this.availableClientsStream()
-		    .filter(client -> client.getClientID().username().equals(username))
-		    .findFirst()
-		    .ifPresent(client -> client.send(message));
+		this.clients.findAvailable(username).ifPresent(client -> this.sendToSingleClient(client, message));
 	}
 
 	/**
@@ -203,9 +262,7 @@ public class Chat {
 	 * @return {@link Optional} of the client with the specified clientID.
 	 */
 	private Optional<Client> searchClient(ClientID clientID) {
-		return this.availableClientsStream()
-		           .filter(client -> client.getClientID().equals(clientID))
-		           .findFirst();
+		return this.clients.findAvailable(clientID.username());
 	}
 
 	/**
@@ -216,8 +273,7 @@ public class Chat {
 	 * @return {@code true} if the chat has a client with the specified username, {@code false} otherwise.
 	 */
 	public boolean hasClientWithUsername(String username) {
-		return this.availableClientsStream()
-		           .anyMatch(client -> client.getClientID().username().equals(username));
+		return this.clients.hasAvailable(username);
 	}
 
 	/**
@@ -227,9 +283,6 @@ public class Chat {
 	 * @param message message to send.
 	 */
 	public void sendNotificationTo(String username, String message) {
-		this.availableClientsStream()
-		    .filter(client -> client.getClientID().username().equals(username))
-		    .findFirst()
-		    .ifPresent(client -> client.send(message));
+		this.clients.findAvailable(username).ifPresent(client -> this.sendToSingleClient(client, message));
 	}
 }
@@ -1,22 +1,41 @@
 package rs.chat.net.ws;
 
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+import rs.chat.cache.ColdPageCache;
+import rs.chat.cache.HistoryFilesCache;
+import rs.chat.cache.HistoryPersister;
+import rs.chat.cache.HistoryWriter;
+import rs.chat.net.ws.outbound.OutboundListener;
+import rs.chat.net.ws.outbound.OutboundQueue;
+import rs.chat.net.ws.protocol.EncodedMessage;
 import rs.chat.observability.metrics.Metrics;
 
+import java.nio.ByteBuffer;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static rs.chat.utils.Constants.HISTORY_SHUTDOWN_UPLOAD_TIMEOUT_SECONDS;
 
 /**
  * Class that manages the chats to which the clients are connected.
  */
-@RequiredArgsConstructor
 @Slf4j
 @Component
 @EnableScheduling
@@ -25,16 +44,51 @@ public class ChatManagement {
 	 * Map to store each chat. The mapping key is the chatId.
 	 */
 	private final Map<String, Chat> chats = new ConcurrentHashMap<>();
+	private final Metrics metrics;
+	private final Function<String, Chat> chatFactory;
 
 	/**
-	 * Checks if the specified chatId is a key of the chats map.
-	 *
-	 * @param chatId chat id to check.
+	 * Reverse index to find the sessions that a user has in all the opened chats
+	 * (the chat of each session is the one of its {@link ClientID}). The mapping key
+	 * is the username.
+	 * <p>
+	 * Sessions are compared by identity, because {@link Client#equals(Object)} only
+	 * compares usernames.
+	 */
+	private final Map<String, List<Client>> sessionsByUsername = new ConcurrentHashMap<>();
+
+	/**
+	 * Index to find the clients of a WebSocket session when it is closed. The mapping key
+	 * is the id of the session.
+	 */
+	private final Map<String, List<Client>> clientsBySessionId = new ConcurrentHashMap<>();
+
+	/**
+	 * Listener that records the state of the outbound queue of every client.
+	 */
+	private final OutboundListener outboundListener;
+
+	@Autowired
+	public ChatManagement(Metrics metrics) {
+		this(metrics, chatId -> new Chat(chatId, metrics));
+	}
+
+	/**
+	 * Creates the chat management with the given factory of chats.
 	 *
-	 * @return {@code true} if the chat exists, {@code false} otherwise.
+	 * @param metrics     metrics of the chats.
+	 * @param chatFactory creates the chat with the given id when its first client is added.
 	 */
-	private boolean chatExists(String chatId) {
-		return this.chats.containsKey(chatId);
+	public ChatManagement(Metrics metrics, Function<String, Chat> chatFactory) {
+		this.metrics = metrics;
+		this.chatFactory = chatFactory;
+		this.outboundListener = metrics.outboundListener();
+		this.metrics.registerOutboundQueueGauges(this::outboundQueues);
+		HistoryWriter.INSTANCE.setListener(metrics.historyWriterListener());
+		HistoryPersister.INSTANCE.setListener(metrics.historyPersisterListener());
+		this.metrics.bind(HistoryPersister.INSTANCE);
+		this.metrics.bind(HistoryFilesCache.INSTANCE);
+		this.metrics.bind(ColdPageCache.INSTANCE);
 	}
 
 	/**
@@ -47,11 +101,9 @@ public class ChatManagement {
 	public void addClientToChat(Client client) {
 		String chatId = client.getClientID().chatId();
 
-		if (!this.chatExists(chatId)) {
-			this.chats.put(chatId, new Chat(chatId));
-		}
-
-		this.chats.get(chatId).addClient(client);
+		client.getOutboundQueue().setListener(this.outboundListener);
+		this.chats.computeIfAbsent(chatId, this.chatFactory).addClient(client);
+		this.indexClient(client);
 	}
 
 	/**
@@ -63,12 +115,51 @@ public class ChatManagement {
 	public void removeClientFromChat(ClientID clientID) {
 		String chatId = clientID.chatId();
 		Chat chat = this.chats.get(chatId);
+		Optional<Client> removedClient = chat.removeClient(clientID);
+
+		removedClient.ifPresent(this::unindexClient);
+
+		if (removedClient.isPresent()) {
+			this.finishIfEmpty(chat);
+		}
+	}
+
+	/**
+	 * Removes all the clients of a WebSocket session that has been closed (by the client,
+	 * because of a transport error or because the client could not keep up with the chat).
+	 * If a chat has no more clients connected to it, it is finished (see {@link Chat#finish()}).
+	 *
+	 * @param session session that has been closed.
+	 */
+	public void removeClientsOfSession(WebSocketSession session) {
+		List<Client> clients = this.clientsBySessionId.get(session.getId());
+
+		if (clients == null) {
+			return;
+		}
+
+		for (Client client : clients) {
+			Chat chat = this.chats.get(client.getClientID().chatId());
+			this.unindexClient(client);
 
-		if (chat.removeClient(clientID) && chat.hasNoAvailableClients()) {
-			// Delete the chat and its entry in the map if there are no more
-			// clients connected to it.
+			if (chat != null && chat.removeSession(client)) {
+				log.debug("Removed client {} from chat {} (session closed)", client.getClientID().username(), chat.getChatId());
+				this.finishIfEmpty(chat);
+			}
+		}
+	}
+
+	/**
+	 * Finishes the chat and deletes its entry in the map if there are no more clients
+	 * connected to it.
+	 *
+	 * @param chat chat to check.
+	 */
+	private void finishIfEmpty(Chat chat) {
+		if (chat.hasNoAvailableClients()) {
+			chat.forEachClient(this::unindexClient);
 			chat.finish();
-			this.chats.remove(chatId);
+			this.chats.remove(chat.getChatId());
 		}
 	}
 
@@ -139,6 +230,25 @@ public class ChatManagement {
 		this.chats.get(chatId).mention(message, username);
 	}
 
+	/**
+	 * Reads a page of the history of the given chat. If the chat is not open, the page is
+	 * read from its history file.
+	 *
+	 * @param chatId id of the chat.
+	 * @param offset number of messages from the end of the history that the client already has.
+	 *
+	 * @return future with the messages of the page, as stored in the history file.
+	 */
+	public CompletableFuture<ByteBuffer[]> getHistoryPage(String chatId, int offset) {
+		Chat chat = this.chats.get(chatId);
+
+		if (chat == null) {
+			return CompletableFuture.completedFuture(new ByteBuffer[]{HistoryFilesCache.INSTANCE.readPage(chatId, offset)});
+		}
+
+		return chat.historyPage(offset);
+	}
+
 	/**
 	 * Retrieves all the usernames of the clients connected (and active) to the given chat.
 	 * They are sorted alphabetically.
@@ -153,27 +263,33 @@ public class ChatManagement {
 
 	/**
 	 * Closes all the chats, writing to disk the messages that have not been written and
-	 * sends the history to S3 bucket.
+	 * sends the history to S3 bucket. Waits (for a limited time) until the history files
+	 * have been uploaded.
 	 */
 	public void close() {
 		this.chats.values().forEach(Chat::finish);
+		this.sessionsByUsername.clear();
+		this.clientsBySessionId.clear();
+
+		try {
+			HistoryFilesCache.INSTANCE.persistAll().get(HISTORY_SHUTDOWN_UPLOAD_TIMEOUT_SECONDS, SECONDS);
+		} catch (ExecutionException | TimeoutException e) {
+			log.error("Not all the history files have been uploaded to S3 bucket ({} uploads pending)",
+			          HistoryPersister.INSTANCE.pending(), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	/**
-	 * Saves all chat files to S3 bucket every 10 minutes (to avoid data loss).
+	 * Saves all chat files to S3 bucket every 10 minutes (to avoid data loss). Only the
+	 * messages written since the last upload are uploaded, in the background (see
+	 * {@link HistoryPersister}).
 	 */
 	@Scheduled(fixedRate = 10, initialDelay = 10, timeUnit = MINUTES)
 	private void saveAllToS3() {
-		this.chats.values().forEach(Chat::saveToS3);
-	}
-
-	/**
-	 * Deletes all the users that have had some error in the connection
-	 * and the instance is null for some reason.
-	 */
-	@Scheduled(fixedRate = 3, initialDelay = 3, timeUnit = MINUTES)
-	private void deleteUnwantedUsers() {
-		this.chats.values().forEach(Chat::deleteUnwantedUsers);
+		HistoryFilesCache.INSTANCE.syncAll(HistoryPersister.INSTANCE)
+		                          .thenRun(() -> log.debug("Synced history files to S3 bucket"));
 	}
 
 	/**
@@ -203,9 +319,100 @@ public class ChatManagement {
 	 * @param message  message to send.
 	 */
 	public void sendNotificationTo(String username, String message) {
-		this.chats.values()
-		          .stream()
-		          .filter(chat -> chat.hasClientWithUsername(username))
-		          .forEach(chat -> chat.sendNotificationTo(username, message));
+		List<Client> sessions = this.sessionsByUsername.get(username);
+
+		if (sessions == null) {
+			return;
+		}
+
+		// Only one session per chat receives the notification.
+		Set<String> notifiedChats = new HashSet<>();
+		EncodedMessage encoded = new EncodedMessage(message);
+		int recipients = 0;
+
+		for (Client client : sessions) {
+			if (client.canSend() && notifiedChats.add(client.getClientID().chatId())) {
+				client.send(encoded, false);
+				recipients++;
+			}
+		}
+
+		this.metrics.recordSharedFrame(encoded.encodedBytes(), recipients);
+	}
+
+	/**
+	 * Sends a message to the client of a WebSocket session in a chat, through its outbound
+	 * queue (see {@link Client#send(EncodedMessage, boolean)}), so it is encoded with the
+	 * protocol of the client and never written at the same time as other frames.
+	 *
+	 * @param sessionId id of the WebSocket session.
+	 * @param chatId    id of the chat.
+	 * @param message   message to send.
+	 *
+	 * @return {@code false} if the session has no client in the chat (e.g. it has been closed).
+	 */
+	public boolean sendToSession(String sessionId, String chatId, EncodedMessage message) {
+		List<Client> clients = this.clientsBySessionId.get(sessionId);
+
+		if (clients == null) {
+			return false;
+		}
+
+		for (Client client : clients) {
+			if (client.getClientID().chatId().equals(chatId)) {
+				client.send(message, false);
+				this.metrics.recordDirectFrame(message.encodedBytes());
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return {@link Stream} with the outbound queues of all the connected clients.
+	 */
+	private Stream<OutboundQueue> outboundQueues() {
+		return this.clientsBySessionId.values()
+		                              .stream()
+		                              .flatMap(List::stream)
+		                              .map(Client::getOutboundQueue);
+	}
+
+	/**
+	 * Adds the client to the reverse index of sessions by username and to the index
+	 * of clients by session id.
+	 *
+	 * @param client client to add.
+	 */
+	private void indexClient(Client client) {
+		addToIndex(this.sessionsByUsername, client.getClientID().username(), client);
+		addToIndex(this.clientsBySessionId, client.getSession().getId(), client);
+	}
+
+	/**
+	 * Removes the client from the indexes. The entry of the username (or session) is
+	 * deleted when it has no more clients.
+	 *
+	 * @param client client to remove.
+	 */
+	private void unindexClient(Client client) {
+		removeFromIndex(this.sessionsByUsername, client.getClientID().username(), client);
+		removeFromIndex(this.clientsBySessionId, client.getSession().getId(), client);
+	}
+
+	private static void addToIndex(Map<String, List<Client>> index, String key, Client client) {
+		index.compute(key, (k, clients) -> {
+			List<Client> result = clients == null ? new CopyOnWriteArrayList<>() : clients;
+			result.add(client);
+			return result;
+		});
+	}
+
+	private static void removeFromIndex(Map<String, List<Client>> index, String key, Client client) {
+		index.computeIfPresent(key, (k, clients) -> {
+			clients.removeIf(c -> c == client);
+			return clients.isEmpty() ? null : clients;
+		});
 	}
 }
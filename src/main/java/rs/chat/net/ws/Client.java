@@ -5,8 +5,13 @@ import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
+import rs.chat.net.ws.outbound.OutboundDispatcher;
+import rs.chat.net.ws.outbound.OutboundQueue;
+import rs.chat.net.ws.protocol.EncodedMessage;
+import rs.chat.net.ws.protocol.WireProtocol;
 
 import java.io.IOException;
 import java.util.Objects;
@@ -20,19 +25,72 @@ public class Client {
 	private final WebSocketSession session;
 	private final ClientID clientID;
 	private boolean away = false;
+	/**
+	 * Frames pending to be sent to the client. They are written by the
+	 * {@link OutboundDispatcher}, so sending a message never blocks the caller.
+	 */
+	private final OutboundQueue outboundQueue = OutboundDispatcher.newQueue(this::write, this::disconnectSlowClient);
 
 	/**
-	 * Send a message to the client. Since the session is thread-safe (see
-	 * {@link org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator ConcurrentWebSocketSessionDecorator}),
-	 * messages are "enqueued" and we don't need to synchronize this method.
+	 * Send a message to the client. The message is enqueued in the outbound queue of the
+	 * client, so this method returns immediately.
 	 *
 	 * @param message message to send.
 	 */
 	public void send(String message) {
+		this.send(new EncodedMessage(message), false);
+	}
+
+	/**
+	 * Sends a message that can be shared with other clients. It is encoded with the
+	 * protocol of this client, reusing the frame if it was already encoded for another
+	 * client with the same protocol.
+	 *
+	 * @param message        message to send.
+	 * @param transientFrame {@code true} if the frame can be discarded when the client is
+	 *                       too slow (see {@link rs.chat.net.ws.outbound.OverflowPolicy#COALESCE}).
+	 */
+	public void send(EncodedMessage message, boolean transientFrame) {
+		this.outboundQueue.offer(message.frameFor(this.protocol()), transientFrame);
+	}
+
+	/**
+	 * @return the protocol negotiated by the client during the handshake.
+	 */
+	public WireProtocol protocol() {
+		return this.session == null ? WireProtocol.JSON : WireProtocol.of(this.session);
+	}
+
+	/**
+	 * Writes the frame to the session. Called by the {@link OutboundDispatcher}, one frame at a time.
+	 *
+	 * @param frame frame to write.
+	 *
+	 * @throws IOException if the frame could not be written.
+	 */
+	private void write(WebSocketMessage<?> frame) throws IOException {
+		if (this.canSend()) {
+			this.session.sendMessage(frame);
+		}
+	}
+
+	/**
+	 * Closes the session of a client that cannot keep up with the chat (its outbound queue
+	 * has overflowed, it is lagging too much or the frames cannot be written). The client is
+	 * removed from the chats when the connection is closed (see
+	 * {@link WebSocketHandler#afterConnectionClosed(WebSocketSession, CloseStatus)}).
+	 *
+	 * @param reason reason of the disconnection.
+	 */
+	private void disconnectSlowClient(String reason) {
+		if (!this.canSend()) {
+			return;
+		}
+
 		try {
-			this.session.sendMessage(new TextMessage(message));
+			this.session.close(CloseStatus.SESSION_NOT_RELIABLE.withReason(reason));
 		} catch (IOException e) {
-			log.error("Could not send message to client", e);
+			log.error("Could not close the session of a slow client", e);
 		}
 	}
 
@@ -0,0 +1,197 @@
+package rs.chat.net.ws;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of the clients connected to a {@link Chat}. Clients are indexed by username
+ * (which is the identity of a {@link ClientID}, see {@link ClientID#equals(Object)}), so
+ * lookups and membership changes do not depend on the number of clients in the chat.
+ * <p>
+ * A user can be connected more than once to the same chat (several tabs or devices), so
+ * each username maps to the (usually tiny) list of sessions of that user, in the order
+ * they were added.
+ * <p>
+ * For broadcasting, an array with all the clients is kept. It is rebuilt lazily the first
+ * time it is requested after a membership change, so a burst of joins or leaves only
+ * pays for one copy instead of one copy per change.
+ */
+final class ClientRegistry {
+	private static final Client[] EMPTY_SNAPSHOT = new Client[0];
+
+	private final Map<String, CopyOnWriteArrayList<Client>> clientsByUsername = new ConcurrentHashMap<>();
+	private volatile Client[] snapshot = EMPTY_SNAPSHOT;
+	private volatile boolean stale = false;
+	private int size = 0;
+
+	/**
+	 * Adds the client to the registry.
+	 *
+	 * @param client client to add.
+	 */
+	synchronized void add(@NotNull Client client) {
+		this.clientsByUsername.computeIfAbsent(username(client), k -> new CopyOnWriteArrayList<>())
+		                      .add(client);
+		this.size++;
+		this.stale = true;
+	}
+
+	/**
+	 * Removes the first client registered with the specified {@link ClientID}.
+	 *
+	 * @param clientID id of the client to remove.
+	 *
+	 * @return the removed client, or {@code null} if there was no client with that id.
+	 */
+	synchronized Client remove(@NotNull ClientID clientID) {
+		List<Client> sessions = this.clientsByUsername.get(clientID.username());
+
+		if (sessions == null || sessions.isEmpty()) {
+			return null;
+		}
+
+		Client removed = sessions.remove(0);
+
+		if (sessions.isEmpty()) {
+			this.clientsByUsername.remove(clientID.username());
+		}
+
+		this.size--;
+		this.stale = true;
+
+		return removed;
+	}
+
+	/**
+	 * Removes exactly the given client (compared by identity, since {@link Client#equals(Object)}
+	 * only compares usernames).
+	 *
+	 * @param client client to remove.
+	 *
+	 * @return {@code true} if the client was removed, {@code false} if it was not registered.
+	 */
+	synchronized boolean remove(@NotNull Client client) {
+		String username = username(client);
+		List<Client> sessions = this.clientsByUsername.get(username);
+
+		if (sessions == null || !sessions.removeIf(session -> session == client)) {
+			return false;
+		}
+
+		if (sessions.isEmpty()) {
+			this.clientsByUsername.remove(username);
+		}
+
+		this.size--;
+		this.stale = true;
+
+		return true;
+	}
+
+	/**
+	 * Removes all the clients of the registry.
+	 */
+	synchronized void clear() {
+		this.clientsByUsername.clear();
+		this.size = 0;
+		this.snapshot = EMPTY_SNAPSHOT;
+		this.stale = false;
+	}
+
+	/**
+	 * Finds the first available client with the given username.
+	 *
+	 * @param username username of the client.
+	 *
+	 * @return {@link Optional} with the client, empty if none is connected and available.
+	 */
+	Optional<Client> findAvailable(@NotNull String username) {
+		List<Client> sessions = this.clientsByUsername.get(username);
+
+		if (sessions == null) {
+			return Optional.empty();
+		}
+
+		for (Client client : sessions) {
+			if (isAvailable(client)) {
+				return Optional.of(client);
+			}
+		}
+
+		return Optional.empty();
+	}
+
+	/**
+	 * @param username username to check.
+	 *
+	 * @return {@code true} if there is at least one available client with the given username.
+	 */
+	boolean hasAvailable(@NotNull String username) {
+		return this.findAvailable(username).isPresent();
+	}
+
+	/**
+	 * @return the sessions registered for the given username (empty if there are none).
+	 */
+	Collection<Client> sessionsOf(@NotNull String username) {
+		List<Client> sessions = this.clientsByUsername.get(username);
+		return sessions == null ? List.of() : sessions;
+	}
+
+	/**
+	 * @return number of clients (available or not) in the registry.
+	 */
+	synchronized int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns an array with all the registered clients. The array <b>must not</b> be
+	 * modified, since it is shared between all the callers until the next membership
+	 * change.
+	 *
+	 * @return array with all the clients of the registry.
+	 */
+	Client[] snapshot() {
+		if (!this.stale) {
+			return this.snapshot;
+		}
+
+		synchronized (this) {
+			if (this.stale) {
+				Client[] rebuilt = new Client[this.size];
+				int i = 0;
+
+				for (List<Client> sessions : this.clientsByUsername.values()) {
+					for (Client client : sessions) {
+						rebuilt[i++] = client;
+					}
+				}
+
+				this.snapshot = rebuilt;
+				this.stale = false;
+			}
+
+			return this.snapshot;
+		}
+	}
+
+	/**
+	 * @param client client to check.
+	 *
+	 * @return {@code true} if the client is not {@code null} and can send messages.
+	 */
+	static boolean isAvailable(Client client) {
+		return client != null && client.canSend();
+	}
+
+	private static String username(Client client) {
+		return client.getClientID().username();
+	}
+}
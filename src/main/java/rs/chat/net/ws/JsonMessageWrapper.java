@@ -1,14 +1,20 @@
 package rs.chat.net.ws;
 
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
 import rs.chat.utils.Builder;
 import rs.chat.utils.Utils;
 
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
 import static rs.chat.net.ws.Message.MEDIA_MESSAGES;
 
 /**
@@ -28,95 +34,174 @@ import static rs.chat.net.ws.Message.MEDIA_MESSAGES;
  *  }
  * }
  * }</pre>
+ * The headers and the content are read without parsing the message into a tree (see
+ * {@link MessageEnvelope}), and the changes made to the message are applied to the raw
+ * payload when it is converted to a string.
  */
-@Getter
 @Slf4j
 public class JsonMessageWrapper {
+	/**
+	 * Headers that must not be sent to other clients.
+	 */
+	private static final Set<String> SENSITIVE_HEADERS = Set.of("sessionId", "token");
+
+	@Getter
 	private final String rawPayload;
-	private final JsonObject parsedPayload;
+	@Nullable
+	private final MessageEnvelope envelope;
+	/**
+	 * Tree of the message, only built if {@link #headers()}, {@link #body()} or
+	 * {@link #getParsedPayload()} are used (or the payload cannot be spliced). From then on,
+	 * it is the only source of truth of the message.
+	 */
+	@Nullable
+	private JsonObject parsedPayload;
+	private final Set<String> removedHeaders = new HashSet<>(2);
+	private final Map<String, String> replacedHeaders = new LinkedHashMap<>(2);
+	@Nullable
+	private String newContent;
 
 	/**
-	 * Constructor that parses the received JSON message.
+	 * Constructor that reads the envelope of the received JSON message. The message is not
+	 * parsed into a tree unless it is needed.
 	 *
 	 * @param rawPayload the received JSON message as a string.
 	 */
 	public JsonMessageWrapper(String rawPayload) {
 		this.rawPayload = rawPayload;
-		this.parsedPayload = Utils.parseJson(rawPayload);
+		this.envelope = MessageEnvelope.parse(rawPayload);
+	}
+
+	/**
+	 * @return the message parsed as a JSON tree (with the updated fields, if any).
+	 */
+	public JsonObject getParsedPayload() {
+		if (this.parsedPayload == null) {
+			this.parsedPayload = Utils.parseJson(this.spliced());
+		}
+
+		return this.parsedPayload;
 	}
 
 	/**
 	 * @return the headers of the message.
 	 */
 	public JsonObject headers() {
-		return (JsonObject) this.parsedPayload.get("headers");
+		return (JsonObject) this.getParsedPayload().get("headers");
 	}
 
 	/**
 	 * @return the body of the message.
 	 */
 	public JsonObject body() {
-		return (JsonObject) this.parsedPayload.get("body");
+		return (JsonObject) this.getParsedPayload().get("body");
 	}
 
 	/**
 	 * @return the username of the message sender.
 	 */
 	public String username() {
-		return this.headers().get("username").getAsString();
+		return this.header("username");
 	}
 
 	/**
 	 * @return the chat id of the message sender.
 	 */
 	public String chatId() {
-		return this.headers().get("chatId").getAsString();
+		return this.header("chatId");
 	}
 
 	/**
 	 * @return the session id of the message sender.
 	 */
 	public long sessionId() {
-		return this.headers().get("sessionId").getAsLong();
+		return Long.parseLong(this.header("sessionId"));
 	}
 
 	/**
 	 * @return the type of the message.
 	 */
 	public String type() {
-		return this.headers().get("type").getAsString();
+		return this.header("type");
 	}
 
 	/**
 	 * @return the date of the message.
 	 */
 	public long date() {
-		return this.headers().get("date").getAsLong();
+		return Long.parseLong(this.header("date"));
 	}
 
 	/**
 	 * @return the token of the message.
 	 */
 	public String token() {
-		return this.headers().get("token").getAsString();
+		return this.header("token");
 	}
 
 	/**
 	 * @return the content of the message.
 	 */
 	public String content() {
-		return this.body().get("content").getAsString();
+		if (this.parsedPayload != null) {
+			return this.body().get("content").getAsString();
+		}
+
+		if (this.newContent != null) {
+			return this.newContent;
+		}
+
+		String content = this.envelope().content();
+
+		if (content == null) {
+			throw new IllegalStateException("The content of the message is not a string");
+		}
+
+		return content;
+	}
+
+	/**
+	 * @return {@code true} if the content of the message is a string (or another primitive
+	 * value) instead of a JSON object.
+	 */
+	public boolean hasTextBody() {
+		if (this.parsedPayload != null) {
+			return this.body().get("content").isJsonPrimitive();
+		}
+
+		return this.newContent != null || this.envelope().hasPrimitiveContent();
 	}
 
 	/**
 	 * Updates the date of the message to the current date.
 	 */
 	public void updateDateTime() {
-		this.headers().addProperty("date", System.currentTimeMillis());
+		long now = System.currentTimeMillis();
+
+		if (this.parsedPayload != null) {
+			this.headers().addProperty("date", now);
+		} else {
+			this.replacedHeaders.put("date", String.valueOf(now));
+		}
+	}
+
+	/**
+	 * Removes the headers that must not be sent to other clients (session id and token).
+	 */
+	public void removeSensitiveHeaders() {
+		if (this.parsedPayload != null) {
+			SENSITIVE_HEADERS.forEach(this.headers()::remove);
+		} else {
+			this.removedHeaders.addAll(SENSITIVE_HEADERS);
+		}
 	}
 
 	public void setContent(String content) {
-		this.body().addProperty("content", content);
+		if (this.parsedPayload != null) {
+			this.body().addProperty("content", content);
+		} else {
+			this.newContent = content;
+		}
 	}
 
 	/**
@@ -124,7 +209,17 @@ public class JsonMessageWrapper {
 	 */
 	@Override
 	public String toString() {
-		return this.parsedPayload.toString();
+		if (this.parsedPayload != null) {
+			return this.parsedPayload.toString();
+		}
+
+		// Messages are stored one per line, so line breaks between tokens are removed, and
+		// payloads that are not strict JSON are normalized
+		if (this.envelope().isMultiline() || this.envelope().isLenient()) {
+			return this.getParsedPayload().toString();
+		}
+
+		return this.spliced();
 	}
 
 	public static JsonMessageWrapper fromString(String rawPayload) {
@@ -133,8 +228,12 @@ public class JsonMessageWrapper {
 
 	public boolean correctStructure() {
 		try {
-			this.headers();
-			this.body();
+			MessageEnvelope env = this.envelope();
+
+			if (!env.hasHeaders() || !env.hasBody()) {
+				throw new IllegalStateException("Missing headers or body");
+			}
+
 			this.username();
 			this.chatId();
 			this.sessionId();
@@ -142,14 +241,11 @@ public class JsonMessageWrapper {
 			this.date();
 			this.token();
 
-			JsonElement content = this.body().get("content");
 			boolean isMediaMessage = MEDIA_MESSAGES.stream()
 			                                       .map(Message::type)
 			                                       .anyMatch(t -> t.equals(type));
-			if (isMediaMessage) {
-				content.getAsJsonObject(); // A JSON Object
-			} else {
-				content.getAsString(); // A JSON String
+			if (isMediaMessage ? !env.hasObjectContent() : !env.hasPrimitiveContent()) {
+				throw new IllegalStateException("Invalid content for a message of type " + type);
 			}
 
 			return true;
@@ -159,6 +255,58 @@ public class JsonMessageWrapper {
 		}
 	}
 
+	/**
+	 * @return the envelope of the message.
+	 *
+	 * @throws IllegalStateException if the message is not a valid JSON object.
+	 */
+	private MessageEnvelope envelope() {
+		if (this.envelope == null) {
+			throw new IllegalStateException("The message is not a valid JSON object");
+		}
+
+		return this.envelope;
+	}
+
+	/**
+	 * Returns the value of a header, taking into account the pending changes.
+	 *
+	 * @param name name of the header.
+	 *
+	 * @return the value of the header.
+	 *
+	 * @throws IllegalStateException if the header is not present.
+	 */
+	private String header(String name) {
+		if (this.parsedPayload != null) {
+			return this.headers().get(name).getAsString();
+		}
+
+		String value = this.removedHeaders.contains(name) ? null : this.replacedHeaders.get(name);
+
+		if (value == null && !this.removedHeaders.contains(name)) {
+			value = this.envelope().header(name);
+		}
+
+		if (value == null) {
+			throw new IllegalStateException("Missing header: " + name);
+		}
+
+		return value;
+	}
+
+	/**
+	 * @return the raw payload with the pending changes applied.
+	 */
+	private String spliced() {
+		if (this.envelope == null) {
+			return this.rawPayload;
+		}
+
+		String content = this.newContent == null ? null : new JsonPrimitive(this.newContent).toString();
+		return this.envelope.rewrite(this.removedHeaders, this.replacedHeaders, content);
+	}
+
 	/**
 	 * Creates a new builder to build a new message.
 	 *
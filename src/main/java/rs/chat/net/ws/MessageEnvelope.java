@@ -0,0 +1,524 @@
+package rs.chat.net.ws;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Flat view of a WebSocket message (see {@link JsonMessageWrapper} for the format) that is
+ * read in a single pass over the raw payload, without building a JSON tree.
+ * <p>
+ * Only the members of {@code headers} and the {@code content} of {@code body} are read.
+ * Their positions in the payload are kept, so the message can be rewritten (removing or
+ * replacing headers, replacing the content) by copying the untouched parts of the payload
+ * (see {@link #rewrite(Set, Map, String)}).
+ */
+public final class MessageEnvelope {
+	private final String raw;
+	private final Map<String, Member> headers;
+	private final int headersStart;
+	private final int headersEnd;
+	@Nullable
+	private final Member content;
+	private final boolean bodyPresent;
+	private final boolean multiline;
+	private final boolean lenient;
+
+	private MessageEnvelope(String raw, Map<String, Member> headers, int headersStart, int headersEnd,
+	                        @Nullable Member content, boolean bodyPresent, boolean multiline, boolean lenient) {
+		this.raw = raw;
+		this.headers = headers;
+		this.headersStart = headersStart;
+		this.headersEnd = headersEnd;
+		this.content = content;
+		this.bodyPresent = bodyPresent;
+		this.multiline = multiline;
+		this.lenient = lenient;
+	}
+
+	/**
+	 * Reads the envelope of the given payload.
+	 *
+	 * @param raw raw JSON payload of the message.
+	 *
+	 * @return the envelope, or {@code null} if the payload is not a valid JSON object.
+	 */
+	@Nullable
+	public static MessageEnvelope parse(String raw) {
+		try {
+			return new Scanner(raw).readEnvelope();
+		} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return {@code true} if the message has a {@code headers} object.
+	 */
+	public boolean hasHeaders() {
+		return this.headersStart >= 0;
+	}
+
+	/**
+	 * @return {@code true} if the message has a {@code body} object.
+	 */
+	public boolean hasBody() {
+		return this.bodyPresent;
+	}
+
+	/**
+	 * Returns the value of a header as a string. Numbers and booleans are returned as they
+	 * are written in the payload.
+	 *
+	 * @param name name of the header.
+	 *
+	 * @return the value of the header, or {@code null} if the header is not present, is
+	 * {@code null} or is not a primitive value.
+	 */
+	@Nullable
+	public String header(String name) {
+		Member member = this.headers.get(name);
+		return member == null ? null : member.value();
+	}
+
+	/**
+	 * @return {@code true} if the content of the body is a primitive value (usually a string).
+	 */
+	public boolean hasPrimitiveContent() {
+		return this.content != null && this.content.value() != null;
+	}
+
+	/**
+	 * @return {@code true} if the content of the body is a JSON object.
+	 */
+	public boolean hasObjectContent() {
+		return this.content != null && this.raw.charAt(this.content.valueStart()) == '{';
+	}
+
+	/**
+	 * @return the content of the body if it is a primitive value, {@code null} otherwise.
+	 */
+	@Nullable
+	public String content() {
+		return this.content == null ? null : this.content.value();
+	}
+
+	/**
+	 * @return {@code true} if there are line breaks between the tokens of the payload.
+	 * Such payloads cannot be rewritten by splicing, because messages are stored one per line.
+	 */
+	public boolean isMultiline() {
+		return this.multiline;
+	}
+
+	/**
+	 * @return {@code true} if the payload is not strict JSON, but it is accepted by the lenient
+	 * parser of Gson: it has unquoted values (other than numbers, {@code true}, {@code false}
+	 * and {@code null}) or control characters inside strings. Such payloads cannot be rewritten
+	 * by splicing, because the copied parts would not be valid JSON.
+	 */
+	public boolean isLenient() {
+		return this.lenient;
+	}
+
+	/**
+	 * Creates a new payload copying the original one, but without the removed headers, with
+	 * the replaced header values and (optionally) with a new content. Headers that are
+	 * replaced but do not exist are added at the end of the headers.
+	 *
+	 * @param removedHeaders  names of the headers to remove.
+	 * @param replacedHeaders new values of the headers, as raw JSON values (already escaped).
+	 * @param newContent      new content of the body as a raw JSON value, or {@code null} to keep it.
+	 *
+	 * @return the rewritten payload.
+	 */
+	public String rewrite(Set<String> removedHeaders, Map<String, String> replacedHeaders, @Nullable String newContent) {
+		List<Edit> edits = new ArrayList<>(2);
+
+		if (this.hasHeaders() && (!removedHeaders.isEmpty() || !replacedHeaders.isEmpty())) {
+			edits.add(new Edit(this.headersStart, this.headersEnd, this.rewriteHeaders(removedHeaders, replacedHeaders)));
+		}
+
+		if (newContent != null && this.content != null) {
+			edits.add(new Edit(this.content.valueStart(), this.content.end(), newContent));
+		}
+
+		if (edits.isEmpty()) {
+			return this.raw;
+		}
+
+		// Headers and body can be in any order in the payload.
+		edits.sort((a, b) -> Integer.compare(a.start(), b.start()));
+
+		StringBuilder result = new StringBuilder(this.raw.length() + 32);
+		int copied = 0;
+
+		for (Edit edit : edits) {
+			result.append(this.raw, copied, edit.start()).append(edit.replacement());
+			copied = edit.end();
+		}
+
+		return result.append(this.raw, copied, this.raw.length()).toString();
+	}
+
+	/**
+	 * @return the text of the headers object with the edits applied.
+	 */
+	private String rewriteHeaders(Set<String> removedHeaders, Map<String, String> replacedHeaders) {
+		StringBuilder result = new StringBuilder(this.headersEnd - this.headersStart);
+		result.append('{');
+
+		for (Member member : this.headers.values()) {
+			if (removedHeaders.contains(member.name())) {
+				continue;
+			}
+
+			if (result.length() > 1) {
+				result.append(',');
+			}
+
+			String replacement = replacedHeaders.get(member.name());
+
+			if (replacement == null) {
+				result.append(this.raw, member.start(), member.end());
+			} else {
+				result.append(this.raw, member.start(), member.valueStart()).append(replacement);
+			}
+		}
+
+		replacedHeaders.forEach((name, value) -> {
+			if (!this.headers.containsKey(name) && !removedHeaders.contains(name)) {
+				if (result.length() > 1) {
+					result.append(',');
+				}
+
+				result.append('"').append(name).append("\":").append(value);
+			}
+		});
+
+		return result.append('}').toString();
+	}
+
+	/**
+	 * Member of an object of the payload.
+	 *
+	 * @param name       name of the member.
+	 * @param start      position of the opening quote of the name.
+	 * @param valueStart position of the first character of the value.
+	 * @param end        position after the last character of the value.
+	 * @param value      decoded value if it is a primitive, {@code null} otherwise.
+	 */
+	private record Member(String name, int start, int valueStart, int end, @Nullable String value) {
+	}
+
+	/**
+	 * Replacement of a region of the payload.
+	 */
+	private record Edit(int start, int end, String replacement) {
+	}
+
+	/**
+	 * Minimal JSON scanner that reads the envelope and skips everything else.
+	 */
+	private static final class Scanner {
+		private static final Pattern NUMBER = Pattern.compile("-?(0|[1-9]\\d*)(\\.\\d+)?([eE][+-]?\\d+)?");
+
+		private final String raw;
+		private int pos = 0;
+		private boolean multiline = false;
+		private boolean lenient = false;
+
+		private Scanner(String raw) {
+			this.raw = raw;
+		}
+
+		private MessageEnvelope readEnvelope() {
+			Map<String, Member> headers = Collections.emptyMap();
+			int headersStart = -1;
+			int headersEnd = -1;
+			Member content = null;
+			boolean bodyPresent = false;
+
+			this.expect('{');
+
+			if (!this.consumeIf('}')) {
+				do {
+					String name = this.readString();
+					this.expect(':');
+					this.skipWhitespace();
+
+					if (name.equals("headers") && this.peek() == '{') {
+						headersStart = this.pos;
+						headers = this.readMembers();
+						headersEnd = this.pos;
+					} else if (name.equals("body") && this.peek() == '{') {
+						bodyPresent = true;
+						content = this.readMembers().get("content");
+					} else {
+						this.skipValue();
+					}
+				} while (this.consumeIf(','));
+
+				this.expect('}');
+			}
+
+			this.skipWhitespace();
+
+			if (this.pos != this.raw.length()) {
+				throw new IllegalArgumentException("Unexpected data after the message");
+			}
+
+			return new MessageEnvelope(this.raw, headers, headersStart, headersEnd, content, bodyPresent, this.multiline, this.lenient);
+		}
+
+		/**
+		 * Reads the members of an object, decoding only the primitive values.
+		 */
+		private Map<String, Member> readMembers() {
+			Map<String, Member> members = new LinkedHashMap<>();
+			this.expect('{');
+
+			if (this.consumeIf('}')) {
+				return members;
+			}
+
+			do {
+				this.skipWhitespace();
+				int start = this.pos;
+				String name = this.readString();
+				this.expect(':');
+				this.skipWhitespace();
+				int valueStart = this.pos;
+				String value = this.readPrimitiveOrSkip();
+				members.remove(name); // The last duplicated member wins, as in Gson
+				members.put(name, new Member(name, start, valueStart, this.pos, value));
+			} while (this.consumeIf(','));
+
+			this.expect('}');
+
+			return members;
+		}
+
+		/**
+		 * @return the value if it is a primitive ({@code null} literal included, which is returned
+		 * as {@code null}), or {@code null} after skipping it if it is an object or an array.
+		 */
+		@Nullable
+		private String readPrimitiveOrSkip() {
+			char c = this.peek();
+
+			if (c == '"') {
+				return this.readString();
+			}
+
+			if (c == '{' || c == '[') {
+				this.skipValue();
+				return null;
+			}
+
+			String literal = this.readLiteral();
+			return literal.equals("null") ? null : literal;
+		}
+
+		private void skipValue() {
+			this.skipWhitespace();
+			char c = this.peek();
+
+			switch (c) {
+				case '"' -> this.skipString();
+				case '{', '[' -> {
+					char close = c == '{' ? '}' : ']';
+					this.pos++;
+
+					if (this.consumeIf(close)) {
+						return;
+					}
+
+					do {
+						if (c == '{') {
+							this.skipWhitespace();
+							this.skipString();
+							this.expect(':');
+						}
+
+						this.skipValue();
+					} while (this.consumeIf(','));
+
+					this.expect(close);
+				}
+				default -> this.readLiteral();
+			}
+		}
+
+		private String readLiteral() {
+			int start = this.pos;
+
+			while (this.pos < this.raw.length()) {
+				char c = this.raw.charAt(this.pos);
+
+				if (c == ',' || c == '}' || c == ']' || isWhitespace(c)) {
+					break;
+				}
+
+				this.pos++;
+			}
+
+			if (start == this.pos) {
+				throw new IllegalArgumentException("Expected a value at " + start);
+			}
+
+			String literal = this.raw.substring(start, this.pos);
+
+			if (!literal.equals("true") && !literal.equals("false") && !literal.equals("null") &&
+			    !NUMBER.matcher(literal).matches()) {
+				this.lenient = true;
+			}
+
+			return literal;
+		}
+
+		private void skipString() {
+			this.expectHere('"');
+
+			while (true) {
+				char c = this.raw.charAt(this.pos++);
+
+				if (c == '"') {
+					return;
+				}
+
+				if (c == '\\') {
+					this.skipEscape();
+				} else {
+					this.checkCharacter(c);
+				}
+			}
+		}
+
+		private void skipEscape() {
+			char escaped = this.raw.charAt(this.pos++);
+
+			switch (escaped) {
+				case '"', '\\', '/', 'b', 'f', 'n', 'r', 't' -> {
+				}
+				case 'u' -> {
+					Integer.parseInt(this.raw.substring(this.pos, this.pos + 4), 16);
+					this.pos += 4;
+				}
+				default -> throw new IllegalArgumentException("Invalid escape sequence at " + this.pos);
+			}
+		}
+
+		/**
+		 * Control characters must be escaped inside strings.
+		 */
+		private void checkCharacter(char c) {
+			if (c < 0x20) {
+				this.lenient = true;
+			}
+		}
+
+		private String readString() {
+			this.skipWhitespace();
+			this.expectHere('"');
+			int start = this.pos;
+
+			// Fast path: strings without escape sequences are copied directly
+			while (true) {
+				char c = this.raw.charAt(this.pos);
+
+				if (c == '"') {
+					return this.raw.substring(start, this.pos++);
+				}
+
+				if (c == '\\') {
+					break;
+				}
+
+				this.checkCharacter(c);
+				this.pos++;
+			}
+
+			StringBuilder result = new StringBuilder(this.raw.length() - start);
+			result.append(this.raw, start, this.pos);
+
+			while (true) {
+				char c = this.raw.charAt(this.pos++);
+
+				if (c == '"') {
+					return result.toString();
+				}
+
+				if (c != '\\') {
+					this.checkCharacter(c);
+					result.append(c);
+					continue;
+				}
+
+				char escaped = this.raw.charAt(this.pos++);
+
+				switch (escaped) {
+					case '"', '\\', '/' -> result.append(escaped);
+					case 'b' -> result.append('\b');
+					case 'f' -> result.append('\f');
+					case 'n' -> result.append('\n');
+					case 'r' -> result.append('\r');
+					case 't' -> result.append('\t');
+					case 'u' -> {
+						result.append((char) Integer.parseInt(this.raw.substring(this.pos, this.pos + 4), 16));
+						this.pos += 4;
+					}
+					default -> throw new IllegalArgumentException("Invalid escape sequence at " + this.pos);
+				}
+			}
+		}
+
+		private char peek() {
+			return this.raw.charAt(this.pos);
+		}
+
+		private void expect(char expected) {
+			this.skipWhitespace();
+			this.expectHere(expected);
+		}
+
+		private void expectHere(char expected) {
+			if (this.raw.charAt(this.pos) != expected) {
+				throw new IllegalArgumentException("Expected '" + expected + "' at " + this.pos);
+			}
+
+			this.pos++;
+		}
+
+		private boolean consumeIf(char expected) {
+			this.skipWhitespace();
+
+			if (this.pos < this.raw.length() && this.raw.charAt(this.pos) == expected) {
+				this.pos++;
+				return true;
+			}
+
+			return false;
+		}
+
+		private void skipWhitespace() {
+			while (this.pos < this.raw.length() && isWhitespace(this.raw.charAt(this.pos))) {
+				if (this.raw.charAt(this.pos) == '\n' || this.raw.charAt(this.pos) == '\r') {
+					this.multiline = true;
+				}
+
+				this.pos++;
+			}
+		}
+
+		private static boolean isWhitespace(char c) {
+			return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+		}
+	}
+}
@@ -1,16 +1,21 @@
 package rs.chat.net.ws;
 
-import com.google.gson.JsonObject;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 import rs.chat.config.security.JWTService;
 import rs.chat.exceptions.TokenValidationException;
+import rs.chat.net.ws.protocol.CborTranscoder;
+import rs.chat.net.ws.protocol.CompressionSampler;
+import rs.chat.net.ws.protocol.ProtocolHandshakeHandler;
+import rs.chat.net.ws.protocol.ProtocolSessionDecorator;
+import rs.chat.net.ws.protocol.WireProtocol;
 import rs.chat.net.ws.strategies.messages.MessageHandlingDTO;
 import rs.chat.net.ws.strategies.messages.MessageStrategy;
 import rs.chat.net.ws.strategies.messages.MessageStrategyMappings;
@@ -34,11 +39,17 @@ import static rs.chat.utils.Utils.createMessage;
 
 /**
  * WebSocket handler for the application.
+ * <p>
+ * Clients send and receive JSON messages in text frames, unless they negotiate a binary
+ * {@link WireProtocol} during the handshake. Binary messages are converted to JSON when
+ * they are received, and the session of the client converts the messages sent to it (see
+ * {@link ProtocolSessionDecorator}), so the rest of the server only deals with JSON.
+ * Compression (permessage-deflate) is negotiated by the {@link ProtocolHandshakeHandler}.
  */
 @Slf4j
 @Component
 @RequiredArgsConstructor
-public class WebSocketHandler extends TextWebSocketHandler {
+public class WebSocketHandler extends AbstractWebSocketHandler {
 	private static final String EMPTY_TOKEN = JWT_TOKEN_PREFIX + "empty";
 	private static final String CONNECTION_MESSAGE_CONTENT = "Connection";
 	private static final String PING_MESSAGE_CONTENT = "I am a ping message";
@@ -47,6 +58,8 @@ public class WebSocketHandler extends TextWebSocketHandler {
 	private final Metrics metrics;
 	private final JWTService jwtService;
 	private final RateLimiter rateLimiter;
+	private final ChatManagement chatManagement;
+	private final CompressionSampler compressionSampler;
 
 	/**
 	 * Handles text messages (JSON string).
@@ -55,9 +68,10 @@ public class WebSocketHandler extends TextWebSocketHandler {
 	 * @param message message received from the client.
 	 */
 	@Override
-	protected void handleTextMessage(@NotNull WebSocketSession session,
+	protected void handleTextMessage(@NotNull WebSocketSession rawSession,
 	                                 @NotNull TextMessage message) throws IOException {
 		long start = System.currentTimeMillis();
+		WebSocketSession session = ProtocolSessionDecorator.decorate(rawSession, this.compressionSampler);
 		JsonMessageWrapper wrappedMessage = new JsonMessageWrapper(message.getPayload());
 
 		if (!wrappedMessage.correctStructure()) {
@@ -100,7 +114,7 @@ public class WebSocketHandler extends TextWebSocketHandler {
 
 		// Scheduled messages contain, as content, only a string with the message and the
 		// string of the constant SCHEDULE_STRING.
-		boolean hasTextBody = this.hasTextBody(wrappedMessage);
+		boolean hasTextBody = wrappedMessage.hasTextBody();
 		if (hasTextBody && wrappedMessage.content().contains(SCHEDULE_STRING)) {
 			// Message format is: <content>SCHEDULE_STRING<date>
 			String[] strings = wrappedMessage.content().split(SCHEDULE_STRING);
@@ -130,6 +144,34 @@ public class WebSocketHandler extends TextWebSocketHandler {
 		}
 	}
 
+	/**
+	 * Handles binary messages of the clients that use a binary {@link WireProtocol}. They
+	 * are converted to JSON and handled as text messages.
+	 *
+	 * @param session remote WebSocket session of the client in the server.
+	 * @param message message received from the client.
+	 */
+	@Override
+	protected void handleBinaryMessage(@NotNull WebSocketSession session,
+	                                   @NotNull BinaryMessage message) throws IOException {
+		if (!WireProtocol.of(session).isBinary()) {
+			session.close(CloseStatus.NOT_ACCEPTABLE.withReason("Binary messages not supported"));
+			return;
+		}
+
+		String json;
+
+		try {
+			json = CborTranscoder.toJson(message.getPayload());
+		} catch (IOException e) {
+			log.debug("Invalid binary message ({})", e.getMessage());
+			session.close(CloseStatus.BAD_DATA);
+			return;
+		}
+
+		this.handleTextMessage(session, new TextMessage(json));
+	}
+
 	/**
 	 * Sends a message directly to the client.
 	 *
@@ -161,6 +203,19 @@ public class WebSocketHandler extends TextWebSocketHandler {
 		session.close(CloseStatus.SERVER_ERROR);
 	}
 
+	/**
+	 * Removes the clients of the closed session from all the chats. This happens when the
+	 * client closes the connection without leaving the chat, when there is a transport
+	 * error or when the client is disconnected for being too slow.
+	 *
+	 * @param session remote WebSocket session of the client in the server.
+	 * @param status  reason why the session was closed.
+	 */
+	@Override
+	public void afterConnectionClosed(@NotNull WebSocketSession session, @NotNull CloseStatus status) {
+		this.chatManagement.removeClientsOfSession(session);
+	}
+
 	/**
 	 * Checks if the message must contain a valid token, or it could be ignored.
 	 *
@@ -188,16 +243,4 @@ public class WebSocketHandler extends TextWebSocketHandler {
 	private boolean isParseable(String message) {
 		return message.contains("/") || message.contains("@");
 	}
-
-	/**
-	 * Checks if the message has text body (check {@link JsonObject#isJsonPrimitive()}).
-	 * If it is not, it is a JSON object (unable to parse a {@link String} inside it).
-	 *
-	 * @param wrappedMessage message to check.
-	 *
-	 * @return {@code true} if the message has a string as body, {@code false} otherwise.
-	 */
-	private boolean hasTextBody(JsonMessageWrapper wrappedMessage) {
-		return wrappedMessage.body().get("content").isJsonPrimitive();
-	}
 }
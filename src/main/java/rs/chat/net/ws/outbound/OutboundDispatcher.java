@@ -0,0 +1,54 @@
+package rs.chat.net.ws.outbound;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static rs.chat.utils.Constants.OUTBOUND_DISPATCHER_THREADS;
+import static rs.chat.utils.Constants.OUTBOUND_MAX_LAG_MILLIS;
+import static rs.chat.utils.Constants.OUTBOUND_OVERFLOW_POLICY;
+import static rs.chat.utils.Constants.OUTBOUND_QUEUE_CAPACITY;
+
+/**
+ * Dispatcher that writes the outbound WebSocket frames to the clients in a dedicated
+ * pool of threads. The threads that handle the inbound messages only enqueue the frames
+ * (see {@link OutboundQueue}), so they are never blocked by a slow socket.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class OutboundDispatcher {
+	private static final ExecutorService EXECUTOR_SERVICE;
+
+	static {
+		AtomicInteger threadCount = new AtomicInteger();
+
+		EXECUTOR_SERVICE = Executors.newFixedThreadPool(OUTBOUND_DISPATCHER_THREADS, runnable -> {
+			Thread t = new Thread(runnable, "ws-outbound-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Creates a new queue for a client with the configured capacity, overflow policy and
+	 * maximum lag.
+	 *
+	 * @param writer            writes the frames to the client.
+	 * @param disconnectHandler action executed when the client must be disconnected.
+	 *
+	 * @return the queue of the client.
+	 */
+	public static OutboundQueue newQueue(OutboundQueue.FrameWriter writer, Consumer<String> disconnectHandler) {
+		return new OutboundQueue(
+				OUTBOUND_QUEUE_CAPACITY,
+				OUTBOUND_OVERFLOW_POLICY,
+				OUTBOUND_MAX_LAG_MILLIS,
+				EXECUTOR_SERVICE,
+				writer,
+				disconnectHandler
+		);
+	}
+}
@@ -0,0 +1,20 @@
+package rs.chat.net.ws.outbound;
+
+import org.springframework.web.socket.WebSocketMessage;
+
+/**
+ * Frame waiting in the {@link OutboundQueue} of a client.
+ *
+ * @param message        encoded message to send (shared between all the recipients).
+ * @param transientFrame {@code true} if the frame is not stored in the history and can be
+ *                       discarded by the {@link OverflowPolicy#COALESCE} policy.
+ * @param enqueuedNanos  value of {@link System#nanoTime()} when the frame was enqueued.
+ */
+public record OutboundFrame(WebSocketMessage<?> message, boolean transientFrame, long enqueuedNanos) {
+	/**
+	 * @return size of the encoded message in bytes.
+	 */
+	public int size() {
+		return this.message.getPayloadLength();
+	}
+}
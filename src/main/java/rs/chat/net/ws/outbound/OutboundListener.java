@@ -0,0 +1,46 @@
+package rs.chat.net.ws.outbound;
+
+/**
+ * Receives the events of the {@link OutboundQueue} of a client, used to track how far
+ * behind each client is.
+ */
+public interface OutboundListener {
+	/**
+	 * Listener that ignores all the events.
+	 */
+	OutboundListener NO_OP = new OutboundListener() {
+	};
+
+	/**
+	 * Called when a frame has been written to the client.
+	 *
+	 * @param queuedNanos time that the frame has been waiting in the queue.
+	 */
+	default void onFrameSent(long queuedNanos) {
+	}
+
+	/**
+	 * Called when a drain task starts writing the queued frames.
+	 *
+	 * @param depth         number of frames in the queue.
+	 * @param bufferedBytes bytes of the frames in the queue.
+	 */
+	default void onDrain(int depth, long bufferedBytes) {
+	}
+
+	/**
+	 * Called when frames are discarded by the {@link OverflowPolicy}.
+	 *
+	 * @param count number of discarded frames.
+	 */
+	default void onFramesDropped(int count) {
+	}
+
+	/**
+	 * Called when the client is disconnected because it cannot keep up.
+	 *
+	 * @param reason reason of the disconnection ({@code overflow}, {@code lag} or {@code error}).
+	 */
+	default void onSlowClientDisconnected(String reason) {
+	}
+}
@@ -0,0 +1,277 @@
+package rs.chat.net.ws.outbound;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Bounded queue of the frames that are pending to be sent to a client.
+ * <p>
+ * Frames are enqueued by the thread that handles the inbound message and written to the
+ * socket by the {@link OutboundDispatcher}, so a slow client only delays its own frames.
+ * At most one drain task is running for each queue, which keeps the order of the frames.
+ * When the queue is full, the configured {@link OverflowPolicy} is applied.
+ * <p>
+ * The queue also keeps track of how far behind the client is (queued frames and bytes,
+ * last successful send). A client is disconnected when a frame cannot be written to it or
+ * when the oldest queued frame has been waiting for more than the maximum lag.
+ */
+@Slf4j
+public final class OutboundQueue {
+	/**
+	 * Maximum number of frames written by a drain task before giving the thread back to
+	 * the dispatcher, so busy clients do not starve the rest.
+	 */
+	private static final int MAX_FRAMES_PER_DRAIN = 64;
+
+	private final Deque<OutboundFrame> frames = new ArrayDeque<>();
+	private final int capacity;
+	private final OverflowPolicy overflowPolicy;
+	private final long maxLagNanos;
+	private final Executor executor;
+	private final FrameWriter writer;
+	private final Consumer<String> disconnectHandler;
+	private volatile OutboundListener listener = OutboundListener.NO_OP;
+	private long bufferedBytes = 0;
+	private volatile long lastSuccessfulSendMillis = System.currentTimeMillis();
+	private boolean draining = false;
+	private boolean disconnected = false;
+
+	/**
+	 * Creates a new queue.
+	 *
+	 * @param capacity          maximum number of frames that can be queued.
+	 * @param overflowPolicy    policy to apply when the queue is full.
+	 * @param maxLagMillis      maximum time that a frame can wait in the queue before the client
+	 *                          is considered hopelessly lagging and disconnected.
+	 * @param executor          executor that runs the drain tasks.
+	 * @param writer            writes the frames to the client.
+	 * @param disconnectHandler action executed (once) when the client must be disconnected.
+	 *                          It receives the reason of the disconnection.
+	 */
+	public OutboundQueue(int capacity, OverflowPolicy overflowPolicy, long maxLagMillis, Executor executor,
+	                     FrameWriter writer, Consumer<String> disconnectHandler) {
+		this.capacity = capacity;
+		this.overflowPolicy = overflowPolicy;
+		this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+		this.executor = executor;
+		this.writer = writer;
+		this.disconnectHandler = disconnectHandler;
+	}
+
+	/**
+	 * Sets the listener that receives the events of this queue.
+	 *
+	 * @param listener listener to set.
+	 */
+	public void setListener(OutboundListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Enqueues the frame to be sent and schedules a drain task if there is none running.
+	 *
+	 * @param message        encoded message to send.
+	 * @param transientFrame {@code true} if the frame can be discarded by {@link OverflowPolicy#COALESCE}.
+	 *
+	 * @return {@code true} if the frame was enqueued, {@code false} if the client has been
+	 * disconnected.
+	 */
+	public boolean offer(WebSocketMessage<?> message, boolean transientFrame) {
+		OutboundFrame frame = new OutboundFrame(message, transientFrame, System.nanoTime());
+		boolean scheduleDrain;
+		String disconnectReason = null;
+		int dropped = 0;
+
+		synchronized (this) {
+			if (this.disconnected) {
+				return false;
+			}
+
+			OutboundFrame oldest = this.frames.peekFirst();
+
+			if (oldest != null && frame.enqueuedNanos() - oldest.enqueuedNanos() > this.maxLagNanos) {
+				disconnectReason = "lag";
+			} else if (this.frames.size() >= this.capacity) {
+				dropped = this.makeRoom();
+
+				if (dropped == 0) {
+					disconnectReason = "overflow";
+				}
+			}
+
+			if (disconnectReason != null) {
+				this.markDisconnected();
+			} else {
+				this.frames.addLast(frame);
+				this.bufferedBytes += frame.size();
+			}
+
+			scheduleDrain = disconnectReason == null && !this.draining;
+			this.draining |= scheduleDrain;
+		}
+
+		if (dropped > 0) {
+			this.listener.onFramesDropped(dropped);
+		}
+
+		if (disconnectReason != null) {
+			this.disconnect(disconnectReason);
+			return false;
+		}
+
+		if (scheduleDrain) {
+			this.executor.execute(this::drain);
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return number of frames waiting to be sent.
+	 */
+	public synchronized int size() {
+		return this.frames.size();
+	}
+
+	/**
+	 * @return bytes of the frames waiting to be sent.
+	 */
+	public synchronized long bufferedBytes() {
+		return this.bufferedBytes;
+	}
+
+	/**
+	 * @return epoch millis of the last frame successfully written to the client (or of the
+	 * creation of the queue if none has been written yet).
+	 */
+	public long lastSuccessfulSendMillis() {
+		return this.lastSuccessfulSendMillis;
+	}
+
+	/**
+	 * Frees at least one slot of the queue following the overflow policy.
+	 *
+	 * @return number of discarded frames, {@code 0} if the client must be disconnected.
+	 */
+	private int makeRoom() {
+		int sizeBefore = this.frames.size();
+
+		switch (this.overflowPolicy) {
+			case DROP_OLDEST -> this.pollFirst();
+			case COALESCE -> {
+				if (this.frames.removeIf(OutboundFrame::transientFrame)) {
+					this.bufferedBytes = this.frames.stream().mapToLong(OutboundFrame::size).sum();
+				} else {
+					this.pollFirst();
+				}
+			}
+			case DISCONNECT -> {
+				return 0;
+			}
+		}
+
+		return sizeBefore - this.frames.size();
+	}
+
+	/**
+	 * Removes the first frame of the queue, updating the buffered bytes.
+	 *
+	 * @return the removed frame or {@code null} if the queue is empty.
+	 */
+	private OutboundFrame pollFirst() {
+		OutboundFrame frame = this.frames.pollFirst();
+
+		if (frame != null) {
+			this.bufferedBytes -= frame.size();
+		}
+
+		return frame;
+	}
+
+	/**
+	 * Discards the queued frames and rejects new ones. Must be called holding the lock.
+	 */
+	private void markDisconnected() {
+		this.disconnected = true;
+		this.frames.clear();
+		this.bufferedBytes = 0;
+	}
+
+	/**
+	 * Notifies the disconnection of the client.
+	 *
+	 * @param reason reason of the disconnection.
+	 */
+	private void disconnect(String reason) {
+		log.warn("Disconnecting slow client (reason: {})", reason);
+		this.listener.onSlowClientDisconnected(reason);
+		this.disconnectHandler.accept(reason);
+	}
+
+	/**
+	 * Writes the queued frames to the client. After {@link #MAX_FRAMES_PER_DRAIN} frames,
+	 * the task is rescheduled to let other clients use the thread.
+	 */
+	private void drain() {
+		OutboundListener currentListener = this.listener;
+
+		synchronized (this) {
+			currentListener.onDrain(this.frames.size(), this.bufferedBytes);
+		}
+
+		for (int i = 0; i < MAX_FRAMES_PER_DRAIN; i++) {
+			OutboundFrame frame;
+
+			synchronized (this) {
+				frame = this.pollFirst();
+
+				if (frame == null) {
+					this.draining = false;
+					return;
+				}
+			}
+
+			try {
+				this.writer.write(frame.message());
+				this.lastSuccessfulSendMillis = System.currentTimeMillis();
+				currentListener.onFrameSent(System.nanoTime() - frame.enqueuedNanos());
+			} catch (IOException e) {
+				log.error("Could not send message to client", e);
+
+				synchronized (this) {
+					this.markDisconnected();
+					this.draining = false;
+				}
+
+				this.disconnect("error");
+				return;
+			} catch (Exception e) {
+				log.error("Could not send message to client", e);
+			}
+		}
+
+		this.executor.execute(this::drain);
+	}
+
+	/**
+	 * Writes a frame to the client.
+	 */
+	@FunctionalInterface
+	public interface FrameWriter {
+		/**
+		 * Writes the frame to the client.
+		 *
+		 * @param message frame to write.
+		 *
+		 * @throws IOException if the frame could not be written.
+		 */
+		void write(WebSocketMessage<?> message) throws IOException;
+	}
+}
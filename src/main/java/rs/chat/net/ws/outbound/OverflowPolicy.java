@@ -0,0 +1,21 @@
+package rs.chat.net.ws.outbound;
+
+/**
+ * Policies to apply when the outbound queue of a client is full.
+ */
+public enum OverflowPolicy {
+	/**
+	 * The oldest queued frame is dropped to make room for the new one.
+	 */
+	DROP_OLDEST,
+	/**
+	 * The queued transient frames (the ones that are not stored in the history, like
+	 * typing, join or leave events) are dropped, because newer ones supersede them.
+	 * If there are no transient frames in the queue, the oldest frame is dropped.
+	 */
+	COALESCE,
+	/**
+	 * The client is disconnected, since it is not able to keep up with the chat.
+	 */
+	DISCONNECT
+}
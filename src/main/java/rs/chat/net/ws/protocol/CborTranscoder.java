@@ -0,0 +1,84 @@
+package rs.chat.net.ws.protocol;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts messages between JSON and CBOR. The tokens are copied from one format to the
+ * other as they are read, without building a tree.
+ * <p>
+ * Messages are handled as JSON inside the server, so only the messages received from and
+ * sent to {@link WireProtocol#CBOR} clients are converted.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class CborTranscoder {
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final CBORFactory CBOR_FACTORY = new CBORFactory();
+
+	/**
+	 * Converts a JSON message to CBOR.
+	 *
+	 * @param json JSON message.
+	 *
+	 * @return the CBOR encoded message.
+	 *
+	 * @throws UncheckedIOException if the message is not valid JSON.
+	 */
+	public static byte[] toCbor(String json) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(json.length());
+
+		try (JsonParser parser = JSON_FACTORY.createParser(json);
+		     JsonGenerator generator = CBOR_FACTORY.createGenerator(out)) {
+			parser.nextToken();
+			generator.copyCurrentStructure(parser);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Converts a CBOR message to JSON.
+	 *
+	 * @param cbor CBOR encoded message.
+	 *
+	 * @return the JSON message.
+	 *
+	 * @throws IOException if the message is not valid CBOR.
+	 */
+	public static String toJson(ByteBuffer cbor) throws IOException {
+		StringWriter out = new StringWriter(cbor.remaining() + 32);
+
+		try (JsonParser parser = createParser(cbor);
+		     JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+			if (parser.nextToken() == null) {
+				throw new IOException("Empty CBOR message");
+			}
+
+			generator.copyCurrentStructure(parser);
+		}
+
+		return out.toString();
+	}
+
+	private static JsonParser createParser(ByteBuffer cbor) throws IOException {
+		if (cbor.hasArray()) {
+			return CBOR_FACTORY.createParser(cbor.array(), cbor.arrayOffset() + cbor.position(), cbor.remaining());
+		}
+
+		byte[] bytes = new byte[cbor.remaining()];
+		cbor.duplicate().get(bytes);
+		return CBOR_FACTORY.createParser(bytes);
+	}
+}
@@ -0,0 +1,122 @@
+package rs.chat.net.ws.protocol;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import rs.chat.net.ws.MessageEnvelope;
+import rs.chat.observability.metrics.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.Deflater;
+
+import static rs.chat.net.ws.protocol.ProtocolHandshakeHandler.PERMESSAGE_DEFLATE;
+import static rs.chat.utils.Constants.WS_COMPRESSION_SAMPLE_MIN_BYTES;
+import static rs.chat.utils.Constants.WS_COMPRESSION_SAMPLE_RATE;
+
+/**
+ * Estimates how well the messages sent to the clients are compressed by the
+ * {@value ProtocolHandshakeHandler#PERMESSAGE_DEFLATE} extension, and how much CPU it costs,
+ * for each type of message.
+ * <p>
+ * The container does not expose these figures, so a fraction of the messages (those bigger
+ * than {@code WS_COMPRESSION_SAMPLE_MIN_BYTES}, with a probability of
+ * {@code WS_COMPRESSION_SAMPLE_RATE}) is compressed again with the same algorithm (raw
+ * deflate) and the result is recorded in the {@link Metrics}.
+ */
+@Component
+public class CompressionSampler {
+	private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+	private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
+
+	private final Metrics metrics;
+	private final int minBytes;
+	private final double sampleRate;
+
+	@Autowired
+	public CompressionSampler(Metrics metrics) {
+		this(metrics, WS_COMPRESSION_SAMPLE_MIN_BYTES, WS_COMPRESSION_SAMPLE_RATE);
+	}
+
+	/**
+	 * Creates a sampler with the given configuration.
+	 *
+	 * @param metrics    metrics to record the samples.
+	 * @param minBytes   minimum size of the sampled messages.
+	 * @param sampleRate probability of sampling a message ({@code 0} disables sampling).
+	 */
+	public CompressionSampler(Metrics metrics, int minBytes, double sampleRate) {
+		this.metrics = metrics;
+		this.minBytes = minBytes;
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * @param session session to check.
+	 *
+	 * @return {@code true} if the messages of the session are compressed and sampling is enabled.
+	 */
+	public boolean appliesTo(WebSocketSession session) {
+		return this.sampleRate > 0 &&
+				session.getExtensions().stream().anyMatch(e -> e.getName().equals(PERMESSAGE_DEFLATE));
+	}
+
+	/**
+	 * Records the compression of the message if it is selected to be sampled.
+	 *
+	 * @param message message sent to a client of a session with compression.
+	 */
+	public void sample(WebSocketMessage<?> message) {
+		int length = message.getPayloadLength();
+
+		if (length < this.minBytes || ThreadLocalRandom.current().nextDouble() >= this.sampleRate) {
+			return;
+		}
+
+		String type;
+		byte[] payload;
+
+		if (message instanceof TextMessage textMessage) {
+			MessageEnvelope envelope = MessageEnvelope.parse(textMessage.getPayload());
+			String header = envelope == null ? null : envelope.header("type");
+			type = header == null ? "unknown" : header;
+			payload = textMessage.asBytes();
+		} else if (message.getPayload() instanceof ByteBuffer buffer) {
+			type = "binary";
+			payload = new byte[buffer.remaining()];
+			buffer.duplicate().get(payload);
+		} else {
+			return;
+		}
+
+		long start = System.nanoTime();
+		int compressedLength = compressedLength(payload);
+		this.metrics.recordCompressionSample(type, payload.length, compressedLength, System.nanoTime() - start);
+	}
+
+	/**
+	 * @param payload bytes to compress.
+	 *
+	 * @return size of the payload compressed with raw deflate.
+	 */
+	private static int compressedLength(byte[] payload) {
+		Deflater deflater = DEFLATER.get();
+		byte[] buffer = BUFFER.get();
+		int compressed = 0;
+
+		try {
+			deflater.setInput(payload);
+			deflater.finish();
+
+			while (!deflater.finished()) {
+				compressed += deflater.deflate(buffer);
+			}
+		} finally {
+			deflater.reset();
+		}
+
+		return compressed;
+	}
+}
@@ -0,0 +1,87 @@
+package rs.chat.net.ws.protocol;
+
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Message that is sent to several clients. It is encoded at most once for each
+ * {@link WireProtocol}, the first time a client using that protocol needs it, and the
+ * frame is shared between all the clients of the protocol.
+ * <p>
+ * Instances are meant to be used by the thread that sends the message.
+ */
+public final class EncodedMessage {
+	@Nullable
+	private String message;
+	@Nullable
+	private final byte[] json;
+	private TextMessage textFrame;
+	private BinaryMessage binaryFrame;
+
+	public EncodedMessage(String message) {
+		this.message = message;
+		this.json = null;
+	}
+
+	/**
+	 * Creates a message that is already serialized (e.g. the pages of the history, which are
+	 * built from the stored messages), so the JSON frame is not encoded again.
+	 *
+	 * @param json the message in JSON, encoded in UTF-8.
+	 */
+	public EncodedMessage(byte[] json) {
+		this.message = null;
+		this.json = json;
+	}
+
+	/**
+	 * @param protocol protocol of the client.
+	 *
+	 * @return the frame to send to a client that uses the given protocol.
+	 */
+	public WebSocketMessage<?> frameFor(WireProtocol protocol) {
+		if (protocol.isBinary()) {
+			if (this.binaryFrame == null) {
+				this.binaryFrame = new BinaryMessage(CborTranscoder.toCbor(this.message()));
+			}
+
+			return this.binaryFrame;
+		}
+
+		if (this.textFrame == null) {
+			// Keeping the bytes avoids encoding the payload every time its length is requested
+			this.textFrame = new TextMessage(this.json != null ? this.json : this.message().getBytes(StandardCharsets.UTF_8));
+		}
+
+		return this.textFrame;
+	}
+
+	private String message() {
+		if (this.message == null) {
+			this.message = new String(this.json, StandardCharsets.UTF_8);
+		}
+
+		return this.message;
+	}
+
+	/**
+	 * @return number of bytes of all the frames created for this message.
+	 */
+	public int encodedBytes() {
+		int bytes = 0;
+
+		if (this.textFrame != null) {
+			bytes += this.textFrame.getPayloadLength();
+		}
+
+		if (this.binaryFrame != null) {
+			bytes += this.binaryFrame.getPayloadLength();
+		}
+
+		return bytes;
+	}
+}
@@ -0,0 +1,44 @@
+package rs.chat.net.ws.protocol;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
+
+import java.util.List;
+
+import static rs.chat.utils.Constants.STRING_ARRAY;
+import static rs.chat.utils.Constants.WS_COMPRESSION_ENABLED;
+
+/**
+ * Handshake handler that negotiates the {@link WireProtocol} of the clients and the
+ * {@value #PERMESSAGE_DEFLATE} extension.
+ * <p>
+ * Compression is done by the container, so when the extension is accepted all the messages
+ * of the session are compressed. It can be disabled with {@code WS_COMPRESSION_ENABLED}.
+ */
+public class ProtocolHandshakeHandler extends DefaultHandshakeHandler {
+	public static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+	public ProtocolHandshakeHandler() {
+		this.setSupportedProtocols(WireProtocol.SUBPROTOCOLS.toArray(STRING_ARRAY));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected @NotNull List<WebSocketExtension> filterRequestedExtensions(@NotNull ServerHttpRequest request,
+	                                                                      @NotNull List<WebSocketExtension> requestedExtensions,
+	                                                                      @NotNull List<WebSocketExtension> supportedExtensions) {
+		List<WebSocketExtension> extensions = super.filterRequestedExtensions(request, requestedExtensions, supportedExtensions);
+
+		if (WS_COMPRESSION_ENABLED) {
+			return extensions;
+		}
+
+		return extensions.stream()
+		                 .filter(extension -> !extension.getName().equals(PERMESSAGE_DEFLATE))
+		                 .toList();
+	}
+}
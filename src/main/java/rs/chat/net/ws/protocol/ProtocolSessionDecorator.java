@@ -0,0 +1,73 @@
+package rs.chat.net.ws.protocol;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import java.io.IOException;
+
+/**
+ * Session of a client that uses a binary {@link WireProtocol} or compression. The text
+ * (JSON) messages sent through it are converted to binary frames if needed, so the code
+ * that sends messages does not need to know the protocol of the client. Binary frames are
+ * sent as they are. When the session is compressed, the messages are passed to the
+ * {@link CompressionSampler}.
+ */
+public class ProtocolSessionDecorator extends WebSocketSessionDecorator {
+	private final boolean binary;
+	@Nullable
+	private final CompressionSampler compressionSampler;
+
+	private ProtocolSessionDecorator(WebSocketSession session, boolean binary,
+	                                 @Nullable CompressionSampler compressionSampler) {
+		super(session);
+		this.binary = binary;
+		this.compressionSampler = compressionSampler;
+	}
+
+	/**
+	 * Decorates the session if the client uses a binary protocol or compression.
+	 *
+	 * @param session            session to decorate.
+	 * @param compressionSampler sampler for the compressed sessions.
+	 *
+	 * @return the decorated session, or the same session if the client uses uncompressed
+	 * JSON (or it is already decorated).
+	 */
+	public static WebSocketSession decorate(WebSocketSession session, CompressionSampler compressionSampler) {
+		if (session instanceof ProtocolSessionDecorator) {
+			return session;
+		}
+
+		boolean binary = WireProtocol.of(session).isBinary();
+		boolean compressed = compressionSampler.appliesTo(session);
+
+		if (!binary && !compressed) {
+			return session;
+		}
+
+		return new ProtocolSessionDecorator(session, binary, compressed ? compressionSampler : null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void sendMessage(@NotNull WebSocketMessage<?> message) throws IOException {
+		WebSocketMessage<?> frame = message;
+
+		if (this.binary && message instanceof TextMessage textMessage) {
+			frame = new BinaryMessage(CborTranscoder.toCbor(textMessage.getPayload()));
+		}
+
+		super.sendMessage(frame);
+
+		if (this.compressionSampler != null) {
+			this.compressionSampler.sample(frame);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package rs.chat.net.ws.protocol;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.List;
+
+/**
+ * Encodings of the messages exchanged with the clients. All of them carry the same
+ * headers/body model (see {@link rs.chat.net.ws.JsonMessageWrapper}).
+ * <p>
+ * The encoding is negotiated during the handshake with the {@code Sec-WebSocket-Protocol}
+ * header. Clients that do not request any of the supported subprotocols use JSON.
+ */
+@Getter
+@RequiredArgsConstructor
+public enum WireProtocol {
+	/**
+	 * JSON messages in text frames (default).
+	 */
+	JSON(null),
+	/**
+	 * CBOR messages in binary frames.
+	 */
+	CBOR("rschat.cbor.v1");
+
+	/**
+	 * Subprotocols that can be negotiated by the clients.
+	 */
+	public static final List<String> SUBPROTOCOLS = List.of(CBOR.subprotocol);
+
+	/**
+	 * Name of the subprotocol, {@code null} for the default protocol.
+	 */
+	@Nullable
+	private final String subprotocol;
+
+	/**
+	 * @param session session of the client.
+	 *
+	 * @return the protocol accepted for the session during the handshake.
+	 */
+	public static WireProtocol of(WebSocketSession session) {
+		return CBOR.subprotocol.equals(session.getAcceptedProtocol()) ? CBOR : JSON;
+	}
+
+	/**
+	 * @return {@code true} if the messages are sent in binary frames.
+	 */
+	public boolean isBinary() {
+		return this != JSON;
+	}
+}
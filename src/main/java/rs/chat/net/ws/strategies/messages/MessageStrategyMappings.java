@@ -111,7 +111,7 @@ public final class MessageStrategyMappings {
 		strategies.put(PARSEABLE_MESSAGE.type(), new ParseableMessageStrategy(this.chatManagement, this.eventPublisher, this.metrics)); // Mentions and commands
 
 		strategies.put(ACTIVE_USERS_MESSAGE.type(), new ActiveUsersStrategy(this.chatManagement));
-		strategies.put(GET_HISTORY_MESSAGE.type(), new GetHistoryStrategy());
+		strategies.put(GET_HISTORY_MESSAGE.type(), new GetHistoryStrategy(this.chatManagement));
 		strategies.put(INFO_MESSAGE.type(), new InfoMessageStrategy(this.chatManagement));
 		strategies.put(PING_MESSAGE.type(), new PingStrategy());
 		strategies.put(ERROR_MESSAGE.type(), new ErrorMessageStrategy());
@@ -1,6 +1,5 @@
 package rs.chat.net.ws.strategies.messages.impl;
 
-import com.google.gson.JsonObject;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.socket.TextMessage;
@@ -56,9 +55,7 @@ public class GenericMessageStrategy implements MessageStrategy {
 	 * @param message received message to remove sensitive fields.
 	 */
 	protected void clearSensitiveDataChangeDateAndBuildResponse(JsonMessageWrapper message) {
-		JsonObject headers = message.headers();
-		headers.remove("sessionId");
-		headers.remove("token");
+		message.removeSensitiveHeaders();
 		message.updateDateTime();
 	}
 
@@ -1,46 +1,65 @@
 package rs.chat.net.ws.strategies.messages.impl;
 
-import com.google.gson.JsonArray;
+import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.web.socket.TextMessage;
-import rs.chat.cache.CachedHistoryFile;
-import rs.chat.cache.HistoryFilesCache;
 import rs.chat.exceptions.WebSocketException;
+import rs.chat.net.ws.ChatManagement;
 import rs.chat.net.ws.Message;
+import rs.chat.net.ws.protocol.EncodedMessage;
 import rs.chat.net.ws.strategies.messages.MessageHandlingDTO;
 import rs.chat.net.ws.strategies.messages.MessageStrategy;
-import rs.chat.utils.Utils;
 
 import java.io.IOException;
 
+import static rs.chat.net.ws.Message.ERROR_MESSAGE;
 import static rs.chat.net.ws.Message.GET_HISTORY_MESSAGE;
+import static rs.chat.utils.Utils.createArrayMessage;
 import static rs.chat.utils.Utils.createMessage;
 
 /**
  * Strategy for handling {@link Message#GET_HISTORY_MESSAGE} messages.
  */
 @Slf4j
+@AllArgsConstructor
 public class GetHistoryStrategy implements MessageStrategy {
+	private final ChatManagement chatManagement;
+
 	@Override
 	public void handle(MessageHandlingDTO handlingDTO) throws WebSocketException, IOException {
 		/*
-		 * Messages are read from the history file and sent to the client. This file is cached
-		 * in memory to speed up the process of reading the messages. The cache is updated
-		 * every time a new message is sent to the chat. The client must send the page number
-		 * of the history file that it wants to read. The default page size is {@link Constants#HISTORY_PAGE_SIZE}.
+		 * Messages are read from the history of the chat and sent to the client once the
+		 * history has been loaded (if the chat has just been opened it is loaded in the
+		 * background, so this thread does not wait for it). The last messages are kept in
+		 * memory and the older ones are read from the history file (indexed and
+		 * memory-mapped) in blocks that are cached. They are copied to the response as they
+		 * are stored (each line is a JSON message), without decoding nor parsing them.
+		 * The client must send the number of messages that it has already received.
+		 * The default page size is {@link Constants#HISTORY_PAGE_SIZE}.
 		 */
 
 		// The offset of the messages that the client has already received
 		int numberOfReceivedMessagesByClient = Integer.parseInt(handlingDTO.wrappedMessage().content());
-		CachedHistoryFile historyFile = HistoryFilesCache.INSTANCE.get(handlingDTO.wrappedMessage().chatId());
+		String chatId = handlingDTO.wrappedMessage().chatId();
+		String sessionId = handlingDTO.getSession().getId();
 
-		JsonArray lastMessages = historyFile.getMoreMessagesFromOffset(numberOfReceivedMessagesByClient)
-		                                    .stream()
-		                                    .map(Utils::parseJson)
-		                                    .collect(JsonArray::new, JsonArray::add, JsonArray::addAll);
+		// The page is sent through the outbound queue of the client, because it may be sent
+		// by the thread that loads the history, at the same time as other frames.
+		this.chatManagement.getHistoryPage(chatId, numberOfReceivedMessagesByClient)
+		                   .thenAccept(lastMessages -> this.send(sessionId, chatId, new EncodedMessage(
+				                   createArrayMessage(GET_HISTORY_MESSAGE.type(), chatId, lastMessages)
+		                   )))
+		                   .exceptionally(e -> {
+			                   log.error("Could not send the history of chat {}", chatId, e);
+			                   this.send(sessionId, chatId, new EncodedMessage(
+					                   createMessage("The history of the chat could not be loaded.", ERROR_MESSAGE.type(), chatId)
+			                   ));
+			                   return null;
+		                   });
+	}
 
-		handlingDTO.getSession().sendMessage(new TextMessage(
-				createMessage(lastMessages.toString(), GET_HISTORY_MESSAGE.type(), handlingDTO.wrappedMessage().chatId())
-		));
+	private void send(String sessionId, String chatId, EncodedMessage message) {
+		if (!this.chatManagement.sendToSession(sessionId, chatId, message)) {
+			log.debug("Session {} left chat {} before the history was sent", sessionId, chatId);
+		}
 	}
 }
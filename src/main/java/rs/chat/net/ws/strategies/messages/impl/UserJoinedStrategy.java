@@ -14,7 +14,8 @@ import rs.chat.net.ws.strategies.messages.MessageStrategy;
 import java.io.IOException;
 
 import static rs.chat.net.ws.Message.USER_JOINED;
-import static rs.chat.utils.Constants.MAX_FILE_BYTES;
+import static rs.chat.utils.Constants.OUTBOUND_SESSION_BUFFER_BYTES;
+import static rs.chat.utils.Constants.OUTBOUND_SEND_TIME_LIMIT_MILLIS;
 import static rs.chat.utils.Utils.createMessage;
 
 /**
@@ -31,10 +32,12 @@ public class UserJoinedStrategy implements MessageStrategy {
 		String chatId = clientID.chatId();
 		String username = clientID.username();
 
+		// Frames are queued (and bounded) by the outbound queue of the client, so the decorator
+		// only buffers the messages sent directly to the session (history, active users...).
 		ConcurrentWebSocketSessionDecorator decorator = new ConcurrentWebSocketSessionDecorator(
 				handlingDTO.getSession(),
-				Integer.MAX_VALUE,
-				Math.toIntExact(MAX_FILE_BYTES)
+				OUTBOUND_SEND_TIME_LIMIT_MILLIS,
+				OUTBOUND_SESSION_BUFFER_BYTES
 		);
 
 		this.chatManagement.addClientToChat(new Client(decorator, clientID));
@@ -1,11 +1,21 @@
 package rs.chat.observability.metrics;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
+import rs.chat.cache.HistoryPersisterListener;
+import rs.chat.cache.HistoryWriterListener;
+import rs.chat.net.ws.outbound.OutboundListener;
+import rs.chat.net.ws.outbound.OutboundQueue;
 
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import static rs.chat.net.ws.Message.PING_MESSAGE;
 
@@ -70,4 +80,251 @@ public class Metrics {
 		this.registry.counter("chat.commands.executed", "command", command).increment();
 		this.registry.counter("chat.commands.executed.total").increment();
 	}
+
+	/**
+	 * Records a request to the NSFW classifier ({@code chat.nsfw.classifier.time}).
+	 *
+	 * @param endpoint The endpoint of the classifier ({@code image} or {@code gif}).
+	 * @param outcome  The result of the request ({@code nsfw}, {@code safe} or {@code error}).
+	 * @param nanos    The time the request took.
+	 */
+	public void recordNSFWClassification(String endpoint, String outcome, long nanos) {
+		Timer.builder("chat.nsfw.classifier.time")
+		     .tag("endpoint", endpoint)
+		     .tag("outcome", outcome)
+		     .register(this.registry)
+		     .record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Records a frame that has been encoded once and shared by all its recipients
+	 * (broadcasts and notifications).
+	 *
+	 * @param bytes      The size of the encoded frame.
+	 * @param recipients The number of clients that received the frame.
+	 */
+	public void recordSharedFrame(int bytes, int recipients) {
+		this.recordFrame("shared", bytes, recipients);
+	}
+
+	/**
+	 * Records a frame that has been encoded for a single client (mentions, direct messages).
+	 *
+	 * @param bytes The size of the encoded frame.
+	 */
+	public void recordDirectFrame(int bytes) {
+		this.recordFrame("direct", bytes, 1);
+	}
+
+	/**
+	 * Increments the allocated frames, encoded bytes and delivered frames counters. The
+	 * ratio between delivered and allocated frames is the number of encodings saved by
+	 * sharing the frames.
+	 *
+	 * @param path       The kind of frame ({@code shared} or {@code direct}).
+	 * @param bytes      The size of the encoded frame.
+	 * @param recipients The number of clients that received the frame.
+	 */
+	private void recordFrame(String path, int bytes, int recipients) {
+		this.registry.counter("chat.outbound.frames.allocated", "path", path).increment();
+		this.registry.counter("chat.outbound.bytes.encoded", "path", path).increment(bytes);
+		this.registry.counter("chat.outbound.frames.delivered", "path", path).increment(recipients);
+	}
+
+	/**
+	 * Records a message compressed to estimate the effect of the WebSocket compression:
+	 * <ul>
+	 *     <li>{@code chat.ws.compression.ratio}: compressed size divided by the original size.</li>
+	 *     <li>{@code chat.ws.compression.time}: time spent compressing the message.</li>
+	 *     <li>{@code chat.ws.compression.bytes}: original and compressed bytes of the sampled messages.</li>
+	 * </ul>
+	 *
+	 * @param type            The type of the message.
+	 * @param bytes           The size of the message.
+	 * @param compressedBytes The size of the compressed message.
+	 * @param nanos           The time spent compressing the message.
+	 */
+	public void recordCompressionSample(String type, int bytes, int compressedBytes, long nanos) {
+		DistributionSummary.builder("chat.ws.compression.ratio")
+		                   .tag("type", type)
+		                   .register(this.registry)
+		                   .record((double) compressedBytes / bytes);
+		Timer.builder("chat.ws.compression.time")
+		     .tag("type", type)
+		     .register(this.registry)
+		     .record(nanos, TimeUnit.NANOSECONDS);
+		this.registry.counter("chat.ws.compression.bytes", "type", type, "kind", "original").increment(bytes);
+		this.registry.counter("chat.ws.compression.bytes", "type", type, "kind", "compressed").increment(compressedBytes);
+	}
+
+	/**
+	 * Creates the listener that records the state of the outbound queues of the clients:
+	 * <ul>
+	 *     <li>{@code chat.outbound.queue.wait}: time that the frames wait before being written.</li>
+	 *     <li>{@code chat.outbound.queue.depth}: queued frames of a client when it is drained.</li>
+	 *     <li>{@code chat.outbound.queue.bytes}: queued bytes of a client when it is drained.</li>
+	 *     <li>{@code chat.outbound.frames.dropped}: frames discarded by the overflow policy.</li>
+	 *     <li>{@code chat.outbound.slow.clients.disconnected}: clients disconnected, by reason.</li>
+	 * </ul>
+	 * The meters are created once, since the listener is called for every frame.
+	 *
+	 * @return the listener for the outbound queues.
+	 */
+	public OutboundListener outboundListener() {
+		Timer waitTimer = Timer.builder("chat.outbound.queue.wait")
+		                       .publishPercentileHistogram()
+		                       .register(this.registry);
+		DistributionSummary depthSummary = DistributionSummary.builder("chat.outbound.queue.depth")
+		                                                      .publishPercentileHistogram()
+		                                                      .register(this.registry);
+		DistributionSummary bytesSummary = DistributionSummary.builder("chat.outbound.queue.bytes")
+		                                                      .baseUnit("bytes")
+		                                                      .publishPercentileHistogram()
+		                                                      .register(this.registry);
+
+		return new OutboundListener() {
+			@Override
+			public void onFrameSent(long queuedNanos) {
+				waitTimer.record(queuedNanos, TimeUnit.NANOSECONDS);
+			}
+
+			@Override
+			public void onDrain(int depth, long bufferedBytes) {
+				depthSummary.record(depth);
+				bytesSummary.record(bufferedBytes);
+			}
+
+			@Override
+			public void onFramesDropped(int count) {
+				Metrics.this.registry.counter("chat.outbound.frames.dropped").increment(count);
+			}
+
+			@Override
+			public void onSlowClientDisconnected(String reason) {
+				Metrics.this.registry.counter("chat.outbound.slow.clients.disconnected", "reason", reason).increment();
+			}
+		};
+	}
+
+	/**
+	 * Binds the metrics published by the given binder to the registry.
+	 *
+	 * @param binder The binder of the metrics.
+	 */
+	public void bind(MeterBinder binder) {
+		binder.bindTo(this.registry);
+	}
+
+	/**
+	 * Creates the listener that records the batches written by the
+	 * {@link rs.chat.cache.HistoryWriter}:
+	 * <ul>
+	 *     <li>{@code chat.history.batch.messages}: messages written in each batch.</li>
+	 *     <li>{@code chat.history.batch.files}: history files written in each batch.</li>
+	 *     <li>{@code chat.history.batch.bytes}: bytes written in each batch.</li>
+	 *     <li>{@code chat.history.flush.time}: time spent writing (and synchronizing) each batch.</li>
+	 *     <li>{@code chat.history.messages.lost}: messages that could not be written.</li>
+	 * </ul>
+	 *
+	 * @return the listener for the history writer.
+	 */
+	public HistoryWriterListener historyWriterListener() {
+		DistributionSummary messagesSummary = DistributionSummary.builder("chat.history.batch.messages")
+		                                                         .publishPercentileHistogram()
+		                                                         .register(this.registry);
+		DistributionSummary filesSummary = DistributionSummary.builder("chat.history.batch.files")
+		                                                      .register(this.registry);
+		DistributionSummary bytesSummary = DistributionSummary.builder("chat.history.batch.bytes")
+		                                                      .baseUnit("bytes")
+		                                                      .register(this.registry);
+		Timer flushTimer = Timer.builder("chat.history.flush.time")
+		                        .publishPercentileHistogram()
+		                        .register(this.registry);
+
+		return new HistoryWriterListener() {
+			@Override
+			public void onBatchWritten(int messages, int files, long bytes, long nanos) {
+				messagesSummary.record(messages);
+				filesSummary.record(files);
+				bytesSummary.record(bytes);
+				flushTimer.record(nanos, TimeUnit.NANOSECONDS);
+			}
+
+			@Override
+			public void onWriteFailed(int messages) {
+				Metrics.this.registry.counter("chat.history.messages.lost").increment(messages);
+			}
+		};
+	}
+
+	/**
+	 * Creates the listener that records the uploads of the {@link rs.chat.cache.HistoryPersister}:
+	 * <ul>
+	 *     <li>{@code chat.history.upload.time}: time spent uploading the new messages of a history file.</li>
+	 *     <li>{@code chat.history.upload.bytes}: bytes uploaded in each upload.</li>
+	 *     <li>{@code chat.history.upload.retries}: uploads that failed and are retried.</li>
+	 *     <li>{@code chat.history.upload.failures}: uploads that failed after all the attempts.</li>
+	 * </ul>
+	 *
+	 * @return the listener for the history persister.
+	 */
+	public HistoryPersisterListener historyPersisterListener() {
+		Timer uploadTimer = Timer.builder("chat.history.upload.time")
+		                         .publishPercentileHistogram()
+		                         .register(this.registry);
+		DistributionSummary bytesSummary = DistributionSummary.builder("chat.history.upload.bytes")
+		                                                      .baseUnit("bytes")
+		                                                      .register(this.registry);
+
+		return new HistoryPersisterListener() {
+			@Override
+			public void onUploaded(long bytes, long nanos) {
+				uploadTimer.record(nanos, TimeUnit.NANOSECONDS);
+				bytesSummary.record(bytes);
+			}
+
+			@Override
+			public void onRetry() {
+				Metrics.this.registry.counter("chat.history.upload.retries").increment();
+			}
+
+			@Override
+			public void onFailed() {
+				Metrics.this.registry.counter("chat.history.upload.failures").increment();
+			}
+		};
+	}
+
+	/**
+	 * Registers the gauges of the outbound queues of all the connected clients:
+	 * <ul>
+	 *     <li>{@code chat.outbound.clients}: connected clients.</li>
+	 *     <li>{@code chat.outbound.queued.frames}: frames waiting to be sent.</li>
+	 *     <li>{@code chat.outbound.queued.bytes}: bytes waiting to be sent.</li>
+	 *     <li>{@code chat.outbound.max.send.age}: seconds since the last successful send
+	 *     of the most delayed client that has pending frames.</li>
+	 * </ul>
+	 *
+	 * @param queues supplier of the outbound queues of the connected clients.
+	 */
+	public void registerOutboundQueueGauges(Supplier<Stream<OutboundQueue>> queues) {
+		Gauge.builder("chat.outbound.clients", () -> queues.get().count())
+		     .register(this.registry);
+		Gauge.builder("chat.outbound.queued.frames", () -> queues.get().mapToLong(OutboundQueue::size).sum())
+		     .register(this.registry);
+		Gauge.builder("chat.outbound.queued.bytes", () -> queues.get().mapToLong(OutboundQueue::bufferedBytes).sum())
+		     .baseUnit("bytes")
+		     .register(this.registry);
+		Gauge.builder("chat.outbound.max.send.age", () -> {
+			     long now = System.currentTimeMillis();
+
+			     return queues.get()
+			                  .filter(queue -> queue.size() > 0)
+			                  .mapToLong(queue -> now - queue.lastSuccessfulSendMillis())
+			                  .max()
+			                  .orElse(0) / 1000d;
+		     })
+		     .baseUnit("seconds")
+		     .register(this.registry);
+	}
 }
@@ -96,6 +96,7 @@ public class Routes {
 		public static final String DELETE_USER_URL = V_1 + "/user/delete/{id}";
 
 		public static final String UPLOAD_URL = V_1 + "/upload";
+		public static final String UPLOAD_STREAM_URL = V_1 + "/upload/stream";
 
 		public static final String JOIN_CHAT_URL = V_1 + "/chat/join/{code}";
 		public static final String CONNECT_TO_CHAT_URL = V_1 + "/chat/connect/{chatKey}";
@@ -112,7 +113,7 @@ public class Routes {
 		 */
 		public String[] lowTierRoutes() {
 			return new String[] {
-					UPLOAD_URL, JOIN_CHAT_URL, CONNECT_TO_CHAT_URL, LEAVE_CHAT_URL,
+					UPLOAD_URL, UPLOAD_STREAM_URL, JOIN_CHAT_URL, CONNECT_TO_CHAT_URL, LEAVE_CHAT_URL,
 					FRIEND_SWITCH_URL
 			};
 		}
@@ -2,34 +2,49 @@ package rs.chat.storage;
 
 import com.google.gson.JsonObject;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.RandomStringUtils;
 import rs.chat.exceptions.CouldNotUploadFileException;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.core.sync.ResponseTransformer;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.CORSRule;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
-import java.time.Clock;
-import java.time.LocalDate;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import static rs.chat.net.ws.Message.GET_HISTORY_MESSAGE;
 import static rs.chat.net.ws.Message.TEXT_MESSAGE;
+import static rs.chat.utils.Constants.HISTORY_PART_SIZE;
+import static rs.chat.utils.Constants.S3_ASYNC_UPLOADS;
 import static rs.chat.utils.Constants.S3_BUCKET_NAME;
 import static rs.chat.utils.Constants.S3_ENDPOINT_URI;
 import static rs.chat.utils.Constants.S3_ENDPOINT_URI_FOR_FILES;
@@ -40,10 +55,24 @@ import static rs.chat.utils.Constants.S3_ENDPOINT_URI_FOR_FILES;
 @Slf4j
 public final class S3 implements Closeable {
 	private static final S3 INSTANCE = new S3();
+	/**
+	 * Minimum size of the parts of a multipart upload (except the last one).
+	 */
+	private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+	/**
+	 * Maximum size of the parts of a multipart upload.
+	 */
+	private static final long MAX_PART_SIZE = 5L * 1024 * 1024 * 1024;
+	private static final long PART_SIZE = Math.min(Math.max(HISTORY_PART_SIZE, MIN_PART_SIZE), MAX_PART_SIZE);
 	private final S3Client s3Client;
+	/**
+	 * Non-blocking client used to upload the media files ({@code null} if
+	 * {@link rs.chat.utils.Constants#S3_ASYNC_UPLOADS} is disabled).
+	 */
+	private final S3AsyncClient s3AsyncClient;
 
 	/**
-	 * Private constructor that initializes the S3 client.
+	 * Private constructor that initializes the S3 clients.
 	 */
 	private S3() {
 		this.s3Client = S3Client.builder()
@@ -51,6 +80,11 @@ public final class S3 implements Closeable {
 		                        .credentialsProvider(this::obtainCredentials)
 		                        .region(Region.EU_WEST_3)
 		                        .build();
+		this.s3AsyncClient = !S3_ASYNC_UPLOADS ? null : S3AsyncClient.builder()
+		                                                             .endpointOverride(S3_ENDPOINT_URI)
+		                                                             .credentialsProvider(this::obtainCredentials)
+		                                                             .region(Region.EU_WEST_3)
+		                                                             .build();
 	}
 
 	/**
@@ -59,6 +93,10 @@ public final class S3 implements Closeable {
 	@Override
 	public void close() {
 		this.s3Client.close();
+
+		if (this.s3AsyncClient != null) {
+			this.s3AsyncClient.close();
+		}
 	}
 
 	/**
@@ -110,33 +148,138 @@ public final class S3 implements Closeable {
 	}
 
 	/**
-	 * Uploads a chat history file to S3 bucket and deletes it from the local disk.
+	 * Uploads the first bytes of a chat history file to S3 bucket. History files are
+	 * append-only, so if the object in the bucket is a prefix of them only the new bytes are
+	 * uploaded: a multipart upload is created whose first part is copied from the object
+	 * in the bucket (without transferring it) and the rest are the new bytes.
+	 * <p>
+	 * Objects smaller than the minimum size of a part are uploaded again, as a whole.
 	 *
-	 * @param chatId     the chat id of the chat history file to upload to S3 bucket.
-	 * @param removeFile whether to delete the file from the local disk after it has been uploaded to S3.
+	 * @param chatId the chat id of the chat history file to upload to S3 bucket.
+	 * @param file   the chat history file.
+	 * @param size   number of bytes of the file to upload (the file may be longer).
+	 *
+	 * @return number of bytes uploaded.
+	 *
+	 * @throws CouldNotUploadFileException if the file cannot be read.
 	 */
-	public void uploadHistoryFile(String chatId, boolean removeFile) {
-		File file = GET_HISTORY_MESSAGE.getFileInDisk(chatId);
+	public long uploadHistoryFile(String chatId, File file, long size) {
 		String s3Key = GET_HISTORY_MESSAGE.s3Key(chatId);
+		long uploadedSize = this.objectSize(s3Key);
 
-		this.s3Client.putObject(
-				PutObjectRequest.builder()
-				                .bucket(S3_BUCKET_NAME)
-				                .key(s3Key)
-				                .build(),
-				RequestBody.fromFile(file)
-		);
+		try {
+			if (uploadedSize == size) {
+				return 0;
+			} else if (uploadedSize < MIN_PART_SIZE || uploadedSize > size || uploadedSize > MAX_PART_SIZE) {
+				try (InputStream content = this.historyFileStream(file, 0)) {
+					this.s3Client.putObject(
+							PutObjectRequest.builder()
+							                .bucket(S3_BUCKET_NAME)
+							                .key(s3Key)
+							                .build(),
+							RequestBody.fromInputStream(content, size)
+					);
+				}
+
+				log.debug("Uploaded file {} to S3 bucket with key {} ({} bytes)", file.getName(), s3Key, size);
+				return size;
+			}
+
+			this.appendToObject(s3Key, file, uploadedSize, size);
+		} catch (IOException e) {
+			throw new CouldNotUploadFileException(e.getMessage());
+		}
+
+		log.debug("Appended {} bytes of file {} to S3 bucket with key {}", size - uploadedSize, file.getName(), s3Key);
+		return size - uploadedSize;
+	}
 
-		if (removeFile) {
-			try {
-				// Delete the file from the local disk after it has been uploaded to S3.
-				Files.delete(file.toPath());
-			} catch (IOException e) {
-				throw new CouldNotUploadFileException(e.getMessage());
+	/**
+	 * Replaces an object with the result of appending the given bytes of a file to it
+	 * (see {@link #uploadHistoryFile(String, File, long)}).
+	 *
+	 * @param s3Key        key of the object.
+	 * @param file         file whose bytes are appended.
+	 * @param uploadedSize size of the object, the bytes of the file before it are not uploaded.
+	 * @param size         number of bytes of the file.
+	 *
+	 * @throws IOException if the file cannot be read.
+	 */
+	private void appendToObject(String s3Key, File file, long uploadedSize, long size) throws IOException {
+		String uploadId = this.s3Client.createMultipartUpload(b -> b.bucket(S3_BUCKET_NAME).key(s3Key)).uploadId();
+		List<CompletedPart> parts = new ArrayList<>();
+
+		try {
+			UploadPartCopyResponse copied = this.s3Client.uploadPartCopy(
+					UploadPartCopyRequest.builder()
+					                     .sourceBucket(S3_BUCKET_NAME)
+					                     .sourceKey(s3Key)
+					                     .copySourceRange("bytes=0-" + (uploadedSize - 1))
+					                     .destinationBucket(S3_BUCKET_NAME)
+					                     .destinationKey(s3Key)
+					                     .uploadId(uploadId)
+					                     .partNumber(1)
+					                     .build()
+			);
+			parts.add(CompletedPart.builder().partNumber(1).eTag(copied.copyPartResult().eTag()).build());
+
+			for (long from = uploadedSize; from < size; from += PART_SIZE) {
+				int partNumber = parts.size() + 1;
+				long length = Math.min(PART_SIZE, size - from);
+
+				try (InputStream content = this.historyFileStream(file, from)) {
+					UploadPartResponse uploaded = this.s3Client.uploadPart(
+							UploadPartRequest.builder()
+							                 .bucket(S3_BUCKET_NAME)
+							                 .key(s3Key)
+							                 .uploadId(uploadId)
+							                 .partNumber(partNumber)
+							                 .build(),
+							RequestBody.fromInputStream(content, length)
+					);
+					parts.add(CompletedPart.builder().partNumber(partNumber).eTag(uploaded.eTag()).build());
+				}
 			}
+
+			this.s3Client.completeMultipartUpload(
+					b -> b.bucket(S3_BUCKET_NAME)
+					      .key(s3Key)
+					      .uploadId(uploadId)
+					      .multipartUpload(m -> m.parts(parts))
+			);
+		} catch (SdkException | IOException e) {
+			this.s3Client.abortMultipartUpload(b -> b.bucket(S3_BUCKET_NAME).key(s3Key).uploadId(uploadId));
+			throw e;
 		}
+	}
+
+	/**
+	 * Opens a stream that reads a history file from the given position.
+	 *
+	 * @param file     the file to read.
+	 * @param position first byte to read.
+	 *
+	 * @return the stream.
+	 *
+	 * @throws IOException if the file cannot be opened.
+	 */
+	private InputStream historyFileStream(File file, long position) throws IOException {
+		return Channels.newInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ).position(position));
+	}
 
-		log.debug("Uploaded file {} to S3 bucket with key {}", file.getName(), s3Key);
+	/**
+	 * Deletes a chat history file from the local disk (once it has been uploaded to S3 bucket).
+	 *
+	 * @param file the chat history file.
+	 *
+	 * @throws CouldNotUploadFileException if the file cannot be deleted.
+	 */
+	public void deleteLocalHistoryFile(File file) {
+		try {
+			Files.delete(file.toPath());
+		} catch (IOException e) {
+			throw new CouldNotUploadFileException(e.getMessage());
+		}
 	}
 
 	/**
@@ -188,33 +331,118 @@ public final class S3 implements Closeable {
 	}
 
 	/**
-	 * Uploads a file (as byte[]) to S3 bucket and returns the URL of the file.
+	 * Uploads a file to S3 bucket and returns the URL of the file. The file is read while
+	 * it is uploaded, it is not loaded in memory.
 	 *
 	 * @param mediaType the media type of the file to upload to S3 bucket.
 	 * @param fileName  the name of the file to upload to S3 bucket.
-	 * @param dataBytes bytes of the file.
+	 * @param hash      SHA-256 of the content of the file, in hexadecimal.
+	 * @param path      the file to upload.
 	 * @param metadata  metadata of the file.
 	 *
 	 * @return the URI of the file in S3 bucket.
 	 */
-	public URI uploadFile(String mediaType, String fileName, byte[] dataBytes, JsonObject metadata) {
-		String s3Key = this.s3Key(mediaType, fileName);
+	public URI uploadFile(String mediaType, String fileName, String hash, Path path, JsonObject metadata) {
+		String s3Key = s3Key(mediaType, hash, fileName);
+
+		this.s3Client.putObject(this.filePutRequest(s3Key, metadata), RequestBody.fromFile(path));
+
+		return uploadedFileURI(s3Key);
+	}
+
+	/**
+	 * Uploads a file to S3 bucket without blocking the calling thread (see
+	 * {@link #uploadFile(String, String, String, Path, JsonObject)}). If the asynchronous uploads
+	 * are disabled ({@link rs.chat.utils.Constants#S3_ASYNC_UPLOADS}), the file is uploaded
+	 * before returning.
+	 *
+	 * @param mediaType the media type of the file to upload to S3 bucket.
+	 * @param fileName  the name of the file to upload to S3 bucket.
+	 * @param hash      SHA-256 of the content of the file, in hexadecimal.
+	 * @param path      the file to upload (it must not be deleted until the upload completes).
+	 * @param metadata  metadata of the file.
+	 *
+	 * @return future completed with the URI of the file in S3 bucket.
+	 */
+	public CompletableFuture<URI> uploadFileAsync(String mediaType, String fileName, String hash, Path path, JsonObject metadata) {
+		if (this.s3AsyncClient == null) {
+			return CompletableFuture.completedFuture(this.uploadFile(mediaType, fileName, hash, path, metadata));
+		}
 
+		String s3Key = s3Key(mediaType, hash, fileName);
+
+		return this.s3AsyncClient.putObject(this.filePutRequest(s3Key, metadata), AsyncRequestBody.fromFile(path))
+		                         .thenApply(response -> uploadedFileURI(s3Key));
+	}
+
+	/**
+	 * Creates the request to upload a file with the given metadata.
+	 *
+	 * @param s3Key    the key of the file.
+	 * @param metadata metadata of the file.
+	 *
+	 * @return the request.
+	 */
+	private PutObjectRequest filePutRequest(String s3Key, JsonObject metadata) {
 		Map<String, String> metadataMap = new HashMap<>();
 		metadata.asMap().forEach((key, value) -> metadataMap.put(key, value.toString()));
 
+		return PutObjectRequest.builder()
+		                       .bucket(S3_BUCKET_NAME)
+		                       .key(s3Key)
+		                       .metadata(metadataMap)
+		                       .build();
+	}
+
+	/**
+	 * Uploads a variant of a file (e.g. a thumbnail of an image) next to the file. Its key
+	 * is the key of the file without the extension, followed by the name of the variant
+	 * and the extension of the variant.
+	 *
+	 * @param original    the URI of the file in S3 bucket.
+	 * @param variant     the name of the variant.
+	 * @param extension   the extension of the variant.
+	 * @param contentType the content type of the variant.
+	 * @param content     the content of the variant.
+	 *
+	 * @return the URI of the variant in S3 bucket.
+	 */
+	public URI uploadFileVariant(URI original, String variant, String extension, String contentType, byte[] content) {
+		String originalKey = S3_ENDPOINT_URI_FOR_FILES.relativize(original).getPath();
+		int extensionStart = originalKey.lastIndexOf('.');
+		String baseKey = extensionStart > originalKey.lastIndexOf('/') ? originalKey.substring(0, extensionStart) : originalKey;
+		String s3Key = "%s.%s.%s".formatted(baseKey, variant, extension);
+
 		this.s3Client.putObject(
 				PutObjectRequest.builder()
 				                .bucket(S3_BUCKET_NAME)
 				                .key(s3Key)
-				                .metadata(metadataMap)
+				                .contentType(contentType)
 				                .build(),
-				RequestBody.fromBytes(dataBytes)
+				RequestBody.fromBytes(content)
 		);
 
 		return uploadedFileURI(s3Key);
 	}
 
+	/**
+	 * Deletes a file uploaded with {@link #uploadFile(String, String, String, Path, JsonObject)}.
+	 *
+	 * @param uri the URI of the file in S3 bucket.
+	 */
+	public void deleteFile(URI uri) {
+		String s3Key = S3_ENDPOINT_URI_FOR_FILES.relativize(uri).getPath();
+
+		this.s3Client.deleteObject(
+				DeleteObjectRequest.builder()
+				                   .bucket(S3_BUCKET_NAME)
+				                   .key(s3Key)
+				                   .build()
+		);
+
+		log.debug("Deleted file from S3 bucket with key {}", s3Key);
+	}
+
 	/**
 	 * Creates a new {@link URI} for the specified S3 key. See
 	 * {@link rs.chat.utils.Constants#S3_ENDPOINT_URI_FOR_FILES} to see the base URI.
@@ -252,8 +480,29 @@ public final class S3 implements Closeable {
 	}
 
 	/**
-	 * Creates the key for a file to store in S3 bucket.
-	 * Syntax is the following: {type}/{year}/{month}/{day}/{prefix}_{fileName}
+	 * Returns the size of an object of the S3 bucket.
+	 *
+	 * @param s3Key the key of the object.
+	 *
+	 * @return the size of the object in bytes, or {@code 0} if it does not exist.
+	 */
+	private long objectSize(String s3Key) {
+		try {
+			return this.s3Client.headObject(
+					HeadObjectRequest.builder()
+					                 .bucket(S3_BUCKET_NAME)
+					                 .key(s3Key)
+					                 .build()
+			).contentLength();
+		} catch (NoSuchKeyException ignored) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Creates the key for a file to store in S3 bucket. The key depends on the content of
+	 * the file, so the same content is always stored in the same object.
+	 * Syntax is the following: {type}/{hash}.{extension}
 	 * <p>
 	 * {@code {type}} must be one of the following:
 	 * <ul>
@@ -263,23 +512,19 @@ public final class S3 implements Closeable {
 	 *     <li>audio</li>
 	 * </ul>
 	 * <p>
-	 * Prefix is a random generated string of 15 characters (see {@link RandomStringUtils#randomAlphanumeric(int)}).
+	 * The extension is the one of the file name, if it has one.
 	 *
+	 * @param type     the media type of the file.
+	 * @param hash     SHA-256 of the content of the file, in hexadecimal.
 	 * @param fileName name of the file to upload to S3 bucket.
 	 *
-	 * @return the key for the image to store in S3 bucket.
+	 * @return the key for the file to store in S3 bucket.
 	 */
-	private String s3Key(String type, String fileName) {
-		LocalDate date = LocalDate.now(Clock.systemUTC());
-
-		return "%s/%s/%s/%s/(%s)_%s".formatted(
-				type,
-				date.getYear(),
-				date.getMonthValue(),
-				date.getDayOfMonth(),
-				RandomStringUtils.randomAlphanumeric(15),
-				fileName
-		);
+	private static String s3Key(String type, String hash, String fileName) {
+		int extensionStart = fileName.lastIndexOf('.');
+		String extension = extensionStart < 0 ? "" : fileName.substring(extensionStart).toLowerCase(Locale.ROOT);
+
+		return "%s/%s%s".formatted(type, hash, extension.matches("^\\.[a-z0-9]{1,10}$") ? extension : "");
 	}
 
 	/**
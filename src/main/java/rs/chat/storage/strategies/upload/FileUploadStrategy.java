@@ -1,19 +1,32 @@
 package rs.chat.storage.strategies.upload;
 
+import com.google.gson.JsonObject;
+import rs.chat.net.ws.Message;
+
 import java.io.IOException;
 
+/**
+ * Strategy for the files of a type (see {@link UploadMappings}). It provides the metadata
+ * that depends on the type of the file; the file is uploaded by the {@link MediaUploadPipeline}.
+ */
 public interface FileUploadStrategy {
 	/**
-	 * Performs all the necessary operations to upload a file. This method should modify the next
-	 * file attributes:
-	 * <ul>
-	 *     <li>path</li>
-	 *     <li>metadata</li>
-	 * </ul>
+	 * @return type of the messages that contain the files uploaded with this strategy.
+	 */
+	Message messageType();
+
+	/**
+	 * Reads the metadata that depends on the type of the file (e.g. the dimensions of an
+	 * image). Only the headers of the file are read, if possible. This method is called
+	 * while the file is being uploaded, so it must not modify the file entity.
+	 *
+	 * @param mediaUploadDTO DTO that contains the file's content, specific type and file.
 	 *
-	 * @param mediaUploadDTO DTO that contains the file's binary data, specific type and file.
+	 * @return the metadata, added to the metadata of the file entity.
 	 *
 	 * @throws IOException If an I/O error occurs.
 	 */
-	void handle(MediaUploadDTO mediaUploadDTO) throws IOException;
+	default JsonObject probe(MediaUploadDTO mediaUploadDTO) throws IOException {
+		return new JsonObject();
+	}
 }
@@ -0,0 +1,260 @@
+package rs.chat.storage.strategies.upload;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/**
+ * Reads the dimensions of images. The headers of PNG, JPEG, GIF and WebP images are
+ * parsed directly, reading only a few bytes of the file. The other formats (or files whose
+ * header cannot be parsed) are read with an {@link ImageReader} of ImageIO, which decodes
+ * the whole image only if it cannot read the dimensions from the header.
+ */
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class ImageProbe {
+	/**
+	 * Dimensions of an image.
+	 *
+	 * @param width  width in pixels.
+	 * @param height height in pixels.
+	 */
+	public record Dimensions(int width, int height) {
+	}
+
+	private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	/**
+	 * Bytes read to parse the headers of PNG, GIF and WebP images (the JPEG segments are
+	 * read one by one).
+	 */
+	private static final int HEADER_BYTES = 32;
+
+	/**
+	 * Reads the dimensions of an image.
+	 *
+	 * @param path the image file.
+	 *
+	 * @return the dimensions of the image.
+	 *
+	 * @throws IOException if the file cannot be read or it is not an image.
+	 */
+	public static Dimensions dimensions(Path path) throws IOException {
+		Dimensions dimensions;
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			dimensions = fromHeader(channel);
+		}
+
+		if (dimensions != null) {
+			return dimensions;
+		}
+
+		log.debug("Could not parse the header of image {}, reading it with ImageIO", path);
+		return withImageIO(path);
+	}
+
+	/**
+	 * Parses the dimensions from the header of a PNG, JPEG, GIF or WebP image.
+	 *
+	 * @param channel the image file.
+	 *
+	 * @return the dimensions of the image, or {@code null} if the format is not supported
+	 * or the header is not valid.
+	 *
+	 * @throws IOException if the file cannot be read.
+	 */
+	public static Dimensions fromHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		read(channel, header, 0);
+
+		if (header.limit() < 4) {
+			return null;
+		}
+
+		int first = header.get(0) & 0xFF;
+
+		if (first == 0xFF && (header.get(1) & 0xFF) == 0xD8) {
+			return jpeg(channel);
+		} else if (first == 0x89) {
+			return png(header);
+		} else if (first == 'G') {
+			return gif(header);
+		} else if (first == 'R') {
+			return webp(header);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Reads the dimensions of an image with ImageIO: from its header if the reader supports
+	 * it, or decoding the image otherwise.
+	 *
+	 * @param path the image file.
+	 *
+	 * @return the dimensions of the image.
+	 *
+	 * @throws IOException if the file cannot be read or it is not an image.
+	 */
+	public static Dimensions withImageIO(Path path) throws IOException {
+		try (ImageInputStream input = ImageIO.createImageInputStream(path.toFile())) {
+			Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+
+			if (readers != null && readers.hasNext()) {
+				ImageReader reader = readers.next();
+
+				try {
+					reader.setInput(input, true, true);
+					return new Dimensions(reader.getWidth(0), reader.getHeight(0));
+				} catch (IOException | RuntimeException e) {
+					log.debug("Could not read the dimensions of image {} from its header", path, e);
+				} finally {
+					reader.dispose();
+				}
+			}
+		}
+
+		BufferedImage image = ImageIO.read(path.toFile());
+
+		if (image == null) {
+			throw new IOException("Unsupported image format");
+		}
+
+		return new Dimensions(image.getWidth(), image.getHeight());
+	}
+
+	private static Dimensions png(ByteBuffer header) {
+		// Signature (8), length (4) and type of the IHDR chunk (4), width (4), height (4)
+		if (header.limit() < 24 || !header.slice(0, 8).equals(ByteBuffer.wrap(PNG_SIGNATURE)) ||
+				header.getInt(12) != 0x49484452) { // "IHDR"
+			return null;
+		}
+
+		return valid(header.getInt(16), header.getInt(20));
+	}
+
+	private static Dimensions gif(ByteBuffer header) {
+		// "GIF87a" or "GIF89a" (6), width (2), height (2), little endian
+		if (header.limit() < 10 || header.getInt(0) != 0x47494638) { // "GIF8"
+			return null;
+		}
+
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		return valid(Short.toUnsignedInt(header.getShort(6)), Short.toUnsignedInt(header.getShort(8)));
+	}
+
+	private static Dimensions webp(ByteBuffer header) {
+		// "RIFF" (4), size (4), "WEBP" (4), type of the first chunk (4), size of the chunk (4)
+		if (header.limit() < 30 || header.getInt(0) != 0x52494646 || header.getInt(8) != 0x57454250) {
+			return null;
+		}
+
+		int chunk = header.getInt(12);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (chunk == 0x56503820) { // "VP8 ": frame tag (3), start code (3), 14-bit width and height
+			if ((header.getInt(23) & 0xFFFFFF) != 0x2A019D) {
+				return null;
+			}
+
+			return valid(header.getShort(26) & 0x3FFF, header.getShort(28) & 0x3FFF);
+		} else if (chunk == 0x5650384C) { // "VP8L": signature (1), 14-bit width - 1 and height - 1
+			if (header.get(20) != 0x2F) {
+				return null;
+			}
+
+			int bits = header.getInt(21);
+			return valid((bits & 0x3FFF) + 1, ((bits >>> 14) & 0x3FFF) + 1);
+		} else if (chunk == 0x56503858) { // "VP8X": flags (4), 24-bit canvas width - 1 and height - 1
+			int width = (header.getInt(24) & 0xFFFFFF) + 1;
+			int height = ((header.getInt(26) >>> 8) & 0xFFFFFF) + 1;
+			return valid(width, height);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Walks the segments of a JPEG image until the start of frame, which contains the
+	 * dimensions. Only the headers of the segments are read.
+	 */
+	private static Dimensions jpeg(FileChannel channel) throws IOException {
+		ByteBuffer segment = ByteBuffer.allocate(9);
+		long position = 2; // After the start of image marker
+		long size = channel.size();
+
+		while (position + 4 <= size) {
+			read(channel, segment.clear(), position);
+
+			if (segment.limit() < 4 || (segment.get(0) & 0xFF) != 0xFF) {
+				return null;
+			}
+
+			int marker = segment.get(1) & 0xFF;
+
+			if (marker == 0xFF) { // Fill byte
+				position++;
+				continue;
+			}
+
+			if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) { // Markers without length
+				position += 2;
+				continue;
+			}
+
+			if (marker == 0xD9 || marker == 0xDA) { // End of image or start of scan before the frame
+				return null;
+			}
+
+			int length = Short.toUnsignedInt(segment.getShort(2));
+
+			// Start of frame markers (except DHT, JPG and DAC, which share the range)
+			if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+				// Length (2), precision (1), height (2), width (2)
+				if (segment.limit() < 9) {
+					return null;
+				}
+
+				return valid(Short.toUnsignedInt(segment.getShort(7)), Short.toUnsignedInt(segment.getShort(5)));
+			}
+
+			if (length < 2) {
+				return null;
+			}
+
+			position += 2 + length;
+		}
+
+		return null;
+	}
+
+	private static Dimensions valid(int width, int height) {
+		return width > 0 && height > 0 ? new Dimensions(width, height) : null;
+	}
+
+	/**
+	 * Reads from the given position until the buffer is full or the end of the file, and
+	 * flips the buffer.
+	 */
+	private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+
+		buffer.flip();
+	}
+}
@@ -2,37 +2,27 @@ package rs.chat.storage.strategies.upload;
 
 import com.google.gson.JsonObject;
 import rs.chat.net.ws.Message;
-import rs.chat.storage.S3;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.net.URI;
-
-import static rs.chat.utils.Utils.bytesToUnit;
 
 public class ImageStrategy implements FileUploadStrategy {
 	@Override
-	public void handle(MediaUploadDTO mediaUploadDTO) throws IOException {
-		BufferedImage image = ImageIO.read(new ByteArrayInputStream(mediaUploadDTO.binaryData()));
-
-		JsonObject metadata = mediaUploadDTO.file().getMetadata();
-		metadata.addProperty("specificType", mediaUploadDTO.specificType());
-		metadata.addProperty("width", String.valueOf(image.getWidth()));
-		metadata.addProperty("height", String.valueOf(image.getHeight()));
-		metadata.addProperty("size", bytesToUnit(mediaUploadDTO.binaryData().length));
-		metadata.addProperty("maxWidth", this.getMaxWidth(image.getWidth(), image.getHeight()));
-		metadata.addProperty("messageType", Message.IMAGE_MESSAGE.type());
-
-		URI uri = S3.getInstance().uploadFile(
-				mediaUploadDTO.file().getType(),
-				mediaUploadDTO.file().getName(),
-				mediaUploadDTO.binaryData(),
-				metadata
-		);
-
-		mediaUploadDTO.file().setPath(uri.toString());
+	public Message messageType() {
+		return Message.IMAGE_MESSAGE;
+	}
+
+	@Override
+	public JsonObject probe(MediaUploadDTO mediaUploadDTO) throws IOException {
+		ImageProbe.Dimensions dimensions = ImageProbe.dimensions(mediaUploadDTO.path());
+		int width = dimensions.width();
+		int height = dimensions.height();
+
+		JsonObject metadata = new JsonObject();
+		metadata.addProperty("width", String.valueOf(width));
+		metadata.addProperty("height", String.valueOf(height));
+		metadata.addProperty("maxWidth", this.getMaxWidth(width, height));
+
+		return metadata;
 	}
 
 	private String getMaxWidth(int width, int height) {
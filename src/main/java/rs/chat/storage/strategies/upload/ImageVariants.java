@@ -0,0 +1,237 @@
+package rs.chat.storage.strategies.upload;
+
+import lombok.extern.slf4j.Slf4j;
+import rs.chat.storage.S3;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static rs.chat.utils.Constants.IMAGE_VARIANT_QUEUE_CAPACITY;
+import static rs.chat.utils.Constants.IMAGE_VARIANT_THREADS;
+
+/**
+ * Generates downscaled variants of the uploaded images (see {@link Variant}) and stores
+ * them next to the original, so that the clients can download the smallest one that fits
+ * where the image is displayed.
+ * <p>
+ * The variants are generated in the background, with a bounded number of images waiting
+ * to be processed: if there are too many, the variants of the new images are not generated
+ * (the clients use the original).
+ */
+@Slf4j
+public final class ImageVariants {
+	public static final ImageVariants INSTANCE;
+
+	static {
+		AtomicInteger threadCount = new AtomicInteger();
+
+		INSTANCE = new ImageVariants(
+				new ThreadPoolExecutor(
+						IMAGE_VARIANT_THREADS, IMAGE_VARIANT_THREADS,
+						0, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<>(IMAGE_VARIANT_QUEUE_CAPACITY),
+						runnable -> {
+							Thread t = new Thread(runnable, "image-variants-" + threadCount.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+				),
+				(original, variant, extension, contentType, content) ->
+						S3.getInstance().uploadFileVariant(original, variant, extension, contentType, content)
+		);
+	}
+
+	/**
+	 * Variants of the images, by the maximum size of their longest side. A variant is only
+	 * generated if the image is bigger than it.
+	 */
+	public enum Variant {
+		THUMBNAIL(160),
+		SMALL(480),
+		MEDIUM(1024);
+
+		private final int maxSize;
+
+		Variant(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		/**
+		 * @return name of the variant in the metadata of the file and in its key.
+		 */
+		public String key() {
+			return this.name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	private final Executor executor;
+	private final Storage storage;
+
+	/**
+	 * Constructor that creates the generator.
+	 *
+	 * @param executor executor that generates the variants (it should reject the tasks if
+	 *                 there are too many waiting).
+	 * @param storage  storage the variants are uploaded to.
+	 */
+	public ImageVariants(Executor executor, Storage storage) {
+		this.executor = executor;
+		this.storage = storage;
+	}
+
+	/**
+	 * Checks if the variants of the images of the given type can be generated. Animated
+	 * images (GIF) are excluded, the variants would be static.
+	 *
+	 * @param specificType the subtype of the MIME type of the image.
+	 *
+	 * @return true if the variants can be generated, false otherwise.
+	 */
+	public static boolean supports(String specificType) {
+		return specificType.matches("^(jp(e)?g|png|bmp)$");
+	}
+
+	/**
+	 * Generates the variants of an uploaded image in the background.
+	 *
+	 * @param image    the image file (it must not be deleted until the future completes).
+	 * @param original the URI of the uploaded image.
+	 *
+	 * @return future completed with the URIs of the variants by their {@link Variant#key()}
+	 * (empty if the image is not bigger than any variant), or exceptionally if they could not
+	 * be generated or there are too many images waiting.
+	 */
+	public CompletableFuture<Map<String, URI>> generate(Path image, URI original) {
+		try {
+			return CompletableFuture.supplyAsync(() -> {
+				try {
+					return this.generateNow(image, original);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, this.executor);
+		} catch (RejectedExecutionException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	private Map<String, URI> generateNow(Path image, URI original) throws IOException {
+		BufferedImage current;
+		int longestSide;
+
+		try (ImageInputStream input = ImageIO.createImageInputStream(image.toFile())) {
+			Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+
+			if (readers == null || !readers.hasNext()) {
+				throw new IOException("Unsupported image format");
+			}
+
+			ImageReader reader = readers.next();
+
+			try {
+				reader.setInput(input, true, true);
+				longestSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+				Variant largest = null;
+
+				for (Variant variant : Variant.values()) {
+					if (variant.maxSize < longestSide) {
+						largest = variant;
+					}
+				}
+
+				if (largest == null) {
+					return Map.of();
+				}
+
+				// Decode only every n-th pixel, keeping at least twice the size of the largest variant
+				int subsampling = Math.max(1, longestSide / (largest.maxSize * 2));
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				current = reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		}
+
+		Map<String, URI> uris = new LinkedHashMap<>();
+		boolean alpha = current.getColorModel().hasAlpha();
+		String extension = alpha ? "png" : "jpg";
+		String contentType = alpha ? "image/png" : "image/jpeg";
+		Variant[] variants = Variant.values();
+
+		// From the largest to the smallest, downscaling the previous one
+		for (int i = variants.length - 1; i >= 0; i--) {
+			Variant variant = variants[i];
+
+			if (variant.maxSize >= longestSide) {
+				continue; // The image is not bigger than the variant
+			}
+
+			current = scale(current, variant.maxSize, alpha);
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			ImageIO.write(current, alpha ? "png" : "jpeg", content);
+			uris.put(variant.key(), this.storage.upload(original, variant.key(), extension, contentType, content.toByteArray()));
+		}
+
+		log.debug("Generated variants {} of image {}", uris.keySet(), original);
+		return uris;
+	}
+
+	private static BufferedImage scale(BufferedImage image, int maxSize, boolean alpha) {
+		double ratio = Math.min(1, (double) maxSize / Math.max(image.getWidth(), image.getHeight()));
+		int width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+		int height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+		BufferedImage scaled = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = scaled.createGraphics();
+
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			graphics.drawImage(image, 0, 0, width, height, null);
+		} finally {
+			graphics.dispose();
+		}
+
+		return scaled;
+	}
+
+	/**
+	 * Storage the variants are uploaded to.
+	 */
+	@FunctionalInterface
+	public interface Storage {
+		/**
+		 * Uploads a variant of a file.
+		 *
+		 * @param original    the URI of the file.
+		 * @param variant     the name of the variant.
+		 * @param extension   the extension of the variant.
+		 * @param contentType the content type of the variant.
+		 * @param content     the content of the variant.
+		 *
+		 * @return the URI of the variant.
+		 */
+		URI upload(URI original, String variant, String extension, String contentType, byte[] content);
+	}
+}
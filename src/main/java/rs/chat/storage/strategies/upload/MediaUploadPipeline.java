@@ -0,0 +1,218 @@
+package rs.chat.storage.strategies.upload;
+
+import com.google.gson.JsonObject;
+import lombok.extern.slf4j.Slf4j;
+import rs.chat.domain.entity.File;
+import rs.chat.exceptions.CouldNotUploadFileException;
+import rs.chat.storage.S3;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import static rs.chat.utils.Constants.MEDIA_PIPELINE_THREADS;
+import static rs.chat.utils.Utils.bytesToUnit;
+
+/**
+ * Uploads the media files. The upload of the file, the extraction of its metadata (see
+ * {@link FileUploadStrategy#probe(MediaUploadDTO)}) and the checks of its content (e.g.
+ * the NSFW check) run at the same time, so the time of an upload is the time of the
+ * slowest stage instead of the sum of all of them.
+ * <p>
+ * If the metadata cannot be extracted or the checks fail, the uploaded file is deleted,
+ * unless it is shared: the files with the same content are stored in the same object, so
+ * it is kept while a file entity references it or another upload of the same content is
+ * in progress.
+ */
+@Slf4j
+public final class MediaUploadPipeline {
+	public static final MediaUploadPipeline INSTANCE;
+
+	static {
+		AtomicInteger threadCount = new AtomicInteger();
+
+		INSTANCE = new MediaUploadPipeline(
+				Executors.newFixedThreadPool(MEDIA_PIPELINE_THREADS, runnable -> {
+					Thread t = new Thread(runnable, "media-pipeline-" + threadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}),
+				new Storage() {
+					@Override
+					public CompletableFuture<URI> upload(String mediaType, String fileName, String hash, Path path, JsonObject metadata) {
+						return S3.getInstance().uploadFileAsync(mediaType, fileName, hash, path, metadata);
+					}
+
+					@Override
+					public void delete(URI uri) {
+						S3.getInstance().deleteFile(uri);
+					}
+				}
+		);
+	}
+
+	private final Executor executor;
+	private final Storage storage;
+	/**
+	 * Number of uploads in progress of each object (see {@link #objectKey(File)}), until
+	 * their file entities are saved.
+	 */
+	private final Map<String, Integer> uploading = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructor that creates the pipeline.
+	 *
+	 * @param executor executor that runs the extraction of the metadata and the checks.
+	 * @param storage  storage the files are uploaded to.
+	 */
+	public MediaUploadPipeline(Executor executor, Storage storage) {
+		this.executor = executor;
+		this.storage = storage;
+	}
+
+	/**
+	 * Uploads a file, extracting its metadata with the given strategy and checking its
+	 * content while it is uploaded. Once the stages have finished, the metadata and the path
+	 * of the file entity are set and it is saved.
+	 *
+	 * @param strategy strategy of the type of the file.
+	 * @param dto      DTO that contains the file's content, specific type and file.
+	 * @param check      checks the content of the file, throwing an exception if it must
+	 *                   not be uploaded.
+	 * @param save       saves the file entity.
+	 * @param referenced tells whether a stored file entity references the object the file
+	 *                   is uploaded to (a file with the same content), so it must not be
+	 *                   deleted if the upload fails.
+	 * @param <T>        type of the saved file entity.
+	 *
+	 * @return future completed with the saved file entity when the file has been uploaded,
+	 * checked and saved, or exceptionally with the first error of the stages.
+	 */
+	public <T> CompletableFuture<T> upload(FileUploadStrategy strategy, MediaUploadDTO dto, Runnable check, Supplier<T> save, BooleanSupplier referenced) {
+		File file = dto.file();
+		String key = objectKey(file);
+		this.uploading.merge(key, 1, Integer::sum);
+
+		JsonObject metadata = file.getMetadata();
+		metadata.addProperty("specificType", dto.specificType());
+		metadata.addProperty("size", bytesToUnit(dto.size()));
+		metadata.addProperty("messageType", strategy.messageType().type());
+
+		CompletableFuture<URI> uploaded;
+
+		try {
+			uploaded = this.storage.upload(file.getType(), file.getName(), file.getHash(), dto.path(), metadata.deepCopy());
+		} catch (RuntimeException e) {
+			this.uploading.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1);
+			throw e;
+		}
+
+		CompletableFuture<JsonObject> probed = CompletableFuture.supplyAsync(() -> {
+			try {
+				return strategy.probe(dto);
+			} catch (IOException e) {
+				throw new CouldNotUploadFileException(e.getMessage());
+			}
+		}, this.executor);
+		CompletableFuture<Void> checked = CompletableFuture.runAsync(check, this.executor);
+
+		return CompletableFuture.allOf(uploaded, probed, checked).handle((v, e) -> {
+			Throwable error = e;
+
+			if (error == null) {
+				try {
+					probed.join().asMap().forEach(metadata::add);
+					file.setPath(uploaded.join().toString());
+					T saved = save.get();
+					this.finished(key);
+					return saved;
+				} catch (RuntimeException saveError) {
+					error = saveError;
+				}
+			}
+
+			if (uploaded.isCompletedExceptionally()) {
+				this.finished(key);
+			} else {
+				this.executor.execute(() -> this.finishedWithError(key, uploaded.join(), referenced));
+			}
+
+			throw error instanceof CompletionException completionException ? completionException : new CompletionException(error);
+		});
+	}
+
+	private static String objectKey(File file) {
+		return file.getType() + "/" + file.getHash();
+	}
+
+	private void finished(String key) {
+		this.uploading.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1);
+	}
+
+	/**
+	 * Deletes the uploaded object of an upload that failed if no other upload of the same
+	 * content is in progress and no file entity references it. It is done while the count
+	 * of the object is updated, so a new upload of the same content waits for the delete
+	 * instead of being deleted.
+	 */
+	private void finishedWithError(String key, URI uri, BooleanSupplier referenced) {
+		this.uploading.computeIfPresent(key, (k, count) -> {
+			if (count > 1) {
+				log.info("Kept uploaded file {} that did not pass the checks, it is being uploaded again", uri);
+				return count - 1;
+			}
+
+			this.delete(uri, referenced);
+			return null;
+		});
+	}
+
+	private void delete(URI uri, BooleanSupplier referenced) {
+		try {
+			if (referenced.getAsBoolean()) {
+				log.info("Kept uploaded file {} that did not pass the checks, it is referenced by another file", uri);
+				return;
+			}
+
+			this.storage.delete(uri);
+			log.info("Deleted uploaded file {} that did not pass the checks", uri);
+		} catch (RuntimeException e) {
+			log.error("Could not delete uploaded file {}", uri, e);
+		}
+	}
+
+	/**
+	 * Storage the media files are uploaded to.
+	 */
+	public interface Storage {
+		/**
+		 * Uploads a file.
+		 *
+		 * @param mediaType the media type of the file.
+		 * @param fileName  the name of the file.
+		 * @param hash      SHA-256 of the content of the file, in hexadecimal (the files with the
+		 *                  same content are stored in the same object).
+		 * @param path      the file to upload (it must not be deleted until the upload completes).
+		 * @param metadata  metadata of the file.
+		 *
+		 * @return future completed with the URI of the uploaded file.
+		 */
+		CompletableFuture<URI> upload(String mediaType, String fileName, String hash, Path path, JsonObject metadata);
+
+		/**
+		 * Deletes an uploaded file.
+		 *
+		 * @param uri the URI of the file.
+		 */
+		void delete(URI uri);
+	}
+}
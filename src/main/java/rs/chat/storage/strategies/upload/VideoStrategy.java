@@ -2,50 +2,128 @@ package rs.chat.storage.strategies.upload;
 
 import com.google.gson.JsonObject;
 import lombok.extern.slf4j.Slf4j;
-import org.mp4parser.IsoFile;
-import org.mp4parser.boxes.iso14496.part12.MovieHeaderBox;
-import org.mp4parser.tools.ByteBufferByteChannel;
 import rs.chat.net.ws.Message;
-import rs.chat.storage.S3;
 
 import java.io.IOException;
-import java.net.URI;
-
-import static rs.chat.utils.Utils.bytesToUnit;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 @Slf4j
 public class VideoStrategy implements FileUploadStrategy {
+	/**
+	 * Bytes of the content of the movie header box that are read: version and flags (4),
+	 * creation and modification times (8 or 16), timescale (4) and duration (4 or 8).
+	 */
+	private static final int MOVIE_HEADER_BYTES = 32;
+
+	@Override
+	public Message messageType() {
+		return Message.VIDEO_MESSAGE;
+	}
+
 	@Override
-	public void handle(MediaUploadDTO mediaUploadDTO) throws IOException {
-		JsonObject metadata = mediaUploadDTO.file().getMetadata();
-
-		metadata.addProperty("duration", this.getVideoDuration(mediaUploadDTO.binaryData()));
-		metadata.addProperty("specificType", mediaUploadDTO.specificType());
-		metadata.addProperty("size", bytesToUnit(mediaUploadDTO.binaryData().length));
-		metadata.addProperty("messageType", Message.VIDEO_MESSAGE.type());
-
-		URI uri = S3.getInstance().uploadFile(
-				mediaUploadDTO.file().getType(),
-				mediaUploadDTO.file().getName(),
-				mediaUploadDTO.binaryData(),
-				metadata
-		);
-
-		mediaUploadDTO.file().setPath(uri.toString());
+	public JsonObject probe(MediaUploadDTO mediaUploadDTO) {
+		JsonObject metadata = new JsonObject();
+		metadata.addProperty("duration", this.getVideoDuration(mediaUploadDTO.path()));
+
+		return metadata;
 	}
 
-	private String getVideoDuration(byte[] binaryData) {
-		try (IsoFile isoFile = new IsoFile(new ByteBufferByteChannel(binaryData))) {
-			MovieHeaderBox movieHeaderBox = isoFile.getMovieBox().getMovieHeaderBox();
-			double preciseDuration = movieHeaderBox.getDuration() / (movieHeaderBox.getTimescale() / 1000d);
-			int minutes = (int) (preciseDuration / 1000 / 60);
-			int seconds = (int) (preciseDuration / 1000 % 60);
+	/**
+	 * Reads the duration of an MP4 video from its movie header box ({@code moov/mvhd}).
+	 * Only the headers of the boxes are read to find it, the media data is skipped.
+	 *
+	 * @param path the video file.
+	 *
+	 * @return the duration, formatted as {@code mm:ss}, or {@code Unknown} if it cannot be read.
+	 */
+	private String getVideoDuration(Path path) {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer movieHeader = findBox(channel, 0, channel.size(), "moov", "mvhd");
 
-			return String.format("%02d:%02d", minutes, seconds);
+			if (movieHeader != null) {
+				boolean version1 = movieHeader.get(0) == 1;
+				long timescale = Integer.toUnsignedLong(movieHeader.getInt(version1 ? 20 : 12));
+				long duration = version1 ? movieHeader.getLong(24) : Integer.toUnsignedLong(movieHeader.getInt(16));
+
+				if (timescale > 0) {
+					double preciseDuration = duration / (timescale / 1000d);
+					int minutes = (int) (preciseDuration / 1000 / 60);
+					int seconds = (int) (preciseDuration / 1000 % 60);
+
+					return String.format("%02d:%02d", minutes, seconds);
+				}
+			}
+
+			log.error("Could not find the duration of the video file");
 		} catch (IOException e) {
 			log.error("Could not parse video file ({})", e.getMessage());
 		}
 
 		return "Unknown";
 	}
+
+	/**
+	 * Finds a box of an MP4 file by its path (the types of the box and its parents) and
+	 * reads the first {@link #MOVIE_HEADER_BYTES} bytes of its content.
+	 *
+	 * @param channel the file.
+	 * @param start   position of the first box.
+	 * @param end     position after the last box.
+	 * @param path    types of the boxes, from the outermost.
+	 *
+	 * @return the beginning of the content of the box, or {@code null} if it is not found.
+	 *
+	 * @throws IOException if the file cannot be read.
+	 */
+	private static ByteBuffer findBox(FileChannel channel, long start, long end, String... path) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(16);
+		long position = start;
+
+		while (position + 8 <= end) {
+			readFully(channel, header.clear().limit(8), position);
+			long size = Integer.toUnsignedLong(header.getInt(0));
+			String type = new String(header.array(), 4, 4, StandardCharsets.ISO_8859_1);
+			int headerSize = 8;
+
+			if (size == 1) { // 64-bit size after the type
+				readFully(channel, header.clear().limit(8), position + 8);
+				size = header.getLong(0);
+				headerSize = 16;
+			} else if (size == 0) { // The box extends to the end of the file
+				size = end - position;
+			}
+
+			if (size < headerSize || position + size > end) {
+				return null; // Corrupt box
+			}
+
+			if (type.equals(path[0])) {
+				if (path.length > 1) {
+					String[] children = new String[path.length - 1];
+					System.arraycopy(path, 1, children, 0, children.length);
+					return findBox(channel, position + headerSize, position + size, children);
+				}
+
+				ByteBuffer content = ByteBuffer.allocate((int) Math.min(size - headerSize, MOVIE_HEADER_BYTES));
+				readFully(channel, content, position + headerSize);
+				return content.remaining() == 0 && content.capacity() == MOVIE_HEADER_BYTES ? content.clear() : null;
+			}
+
+			position += size;
+		}
+
+		return null;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+	}
 }
@@ -1,15 +1,13 @@
 package rs.chat.utils;
 
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.fatboyindustrial.gsonjavatime.Converters;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 import org.springframework.util.unit.DataSize;
-import rs.chat.json.modules.GsonModule;
+import rs.chat.cache.HistoryDurability;
+import rs.chat.net.ws.outbound.OverflowPolicy;
 
 import java.net.URI;
 import java.security.SecureRandom;
@@ -37,9 +35,6 @@ public final class Constants {
 
 	private static final String EMPTY_ENV_VAR = "None";
 
-	public static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
-			.setSerializationInclusion(JsonInclude.Include.NON_NULL) // Don't serialize null values
-			.registerModules(new JavaTimeModule(), new GsonModule());
 	public static final Gson GSON = Converters.registerAll(new GsonBuilder()).create();
 	public static final String ERROR_JSON_KEY = "error";
 	public static final String DATA_JSON_KEY = "data";
@@ -66,6 +61,8 @@ public final class Constants {
 	                                                  .map(URI::create)
 	                                                  .orElse(null);
 	public static final URI S3_ENDPOINT_URI_FOR_FILES = URI.create(System.getenv("S3_ENDPOINT_URI_FOR_FILES"));
+	// Upload the media files with the non-blocking S3 client (see rs.chat.storage.S3)
+	public static final boolean S3_ASYNC_UPLOADS = Boolean.parseBoolean(envOrDefault("S3_ASYNC_UPLOADS", "true"));
 	public static final URI NSFW_API_URL = URI.create(System.getenv("NSFW_API_URL"));
 
 	public static final String USER = "user";
@@ -80,10 +77,69 @@ public final class Constants {
 	public static final int HISTORY_PAGE_SIZE = 65;
 	public static final SecureRandom SECURE_RANDOM = new SecureRandom();
 	public static final long MAX_FILE_BYTES = DataSize.ofMegabytes(30).toBytes();
+	// Metadata extraction and checks of the uploaded files (see rs.chat.storage.strategies.upload.MediaUploadPipeline)
+	public static final int MEDIA_PIPELINE_THREADS = Integer.parseInt(envOrDefault("MEDIA_PIPELINE_THREADS", String.valueOf(Runtime.getRuntime().availableProcessors())));
+	// Downscaled variants of the uploaded images (see rs.chat.storage.strategies.upload.ImageVariants)
+	public static final int IMAGE_VARIANT_THREADS = Integer.parseInt(envOrDefault("IMAGE_VARIANT_THREADS", "2"));
+	public static final int IMAGE_VARIANT_QUEUE_CAPACITY = Integer.parseInt(envOrDefault("IMAGE_VARIANT_QUEUE_CAPACITY", "32"));
 
 	public static final long MINIMUM_NSFW_TO_BLOCK = 5;
 	public static final Duration DEFAULT_BLOCK_DURATION_MILLIS = Duration.ofHours(4);
+	// Classifier of NSFW content and cache of its verdicts (see rs.chat.ai.nsfw.NSFWService)
+	public static final int NSFW_CONNECT_TIMEOUT_MILLIS = Integer.parseInt(envOrDefault("NSFW_CONNECT_TIMEOUT_MILLIS", "2000"));
+	public static final int NSFW_READ_TIMEOUT_MILLIS = Integer.parseInt(envOrDefault("NSFW_READ_TIMEOUT_MILLIS", "15000"));
+	public static final long NSFW_VERDICT_CACHE_MAX_ENTRIES = Long.parseLong(envOrDefault("NSFW_VERDICT_CACHE_MAX_ENTRIES", "10000"));
+	public static final long NSFW_VERDICT_CACHE_TTL_HOURS = Long.parseLong(envOrDefault("NSFW_VERDICT_CACHE_TTL_HOURS", "24"));
+	public static final boolean NSFW_SIMILARITY_LOOKUP = Boolean.parseBoolean(envOrDefault("NSFW_SIMILARITY_LOOKUP", "false"));
+	public static final int NSFW_SIMILARITY_MAX_DISTANCE = Integer.parseInt(envOrDefault("NSFW_SIMILARITY_MAX_DISTANCE", "4"));
 
 	// In the client the chatId is ignored, so we minimize the size of the message with an empty string.
 	public static final String SERVER_CHAT_ID = "";
+
+	// Outbound WebSocket frames (see rs.chat.net.ws.outbound)
+	public static final int OUTBOUND_QUEUE_CAPACITY = Integer.parseInt(envOrDefault("WS_OUTBOUND_QUEUE_CAPACITY", "512"));
+	public static final OverflowPolicy OUTBOUND_OVERFLOW_POLICY = OverflowPolicy.valueOf(envOrDefault("WS_OUTBOUND_OVERFLOW_POLICY", "COALESCE"));
+	public static final int OUTBOUND_DISPATCHER_THREADS = Integer.parseInt(envOrDefault("WS_OUTBOUND_THREADS", String.valueOf(Runtime.getRuntime().availableProcessors() * 2)));
+	public static final int OUTBOUND_SEND_TIME_LIMIT_MILLIS = Integer.parseInt(envOrDefault("WS_OUTBOUND_SEND_TIME_LIMIT_MILLIS", "10000"));
+	public static final long OUTBOUND_MAX_LAG_MILLIS = Long.parseLong(envOrDefault("WS_OUTBOUND_MAX_LAG_MILLIS", "60000"));
+	public static final int OUTBOUND_SESSION_BUFFER_BYTES = Integer.parseInt(envOrDefault("WS_OUTBOUND_SESSION_BUFFER_BYTES", String.valueOf(DataSize.ofMegabytes(2).toBytes())));
+
+	// WebSocket compression (permessage-deflate, applied by the container to every message of the session)
+	public static final boolean WS_COMPRESSION_ENABLED = Boolean.parseBoolean(envOrDefault("WS_COMPRESSION_ENABLED", "true"));
+	public static final int WS_COMPRESSION_SAMPLE_MIN_BYTES = Integer.parseInt(envOrDefault("WS_COMPRESSION_SAMPLE_MIN_BYTES", "256"));
+	public static final double WS_COMPRESSION_SAMPLE_RATE = Double.parseDouble(envOrDefault("WS_COMPRESSION_SAMPLE_RATE", "0.05"));
+
+	// Group-commit writer of the history files (see rs.chat.cache.HistoryWriter)
+	public static final long HISTORY_FLUSH_INTERVAL_MILLIS = Long.parseLong(envOrDefault("HISTORY_FLUSH_INTERVAL_MILLIS", "5"));
+	public static final int HISTORY_MAX_BATCH_SIZE = Integer.parseInt(envOrDefault("HISTORY_MAX_BATCH_SIZE", "512"));
+	public static final HistoryDurability HISTORY_DURABILITY = HistoryDurability.valueOf(envOrDefault("HISTORY_DURABILITY", "WRITE"));
+
+	// Open history files (see rs.chat.cache.HistoryFilesCache)
+	public static final long HISTORY_CACHE_MAX_BYTES = Long.parseLong(envOrDefault("HISTORY_CACHE_MAX_BYTES", String.valueOf(DataSize.ofMegabytes(512).toBytes())));
+	public static final long HISTORY_CACHE_IDLE_EXPIRY_MINUTES = Long.parseLong(envOrDefault("HISTORY_CACHE_IDLE_EXPIRY_MINUTES", "30"));
+	// Messages of the open chats kept in memory and cache of the older ones (see rs.chat.cache.ChatHistory)
+	public static final int HISTORY_LOAD_THREADS = Integer.parseInt(envOrDefault("HISTORY_LOAD_THREADS", "4"));
+	public static final int HISTORY_TAIL_MESSAGES = Integer.parseInt(envOrDefault("HISTORY_TAIL_MESSAGES", "2048"));
+	public static final long HISTORY_COLD_PAGE_CACHE_BYTES = Long.parseLong(envOrDefault("HISTORY_COLD_PAGE_CACHE_BYTES", String.valueOf(DataSize.ofMegabytes(64).toBytes())));
+	// Size of the parts of the history files appended to the objects in S3 (at least 5 MB, see rs.chat.storage.S3)
+	public static final long HISTORY_PART_SIZE = Long.parseLong(envOrDefault("HISTORY_PART_SIZE", String.valueOf(DataSize.ofMegabytes(16).toBytes())));
+	// Uploads of the history files to S3 (see rs.chat.cache.HistoryPersister)
+	public static final int HISTORY_UPLOAD_THREADS = Integer.parseInt(envOrDefault("HISTORY_UPLOAD_THREADS", "8"));
+	public static final int HISTORY_UPLOAD_MAX_ATTEMPTS = Integer.parseInt(envOrDefault("HISTORY_UPLOAD_MAX_ATTEMPTS", "5"));
+	public static final long HISTORY_UPLOAD_RETRY_DELAY_MILLIS = Long.parseLong(envOrDefault("HISTORY_UPLOAD_RETRY_DELAY_MILLIS", "500"));
+	public static final long HISTORY_SHUTDOWN_UPLOAD_TIMEOUT_SECONDS = Long.parseLong(envOrDefault("HISTORY_SHUTDOWN_UPLOAD_TIMEOUT_SECONDS", "60"));
+
+	/**
+	 * Reads an optional environment variable.
+	 *
+	 * @param name         name of the environment variable.
+	 * @param defaultValue value to use if the variable is not set (or is {@code None}).
+	 *
+	 * @return the value of the environment variable or the default value.
+	 */
+	private static String envOrDefault(String name, String defaultValue) {
+		return Optional.ofNullable(System.getenv(name))
+		               .filter(s -> !s.equals(EMPTY_ENV_VAR))
+		               .orElse(defaultValue);
+	}
 }
@@ -1,13 +1,13 @@
 package rs.chat.utils;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.gson.JsonObject;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
-import rs.chat.net.ws.JsonMessageWrapper;
+import rs.chat.json.JsonCodec;
+
+import java.nio.ByteBuffer;
 
 import static rs.chat.utils.Constants.GSON;
-import static rs.chat.utils.Constants.OBJECT_MAPPER;
 
 /**
  * Utility class for common operations.
@@ -35,21 +35,21 @@ public final class Utils {
 	 * @return the {@link String} message containing the server message.
 	 */
 	public static String createMessage(String content, String type, String chatId) {
-		try {
-			return OBJECT_MAPPER.writeValueAsString(
-					JsonMessageWrapper.builder()
-					                  /* Headers */
-					                  .username("Server")
-					                  .chatId(chatId)
-					                  .type(type)
-					                  .date(System.currentTimeMillis())
-					                  /* Body */
-					                  .content(content)
-					                  .build()
-			);
-		} catch (JsonProcessingException e) {
-			throw new RuntimeException(e);
-		}
+		return JsonCodec.message("Server", chatId, type, System.currentTimeMillis(), content);
+	}
+
+	/**
+	 * Creates a server message whose content is a JSON array with the given JSON values
+	 * (see {@link JsonCodec#arrayMessage(String, String, String, long, ByteBuffer...)}).
+	 *
+	 * @param type   the type of the message.
+	 * @param chatId the chatId to send the message to.
+	 * @param lines  the UTF-8 JSON values to send, one per line.
+	 *
+	 * @return the UTF-8 bytes of the message.
+	 */
+	public static byte[] createArrayMessage(String type, String chatId, ByteBuffer... lines) {
+		return JsonCodec.arrayMessage("Server", chatId, type, System.currentTimeMillis(), lines);
 	}
 
 	/**
@@ -59,7 +59,7 @@ public final class Utils {
 	 *
 	 * @return the human-readable unit.
 	 */
-	public static String bytesToUnit(int bytes) {
+	public static String bytesToUnit(long bytes) {
 		if (bytes < 1024) {
 			return bytes + " B";
 		} else if (bytes < 1024 * 1024) {
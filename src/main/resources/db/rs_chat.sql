@@ -52,8 +52,10 @@ CREATE TABLE `files`
 	`metadata`      json         NOT NULL,
 	`type`          varchar(20)  NOT NULL, -- text / image / audio / video / application
 	`user_id`       bigint       NOT NULL,
+	`hash`          char(64)     NULL,     -- SHA-256 of the content, in hexadecimal
 
 	CONSTRAINT `pk_file_id` PRIMARY KEY (`id`),
+	INDEX `ix_file_hash` (`hash`),
 	CONSTRAINT `ck_file_type` CHECK (`type` IN ('text', 'image', 'audio', 'video', 'application')) # The MIME type
 ) ENGINE InnoDB;
 
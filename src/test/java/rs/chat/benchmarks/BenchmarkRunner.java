@@ -0,0 +1,23 @@
+package rs.chat.benchmarks;
+
+import org.openjdk.jmh.Main;
+
+import java.io.IOException;
+
+/**
+ * Entry point to run the JMH benchmarks of the project. They are not run by the tests,
+ * they must be launched after compiling the test classes, for example:
+ * <pre>{@code
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) rs.chat.benchmarks.BenchmarkRunner JsonMessageWrapper
+ * }</pre>
+ * The arguments are the same as the ones of {@link Main JMH}.
+ */
+public final class BenchmarkRunner {
+	private BenchmarkRunner() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		Main.main(args);
+	}
+}
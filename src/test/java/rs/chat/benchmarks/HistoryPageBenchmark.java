@@ -0,0 +1,82 @@
+package rs.chat.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rs.chat.json.JsonCodec;
+import rs.chat.net.ws.JsonMessageWrapper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the assembly of a history page (the response of a {@code GET_HISTORY_MESSAGE})
+ * parsing every stored message into a {@link JsonArray} and escaping its string (previous
+ * implementation) against splicing the stored bytes into the message with
+ * {@link JsonCodec#arrayMessage}.
+ * <p>
+ * Run it with {@link BenchmarkRunner}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryPageBenchmark {
+	@Param({"10", "50"})
+	private int pageSize;
+
+	/**
+	 * Page as returned by the history file (a direct buffer, like the memory-mapped file).
+	 */
+	private ByteBuffer page;
+
+	@Setup
+	public void setUp() {
+		StringBuilder lines = new StringBuilder();
+
+		for (int i = 0; i < this.pageSize; i++) {
+			lines.append(JsonMessageWrapper.builder()
+			                               .username("david")
+			                               .chatId("group-1")
+			                               .type("TEXT_MESSAGE")
+			                               .date(System.currentTimeMillis())
+			                               .content("Message number " + i + " of the \"history\" of the chat")
+			                               .build())
+			     .append('\n');
+		}
+
+		byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+		this.page = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+	}
+
+	@Benchmark
+	public byte[] tree() {
+		String[] lines = StandardCharsets.UTF_8.decode(this.page.duplicate()).toString().split("\n");
+		JsonArray messages = new JsonArray();
+
+		for (String line : lines) {
+			messages.add(JsonParser.parseString(line));
+		}
+
+		return JsonCodec.message("Server", "group-1", "GET_HISTORY_MESSAGE", System.currentTimeMillis(), messages.toString())
+		                .getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public byte[] splice() {
+		return JsonCodec.arrayMessage("Server", "group-1", "GET_HISTORY_MESSAGE", System.currentTimeMillis(), this.page);
+	}
+}
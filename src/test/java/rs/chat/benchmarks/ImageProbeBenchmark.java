@@ -0,0 +1,95 @@
+package rs.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import rs.chat.storage.strategies.upload.ImageProbe;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading the dimensions of an uploaded image decoding it with
+ * {@link ImageIO#read} (previous implementation) against reading them with an ImageIO
+ * reader and parsing the header with {@link ImageProbe#fromHeader}.
+ * <p>
+ * The images are generated in the setup (ImageIO cannot write WebP, so it is not part
+ * of the corpus). Run it with {@link BenchmarkRunner}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageProbeBenchmark {
+	@Param({"png", "jpeg", "gif"})
+	private String format;
+
+	@Param({"640", "4000"})
+	private int width;
+
+	private Path image;
+
+	@Setup
+	public void setUp() throws IOException {
+		int height = this.width * 3 / 4;
+		int type = this.format.equals("gif") ? BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_INT_RGB;
+		BufferedImage content = new BufferedImage(this.width, height, type);
+		Graphics2D graphics = content.createGraphics();
+
+		// Gradients and noise, so that the image is not trivially compressible
+		for (int y = 0; y < height; y += 8) {
+			for (int x = 0; x < this.width; x += 8) {
+				graphics.setColor(new Color((x * 255 / this.width), (y * 255 / height), (x * y) & 0xFF));
+				graphics.fillRect(x, y, 8, 8);
+			}
+		}
+
+		graphics.dispose();
+		this.image = Files.createTempFile("benchmark-", "." + this.format);
+		ImageIO.write(content, this.format, this.image.toFile());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(this.image);
+	}
+
+	@Benchmark
+	public int decode() throws IOException {
+		BufferedImage decoded = ImageIO.read(this.image.toFile());
+		return decoded.getWidth() + decoded.getHeight();
+	}
+
+	@Benchmark
+	public int imageReader() throws IOException {
+		ImageProbe.Dimensions dimensions = ImageProbe.withImageIO(this.image);
+		return dimensions.width() + dimensions.height();
+	}
+
+	@Benchmark
+	public int header() throws IOException {
+		try (FileChannel channel = FileChannel.open(this.image, StandardOpenOption.READ)) {
+			ImageProbe.Dimensions dimensions = ImageProbe.fromHeader(channel);
+			return dimensions.width() + dimensions.height();
+		}
+	}
+}
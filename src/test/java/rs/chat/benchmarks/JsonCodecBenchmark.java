@@ -0,0 +1,94 @@
+package rs.chat.benchmarks;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fatboyindustrial.gsonjavatime.Converters;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletResponse;
+import rs.chat.domain.entity.dtos.SessionDto;
+import rs.chat.json.modules.GsonModule;
+import rs.chat.net.http.HttpResponse;
+import rs.chat.net.ws.JsonMessageWrapper;
+import rs.chat.utils.Utils;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the serialization of server messages ({@link Utils#createMessage(String, String, String)})
+ * and HTTP responses ({@link HttpResponse#send(Object)}) building a Gson tree and writing it
+ * with Jackson (previous implementation) against writing them directly with
+ * {@link rs.chat.json.JsonCodec}.
+ * <p>
+ * Run it with {@link BenchmarkRunner}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonCodecBenchmark {
+	private final ObjectMapper objectMapper = new ObjectMapper()
+			.setSerializationInclusion(JsonInclude.Include.NON_NULL)
+			.registerModules(new JavaTimeModule(), new GsonModule());
+	private final Gson gson = Converters.registerAll(new GsonBuilder()).create();
+	private List<SessionDto> sessions;
+
+	@Setup
+	public void setUp() {
+		this.sessions = new ArrayList<>();
+
+		for (long i = 0; i < 50; i++) {
+			this.sessions.add(new SessionDto(i, "127.0.0.1", Instant.now(), Instant.now(), "token-" + i));
+		}
+	}
+
+	@Benchmark
+	public String createMessageTree() throws IOException {
+		return this.objectMapper.writeValueAsString(
+				JsonMessageWrapper.builder()
+				                  .username("Server")
+				                  .chatId("group-1")
+				                  .type("TEXT_MESSAGE")
+				                  .date(System.currentTimeMillis())
+				                  .content("User david has joined the chat")
+				                  .build()
+		);
+	}
+
+	@Benchmark
+	public String createMessage() {
+		return Utils.createMessage("User david has joined the chat", "TEXT_MESSAGE", "group-1");
+	}
+
+	@Benchmark
+	public String sendResponseTree() throws IOException {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		this.objectMapper.writeValue(response.getWriter(), this.gson.toJsonTree(this.sessions));
+		return response.getContentAsString();
+	}
+
+	@Benchmark
+	public String sendResponse() throws IOException {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		new HttpResponse(response).status(HttpStatus.OK).send(this.sessions);
+		return response.getContentAsString();
+	}
+}
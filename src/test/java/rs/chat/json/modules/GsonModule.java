@@ -9,7 +9,8 @@ import rs.chat.json.serializers.JsonObjectSerializer;
 import rs.chat.json.serializers.JsonPrimitiveSerializer;
 
 /**
- * Jackson module to serialize GSON objects.
+ * Jackson module to serialize GSON objects. Only used by the tests, which compare the
+ * output of {@link rs.chat.json.JsonCodec} with the one of Jackson.
  */
 public class GsonModule extends SimpleModule {
 	public GsonModule() {
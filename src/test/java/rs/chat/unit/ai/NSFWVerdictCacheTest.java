@@ -0,0 +1,106 @@
+package rs.chat.unit.ai;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import rs.chat.ai.nsfw.NSFWVerdictCache;
+import rs.chat.ai.nsfw.PerceptualHash;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class NSFWVerdictCacheTest {
+	private static final BufferedImage IMAGE = new BufferedImage(900, 600, BufferedImage.TYPE_INT_RGB);
+
+	static {
+		Graphics2D graphics = IMAGE.createGraphics();
+		graphics.setPaint(new GradientPaint(0, 0, Color.BLACK, 900, 600, Color.ORANGE));
+		graphics.fillRect(0, 0, 900, 600);
+		graphics.setColor(Color.WHITE);
+		graphics.fillOval(150, 100, 300, 300);
+		graphics.setColor(Color.BLUE);
+		graphics.fillRect(600, 350, 200, 150);
+		graphics.dispose();
+	}
+
+	private final AtomicInteger classifications = new AtomicInteger();
+
+	private boolean classify(boolean nsfw) {
+		this.classifications.incrementAndGet();
+		return nsfw;
+	}
+
+	private static BufferedImage image(int width, int height) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		graphics.drawImage(IMAGE, 0, 0, width, height, null);
+		graphics.dispose();
+		return image;
+	}
+
+	@Test
+	void testTheSameContentIsClassifiedOnce() {
+		// given
+		NSFWVerdictCache underTest = new NSFWVerdictCache(100, Duration.ofHours(1), false, 4);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		underTest.bindTo(registry);
+
+		// when
+		boolean first = underTest.isNSFW("image:hash", () -> null, () -> this.classify(true));
+		boolean second = underTest.isNSFW("image:hash", () -> null, () -> this.classify(false));
+		boolean other = underTest.isNSFW("image:other", () -> null, () -> this.classify(false));
+
+		// then
+		assertThat(first).isTrue();
+		assertThat(second).isTrue();
+		assertThat(other).isFalse();
+		assertThat(this.classifications).hasValue(2);
+		assertThat(registry.get("cache.gets").tag("cache", "chat.nsfw.verdicts").tag("result", "hit").functionCounter().count()).isEqualTo(1);
+		assertThat(registry.get("cache.gets").tag("cache", "chat.nsfw.verdicts").tag("result", "miss").functionCounter().count()).isEqualTo(2);
+	}
+
+	@Test
+	void testErrorsOfTheClassifierAreNotCached() {
+		// given
+		NSFWVerdictCache underTest = new NSFWVerdictCache(100, Duration.ofHours(1), false, 4);
+
+		// when
+		assertThatThrownBy(() -> underTest.isNSFW("image:hash", () -> null, () -> {
+			throw new IllegalStateException("Classifier unavailable");
+		})).isInstanceOf(IllegalStateException.class);
+		boolean nsfw = underTest.isNSFW("image:hash", () -> null, () -> this.classify(false));
+
+		// then
+		assertThat(nsfw).isFalse();
+		assertThat(this.classifications).hasValue(1);
+	}
+
+	@Test
+	void testSimilarImagesReuseTheVerdict() {
+		// given
+		NSFWVerdictCache underTest = new NSFWVerdictCache(100, Duration.ofHours(1), true, 4);
+		long original = PerceptualHash.of(IMAGE);
+		long resized = PerceptualHash.of(image(450, 300));
+		long different = ~original;
+
+		// when
+		boolean first = underTest.isNSFW("image:original", () -> original, () -> this.classify(true));
+		boolean similar = underTest.isNSFW("image:resized", () -> resized, () -> this.classify(false));
+		boolean notSimilar = underTest.isNSFW("image:different", () -> different, () -> this.classify(false));
+
+		// then
+		assertThat(Long.bitCount(original ^ resized)).isLessThanOrEqualTo(4);
+		assertThat(first).isTrue();
+		assertThat(similar).isTrue();
+		assertThat(notSimilar).isFalse();
+		assertThat(this.classifications).hasValue(2);
+	}
+}
@@ -0,0 +1,144 @@
+package rs.chat.unit.cache;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import rs.chat.cache.CachedHistoryFile;
+import rs.chat.cache.HistoryDurability;
+import rs.chat.cache.HistoryWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static rs.chat.utils.Constants.HISTORY_PAGE_SIZE;
+
+class CachedHistoryFileTest {
+	@TempDir
+	Path tempDir;
+
+	private static String message(int i) {
+		return "{\"headers\":{\"type\":\"TEXT_MESSAGE\"},\"body\":{\"content\":\"mensaje ñ " + i + "\"}}";
+	}
+
+	@Test
+	void testPagesFromTheEnd() throws IOException {
+		// given
+		CachedHistoryFile underTest = new CachedHistoryFile("chat", this.tempDir.resolve("chat.rsJson").toFile());
+		IntStream.range(0, 200).mapToObj(CachedHistoryFileTest::message).forEach(underTest::write);
+
+		// when
+		List<String> lastPage = underTest.getMoreMessagesFromOffset(0);
+		List<String> secondPage = underTest.getMoreMessagesFromOffset(HISTORY_PAGE_SIZE);
+		List<String> firstMessages = underTest.getMoreMessagesFromOffset(190);
+		List<String> beyondStart = underTest.getMoreMessagesFromOffset(200);
+
+		// then
+		assertThat(underTest.messageCount()).isEqualTo(200);
+		assertThat(lastPage).containsExactlyElementsOf(expected(200 - HISTORY_PAGE_SIZE, 200));
+		assertThat(secondPage).containsExactlyElementsOf(expected(200 - 2 * HISTORY_PAGE_SIZE, 200 - HISTORY_PAGE_SIZE));
+		assertThat(firstMessages).containsExactlyElementsOf(expected(0, 10));
+		assertThat(beyondStart).isEmpty();
+	}
+
+	@Test
+	void testIndexesExistingFile() throws IOException {
+		// given
+		File file = this.tempDir.resolve("chat.rsJson").toFile();
+		List<String> existing = expected(0, 100);
+		// The last message has no line break, it must be added before appending
+		Files.writeString(file.toPath(), String.join("\n", existing), StandardCharsets.UTF_8);
+
+		// when
+		CachedHistoryFile underTest = new CachedHistoryFile("chat", file);
+		underTest.write(message(100));
+
+		// then
+		assertThat(underTest.messageCount()).isEqualTo(101);
+		assertThat(underTest.getMoreMessagesFromOffset(0)).containsExactlyElementsOf(expected(101 - HISTORY_PAGE_SIZE, 101));
+		assertThat(Files.readAllLines(file.toPath())).containsExactlyElementsOf(expected(0, 101));
+	}
+
+	@Test
+	void testReadPageReturnsStoredLines() throws IOException {
+		// given
+		CachedHistoryFile underTest = new CachedHistoryFile("chat", this.tempDir.resolve("chat.rsJson").toFile());
+		IntStream.range(0, 100).mapToObj(CachedHistoryFileTest::message).forEach(underTest::write);
+		underTest.readPage(0); // Maps the file before it grows
+		IntStream.range(100, 150).mapToObj(CachedHistoryFileTest::message).forEach(underTest::write);
+
+		// when
+		ByteBuffer page = underTest.readPage(5);
+
+		// then
+		String expectedLines = String.join("\n", expected(145 - HISTORY_PAGE_SIZE, 145)) + "\n";
+		assertThat(StandardCharsets.UTF_8.decode(page).toString()).isEqualTo(expectedLines);
+		assertThat(underTest.readPage(150).hasRemaining()).isFalse();
+	}
+
+	@Test
+	void testSyncUploadsOnlyWhenThereAreNewMessages() throws IOException {
+		// given
+		File file = this.tempDir.resolve("chat.rsJson").toFile();
+		CachedHistoryFile underTest = new CachedHistoryFile("chat", file);
+		List<Long> uploads = new ArrayList<>();
+		CachedHistoryFile.Uploader uploader = (chatId, uploadedFile, size) -> {
+			// The messages must have been written before uploading them
+			assertThat(uploadedFile.length()).isGreaterThanOrEqualTo(size);
+			uploads.add(size);
+			return size;
+		};
+		IntStream.range(0, 10).mapToObj(CachedHistoryFileTest::message).forEach(underTest::write);
+
+		// when
+		long first = underTest.sync(uploader);
+		long unchanged = underTest.sync(uploader);
+		underTest.write(message(10));
+		underTest.close();
+		long afterClosing = underTest.sync(uploader);
+
+		// then
+		long size = Files.size(file.toPath());
+		assertThat(first).isPositive();
+		assertThat(unchanged).isZero();
+		assertThat(afterClosing).isEqualTo(size);
+		assertThat(uploads).containsExactly(first, size);
+	}
+
+	@Test
+	void testFailedWriteBreaksTheFile() throws IOException {
+		// given
+		File file = this.tempDir.resolve("chat.rsJson").toFile();
+		HistoryWriter writer = new HistoryWriter(Duration.ofMillis(1), 64, HistoryDurability.WRITE);
+		CachedHistoryFile underTest = new CachedHistoryFile("chat", file, writer);
+		underTest.write(message(0));
+		underTest.readPage(0);
+		writer.close(); // The next messages cannot be written
+		List<Long> uploads = new ArrayList<>();
+
+		// when
+		underTest.write(message(1));
+
+		// then
+		assertThat(underTest.isBroken()).isTrue();
+		assertThat(underTest.readPage(0)).isNull();
+		assertThat(underTest.write(message(2))).isFalse();
+		underTest.close();
+		underTest.sync((chatId, uploadedFile, size) -> {
+			uploads.add(size);
+			return size;
+		});
+		assertThat(uploads).containsExactly(Files.size(file.toPath())); // Only the written messages
+	}
+
+	private static List<String> expected(int from, int to) {
+		return IntStream.range(from, to).mapToObj(CachedHistoryFileTest::message).toList();
+	}
+}
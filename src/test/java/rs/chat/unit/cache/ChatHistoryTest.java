@@ -0,0 +1,157 @@
+package rs.chat.unit.cache;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import rs.chat.cache.CachedHistoryFile;
+import rs.chat.cache.ChatHistory;
+import rs.chat.cache.ColdPageCache;
+import rs.chat.cache.HistoryDurability;
+import rs.chat.cache.HistoryFilesCache;
+import rs.chat.cache.HistoryWriter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static rs.chat.utils.Constants.HISTORY_PAGE_SIZE;
+
+class ChatHistoryTest {
+	@TempDir
+	Path tempDir;
+
+	private final HistoryWriter writer = new HistoryWriter(Duration.ofMillis(1), 64, HistoryDurability.WRITE);
+
+	@AfterEach
+	void tearDown() {
+		this.writer.close();
+	}
+
+	private static String message(int i) {
+		return "{\"n\":" + i + "}";
+	}
+
+	private static String lines(int from, int to) {
+		return IntStream.range(from, to).mapToObj(i -> message(i) + "\n").collect(Collectors.joining());
+	}
+
+	private static String decode(ByteBuffer[] page) {
+		return Arrays.stream(page).map(b -> StandardCharsets.UTF_8.decode(b).toString()).collect(Collectors.joining());
+	}
+
+	@Test
+	void testPagesFromTailAndColdBlocks() throws Exception {
+		// given
+		Files.writeString(this.tempDir.resolve("chat"), lines(0, 1000));
+		HistoryFilesCache files = new HistoryFilesCache(1 << 20, Duration.ofHours(1),
+		                                                (id, unsynced) -> new CachedHistoryFile(id, this.tempDir.resolve(id).toFile(), this.writer),
+		                                                file -> CompletableFuture.completedFuture(null));
+		ChatHistory underTest = new ChatHistory("chat", files, new ColdPageCache(1 << 20, Duration.ofHours(1)), ColdPageCache.BLOCK_SIZE);
+		IntStream.range(1000, 1050).mapToObj(ChatHistoryTest::message).forEach(underTest::append);
+
+		// when
+		ByteBuffer[] lastPage = underTest.page(0).join();
+		ByteBuffer[] acrossTail = underTest.page(100).join();
+		ByteBuffer[] cold = underTest.page(500).join();
+		ByteBuffer[] first = underTest.page(1000).join();
+
+		// then
+		assertThat(lastPage).hasSize(HISTORY_PAGE_SIZE); // One buffer per message of the tail
+		assertThat(decode(lastPage)).isEqualTo(lines(1050 - HISTORY_PAGE_SIZE, 1050));
+		assertThat(decode(acrossTail)).isEqualTo(lines(950 - HISTORY_PAGE_SIZE, 950));
+		assertThat(decode(cold)).isEqualTo(lines(550 - HISTORY_PAGE_SIZE, 550));
+		assertThat(decode(first)).isEqualTo(lines(0, 50));
+		assertThat(underTest.page(1050).join()).isEmpty();
+		assertThat(files.get("chat").getMoreMessagesFromOffset(0))
+				.containsExactlyElementsOf(IntStream.range(1050 - HISTORY_PAGE_SIZE, 1050).mapToObj(ChatHistoryTest::message).toList());
+	}
+
+	@Test
+	void testEmptyHistory() {
+		// given
+		HistoryFilesCache files = new HistoryFilesCache(1 << 20, Duration.ofHours(1),
+		                                                (id, unsynced) -> new CachedHistoryFile(id, this.tempDir.resolve(id).toFile(), this.writer),
+		                                                file -> CompletableFuture.completedFuture(null));
+
+		// when
+		ChatHistory underTest = new ChatHistory("chat", files, new ColdPageCache(1 << 20, Duration.ofHours(1)), 10);
+		underTest.append(message(0));
+
+		// then
+		assertThat(decode(underTest.page(0).join())).isEqualTo(lines(0, 1));
+		assertThat(underTest.page(1).join()).isEmpty();
+	}
+
+	@Test
+	void testMessagesReceivedWhileLoadingAreMerged() throws Exception {
+		// given
+		Files.writeString(this.tempDir.resolve("chat"), lines(0, 10));
+		HistoryFilesCache files = new HistoryFilesCache(1 << 20, Duration.ofHours(1),
+		                                                (id, unsynced) -> new CachedHistoryFile(id, this.tempDir.resolve(id).toFile(), this.writer),
+		                                                file -> CompletableFuture.completedFuture(null));
+		CountDownLatch loading = new CountDownLatch(1);
+		Executor executor = task -> new Thread(() -> {
+			try {
+				loading.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			task.run();
+		}).start();
+		ChatHistory underTest = new ChatHistory("chat", files, new ColdPageCache(1 << 20, Duration.ofHours(1)), 100, executor);
+
+		// when
+		underTest.append(message(10));
+		underTest.append(message(11));
+		CompletableFuture<ByteBuffer[]> page = underTest.page(0);
+
+		// then
+		assertThat(page).isNotDone();
+		loading.countDown();
+		assertThat(decode(page.get(5, TimeUnit.SECONDS))).isEqualTo(lines(0, 12));
+		underTest.append(message(12));
+		assertThat(decode(underTest.page(0).join())).isEqualTo(lines(0, 13));
+		assertThat(files.get("chat").messageCount()).isEqualTo(13);
+	}
+
+	@Test
+	void testFileRemovedFromTheCacheIsLoadedAgainInTheBackground() throws Exception {
+		// given
+		Files.writeString(this.tempDir.resolve("chat"), lines(0, 10));
+		AtomicInteger loads = new AtomicInteger();
+		HistoryFilesCache files = new HistoryFilesCache(1 << 20, Duration.ofHours(1), (id, unsynced) -> {
+			loads.incrementAndGet();
+			return new CachedHistoryFile(id, this.tempDir.resolve(id).toFile(), this.writer);
+		}, file -> CompletableFuture.completedFuture(null));
+		Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		ChatHistory underTest = new ChatHistory("chat", files, new ColdPageCache(1 << 20, Duration.ofHours(1)), 100, tasks::add);
+		tasks.poll().run();
+		files.invalidate("chat");
+
+		// when
+		underTest.append(message(10));
+		underTest.append(message(11));
+
+		// then
+		assertThat(loads).hasValue(1); // Not loaded by the thread that appends the messages
+		assertThat(tasks).hasSize(1);
+		tasks.poll().run();
+		assertThat(loads).hasValue(2);
+		assertThat(decode(underTest.page(0).join())).isEqualTo(lines(0, 12));
+		assertThat(files.get("chat").messageCount()).isEqualTo(12);
+	}
+}
@@ -0,0 +1,170 @@
+package rs.chat.unit.cache;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import rs.chat.cache.CachedHistoryFile;
+import rs.chat.cache.HistoryDurability;
+import rs.chat.cache.HistoryFilesCache;
+import rs.chat.cache.HistoryWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HistoryFilesCacheTest {
+	@TempDir
+	Path tempDir;
+
+	private final HistoryWriter writer = new HistoryWriter(Duration.ofMillis(1), 64, HistoryDurability.WRITE);
+	private final List<String> loaded = new CopyOnWriteArrayList<>();
+	private final List<String> persisted = new CopyOnWriteArrayList<>();
+	private final List<Boolean> unsyncedLoads = new CopyOnWriteArrayList<>();
+
+	@AfterEach
+	void tearDown() {
+		this.writer.close();
+	}
+
+	private CachedHistoryFile load(String chatId, boolean unsynced) throws IOException {
+		this.loaded.add(chatId);
+		this.unsyncedLoads.add(unsynced);
+		return new CachedHistoryFile(chatId, this.tempDir.resolve(chatId).toFile(), this.writer);
+	}
+
+	@Test
+	void testEvictedFilesAreClosedAndPersisted() throws Exception {
+		// given
+		CountDownLatch persistedLatch = new CountDownLatch(1);
+		HistoryFilesCache underTest = new HistoryFilesCache(2000, Duration.ofHours(1), this::load, file -> {
+			this.persisted.add(file.getChatId());
+			persistedLatch.countDown();
+			return CompletableFuture.completedFuture(null);
+		});
+		CachedHistoryFile first = underTest.get("a");
+
+		// when (the files are weighed again when their retained messages grow)
+		underTest.retain("a", 600);
+		underTest.get("b");
+		underTest.retain("b", 600);
+		underTest.get("c");
+		underTest.retain("c", 600);
+
+		// then
+		assertThat(persistedLatch.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(this.persisted).containsExactly("a");
+		assertThat(first.write("{}")).isFalse();
+		assertThat(first.readPage(0)).isNull();
+	}
+
+	@Test
+	void testFilesAreWeighedByTheMemoryTheyHold() throws Exception {
+		// given
+		Files.writeString(this.tempDir.resolve("a"), "{\"a\":\"%s\"}\n".formatted("a".repeat(5000)));
+		HistoryFilesCache underTest = new HistoryFilesCache(1000, Duration.ofHours(1), this::load, file -> {
+			this.persisted.add(file.getChatId());
+			return CompletableFuture.completedFuture(null);
+		});
+
+		// when (the file is bigger than the cache, but it is not held in memory)
+		CachedHistoryFile file = underTest.get("a");
+		underTest.retain("a", 5000); // Bigger than the cache, the weight is capped
+
+		// then
+		assertThat(file.memoryBytes()).isLessThan(6000);
+		assertThat(underTest.get("a")).isSameAs(file);
+		assertThat(this.loaded).containsExactly("a");
+		assertThat(this.persisted).isEmpty();
+	}
+
+	@Test
+	void testInvalidatedChatIsLoadedAfterBeingPersisted() throws Exception {
+		// given
+		CountDownLatch persisting = new CountDownLatch(1);
+		HistoryFilesCache underTest = new HistoryFilesCache(1 << 20, Duration.ofHours(1), this::load, file -> {
+			try {
+				persisting.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			this.persisted.add(file.getChatId());
+			return CompletableFuture.completedFuture(null);
+		});
+		underTest.write("a", CachedHistoryFile.encode("{\"n\":1}"));
+
+		// when
+		underTest.invalidate("a");
+		CompletableFuture<CachedHistoryFile> reloaded = CompletableFuture.supplyAsync(() -> underTest.get("a"));
+
+		// then
+		Thread.sleep(200);
+		assertThat(reloaded).isNotDone();
+		persisting.countDown();
+		assertThat(reloaded.get(5, TimeUnit.SECONDS).getMoreMessagesFromOffset(0)).containsExactly("{\"n\":1}");
+		assertThat(this.persisted).containsExactly("a");
+		assertThat(this.loaded).containsExactly("a", "a");
+	}
+
+	@Test
+	void testBrokenFileIsLoadedAgain() throws Exception {
+		// given
+		HistoryWriter closedWriter = new HistoryWriter(Duration.ofMillis(1), 64, HistoryDurability.WRITE);
+		closedWriter.close();
+		Path path = this.tempDir.resolve("a");
+		CountDownLatch persistedLatch = new CountDownLatch(1);
+		HistoryFilesCache underTest = new HistoryFilesCache(1 << 20, Duration.ofHours(1), (chatId, unsynced) -> {
+			this.loaded.add(chatId);
+			// The first file cannot be written
+			return new CachedHistoryFile(chatId, path.toFile(), this.loaded.size() == 1 ? closedWriter : this.writer);
+		}, file -> {
+			this.persisted.add(file.getChatId());
+			persistedLatch.countDown();
+			return CompletableFuture.completedFuture(null);
+		});
+		CachedHistoryFile broken = underTest.get("a");
+		broken.write("{\"n\":1}");
+
+		// when
+		underTest.write("a", CachedHistoryFile.encode("{\"n\":2}"));
+
+		// then
+		assertThat(persistedLatch.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(underTest.get("a")).isNotSameAs(broken);
+		assertThat(underTest.readPage("a", 0)).isEqualTo(ByteBuffer.wrap(CachedHistoryFile.encode("{\"n\":2}")));
+		assertThat(this.loaded).containsExactly("a", "a");
+		assertThat(this.persisted).containsExactly("a");
+	}
+
+	@Test
+	void testFileThatCouldNotBePersistedIsNotDownloadedAgain() throws Exception {
+		// given
+		List<Boolean> uploads = List.of(false, true);
+		HistoryFilesCache underTest = new HistoryFilesCache(1 << 20, Duration.ofHours(1), this::load, file -> {
+			boolean uploaded = uploads.get(this.persisted.size());
+			this.persisted.add(file.getChatId());
+			return uploaded ? CompletableFuture.completedFuture(null) : CompletableFuture.failedFuture(new IllegalStateException("S3 unavailable"));
+		});
+		underTest.write("a", CachedHistoryFile.encode("{\"n\":1}"));
+
+		// when
+		underTest.invalidate("a");
+		underTest.write("a", CachedHistoryFile.encode("{\"n\":2}"));
+		underTest.invalidate("a");
+		underTest.get("a");
+
+		// then (the file is opened locally until it has been persisted)
+		assertThat(this.unsyncedLoads).containsExactly(false, true, false);
+		assertThat(this.persisted).containsExactly("a", "a");
+		assertThat(underTest.get("a").getMoreMessagesFromOffset(0)).containsExactly("{\"n\":1}", "{\"n\":2}");
+	}
+}
@@ -0,0 +1,109 @@
+package rs.chat.unit.cache;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import rs.chat.cache.CachedHistoryFile;
+import rs.chat.cache.HistoryDurability;
+import rs.chat.cache.HistoryPersister;
+import rs.chat.cache.HistoryWriter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HistoryPersisterTest {
+	@TempDir
+	Path tempDir;
+
+	private final HistoryWriter writer = new HistoryWriter(Duration.ofMillis(1), 64, HistoryDurability.WRITE);
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	private final List<Long> uploads = new CopyOnWriteArrayList<>();
+
+	@AfterEach
+	void tearDown() {
+		this.executor.shutdownNow();
+		this.writer.close();
+	}
+
+	private CachedHistoryFile file(String chatId) throws IOException {
+		CachedHistoryFile file = new CachedHistoryFile(chatId, this.tempDir.resolve(chatId).toFile(), this.writer);
+		file.write("{\"chat\":\"%s\"}".formatted(chatId));
+		return file;
+	}
+
+	@Test
+	void testRequestsOfTheSameChatAreCoalesced() throws Exception {
+		// given
+		CountDownLatch uploading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		HistoryPersister underTest = new HistoryPersister(this.executor, 1, Duration.ofMillis(1), (chatId, file, size) -> {
+			if (chatId.equals("blocking")) {
+				uploading.countDown();
+
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			this.uploads.add(size);
+			return size;
+		});
+		CachedHistoryFile blocking = this.file("blocking");
+		CachedHistoryFile file = this.file("chat");
+
+		// when
+		CompletableFuture<Long> running = underTest.sync(blocking);
+		assertThat(uploading.await(5, TimeUnit.SECONDS)).isTrue();
+		CompletableFuture<Long> afterRunning = underTest.sync(blocking);
+		CompletableFuture<Long> coalesced = underTest.sync(blocking);
+		CompletableFuture<Long> other = underTest.sync(file);
+
+		// then
+		assertThat(coalesced).isSameAs(afterRunning);
+		assertThat(other.get(5, TimeUnit.SECONDS)).isPositive(); // Not blocked by the other chat
+		assertThat(underTest.pending()).isEqualTo(2);
+		release.countDown();
+		assertThat(running.get(5, TimeUnit.SECONDS)).isPositive();
+		assertThat(afterRunning.get(5, TimeUnit.SECONDS)).isZero(); // Nothing new to upload
+		assertThat(this.uploads).hasSize(2);
+		assertThat(underTest.pending()).isZero();
+	}
+
+	@Test
+	void testFailedUploadsAreRetried() throws Exception {
+		// given
+		AtomicInteger attempts = new AtomicInteger();
+		HistoryPersister underTest = new HistoryPersister(this.executor, 3, Duration.ofMillis(1), (chatId, file, size) -> {
+			if (attempts.incrementAndGet() < 3) {
+				throw new IllegalStateException("S3 is not available");
+			}
+
+			return size;
+		});
+		CachedHistoryFile file = this.file("chat");
+
+		// when
+		long uploaded = underTest.sync(file).get(5, TimeUnit.SECONDS);
+		file.write("{}");
+		attempts.set(-10); // Every attempt fails
+		CompletableFuture<Long> failed = underTest.sync(file);
+
+		// then
+		assertThat(uploaded).isPositive();
+		assertThat(failed).failsWithin(5, TimeUnit.SECONDS);
+		assertThat(attempts.get()).isEqualTo(-7);
+	}
+}
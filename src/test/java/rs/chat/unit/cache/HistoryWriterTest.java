@@ -0,0 +1,94 @@
+package rs.chat.unit.cache;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import rs.chat.cache.HistoryDurability;
+import rs.chat.cache.HistoryWriter;
+import rs.chat.cache.HistoryWriterListener;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HistoryWriterTest {
+	@TempDir
+	Path tempDir;
+
+	private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+	private HistoryWriter underTest;
+
+	@AfterEach
+	void tearDown() {
+		this.underTest.close();
+	}
+
+	private HistoryWriter writer(Duration flushInterval, int maxBatchSize, HistoryDurability durability) {
+		HistoryWriter writer = new HistoryWriter(flushInterval, maxBatchSize, durability);
+		writer.setListener(new HistoryWriterListener() {
+			@Override
+			public void onBatchWritten(int messages, int files, long bytes, long nanos) {
+				HistoryWriterTest.this.batchSizes.add(messages);
+			}
+		});
+		return writer;
+	}
+
+	private FileChannel open(String name) throws IOException {
+		return FileChannel.open(this.tempDir.resolve(name), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private static byte[] line(String chat, int i) {
+		return (chat + "-" + i + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	void testMessagesAreWrittenInOrderAndInBatches() throws IOException {
+		// given
+		this.underTest = this.writer(Duration.ofMillis(50), 16, HistoryDurability.FSYNC);
+		FileChannel first = this.open("first");
+		FileChannel second = this.open("second");
+
+		// when
+		CompletableFuture<?>[] writes = IntStream.range(0, 100)
+		                                         .mapToObj(i -> this.underTest.append(i % 2 == 0 ? first : second, line(i % 2 == 0 ? "first" : "second", i)))
+		                                         .toArray(CompletableFuture[]::new);
+		CompletableFuture.allOf(writes).join();
+
+		// then
+		assertThat(Files.readAllLines(this.tempDir.resolve("first")))
+				.containsExactlyElementsOf(IntStream.range(0, 100).filter(i -> i % 2 == 0).mapToObj(i -> "first-" + i).toList());
+		assertThat(Files.readAllLines(this.tempDir.resolve("second")))
+				.containsExactlyElementsOf(IntStream.range(0, 100).filter(i -> i % 2 == 1).mapToObj(i -> "second-" + i).toList());
+		assertThat(this.batchSizes).allMatch(size -> size <= 16);
+		assertThat(this.batchSizes.stream().mapToInt(Integer::intValue).sum()).isEqualTo(100);
+		assertThat(this.batchSizes.size()).isLessThan(100);
+	}
+
+	@Test
+	void testCloseWritesPendingMessages() throws IOException {
+		// given
+		this.underTest = this.writer(Duration.ofSeconds(10), 1000, HistoryDurability.WRITE);
+		FileChannel channel = this.open("chat");
+		CompletableFuture<Void> pending = this.underTest.append(channel, line("chat", 0));
+
+		// when
+		this.underTest.close();
+		CompletableFuture<Void> afterClose = this.underTest.append(channel, line("chat", 1));
+
+		// then
+		assertThat(pending).isCompleted();
+		assertThat(afterClose).isCompletedExceptionally();
+		assertThat(Files.readAllLines(this.tempDir.resolve("chat"))).containsExactly("chat-0");
+	}
+}
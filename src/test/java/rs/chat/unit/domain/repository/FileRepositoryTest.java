@@ -14,6 +14,7 @@ import rs.chat.utils.Constants;
 import rs.chat.utils.factories.DefaultFactory;
 
 import java.time.Instant;
+import java.util.Optional;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static rs.chat.utils.TestConstants.TEST_COMPARISON_CONFIG;
@@ -31,7 +32,8 @@ class FileRepositoryTest {
 		this.user = this.userRepository.save(DefaultFactory.INSTANCE.createUser(null, Constants.STUDENT_ROLE));
 		this.file = new File(
 				null, "name", Instant.now(), 1024,
-				"/path/to/file", new JsonObject(), "IMAGE", null // set later
+				"/path/to/file", new JsonObject(), "IMAGE", null, // set later
+				"9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08"
 		);
 	}
 
@@ -66,4 +68,20 @@ class FileRepositoryTest {
 		// Then
 		assertThat(expected).isNull();
 	}
+
+	@Test
+	void itShouldFindByHashAndType() {
+		// Given
+		this.file.setUser(this.user);
+		this.underTest.save(this.file);
+
+		// When
+		Optional<File> expected = this.underTest.findFirstByHashAndType(this.file.getHash(), this.file.getType());
+		Optional<File> otherType = this.underTest.findFirstByHashAndType(this.file.getHash(), "VIDEO");
+
+		// Then
+		assertThat(expected).isPresent();
+		assertThat(expected.get().getPath()).isEqualTo(this.file.getPath());
+		assertThat(otherType).isEmpty();
+	}
 }
@@ -0,0 +1,104 @@
+package rs.chat.unit.json;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import rs.chat.domain.entity.dtos.SessionDto;
+import rs.chat.json.JsonCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static rs.chat.utils.TestConstants.TEST_OBJECT_MAPPER;
+
+class JsonCodecTest {
+	@Test
+	void testMessage() {
+		// given
+		String content = "Hello <b>\"world\"</b> & á\n";
+
+		// when
+		String message = JsonCodec.message("Server", "group-1", "TEXT_MESSAGE", 1000L, content);
+
+		// then
+		assertThat(message).isEqualTo(
+				"{\"headers\":{\"username\":\"Server\",\"chatId\":\"group-1\",\"type\":\"TEXT_MESSAGE\",\"date\":1000}," +
+				"\"body\":{\"content\":\"Hello <b>\\\"world\\\"</b> & á\\n\"}}"
+		);
+		JsonObject parsed = JsonParser.parseString(message).getAsJsonObject();
+		assertThat(parsed.getAsJsonObject("body").get("content").getAsString()).isEqualTo(content);
+	}
+
+	@Test
+	void testArrayMessageSplicesLines() {
+		// given
+		List<String> lines = List.of("{\"content\":\"say \\\"hi\\\" ñ\"}", "{\"a\":[1,2]}", "\"\\\\\"");
+		ByteBuffer page = ByteBuffer.wrap((String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+
+		// when
+		byte[] message = JsonCodec.arrayMessage("Server", "group-1", "GET_HISTORY_MESSAGE", 1000L, page);
+
+		// then
+		String expected = JsonCodec.message("Server", "group-1", "GET_HISTORY_MESSAGE", 1000L, "[" + String.join(",", lines) + "]");
+		assertThat(new String(message, StandardCharsets.UTF_8)).isEqualTo(expected);
+		assertThat(page.remaining()).isEqualTo(page.capacity());
+		int secondLine = String.join("\n", lines.subList(0, 1)).getBytes(StandardCharsets.UTF_8).length + 1;
+		ByteBuffer[] segments = {page.duplicate().limit(secondLine), page.duplicate().position(secondLine)};
+		assertThat(JsonCodec.arrayMessage("Server", "group-1", "GET_HISTORY_MESSAGE", 1000L, segments)).isEqualTo(message);
+		assertThat(new String(JsonCodec.arrayMessage("Server", "group-1", "GET_HISTORY_MESSAGE", 1000L, ByteBuffer.allocate(0)), StandardCharsets.UTF_8))
+				.isEqualTo(JsonCodec.message("Server", "group-1", "GET_HISTORY_MESSAGE", 1000L, "[]"));
+	}
+
+	@Test
+	void testArrayMessageEscapesControlCharactersAndBlankLines() throws Exception {
+		// given (lines stored as the clients sent them, with raw control characters)
+		String page = "{\"content\":\"a\tb\u0001\\\\\"}\n\n\t{\"content\":\"c\"}\r\n";
+
+		// when
+		byte[] message = JsonCodec.arrayMessage("Server", "group-1", "GET_HISTORY_MESSAGE", 1000L,
+		                                        ByteBuffer.wrap(page.getBytes(StandardCharsets.UTF_8)));
+
+		// then (the frame and its content are parsed strictly)
+		JsonNode frame = TEST_OBJECT_MAPPER.readTree(message);
+		JsonNode history = TEST_OBJECT_MAPPER.readTree(frame.get("body").get("content").asText());
+		assertThat(history).hasSize(3);
+		assertThat(history.get(0).get("content").asText()).isEqualTo("a\tb\u0001\\");
+		assertThat(history.get(1).isNull()).isTrue();
+		assertThat(history.get(2).get("content").asText()).isEqualTo("c");
+	}
+
+	@Test
+	void testDtos() throws Exception {
+		// given
+		SessionDto session = new SessionDto(1L, "127.0.0.1", Instant.ofEpochSecond(10), Instant.ofEpochSecond(20), "a=b");
+
+		// when
+		String json = JsonCodec.toJson(session);
+
+		// then
+		assertThat(json).startsWith("{\"id\":1,\"srcIp\":\"127.0.0.1\",");
+		assertThat(json).endsWith("\"token\":\"a=b\"}"); // HTML characters are not escaped
+		assertThat(JsonCodec.toJson("Hello world!")).isEqualTo(TEST_OBJECT_MAPPER.writeValueAsString("Hello world!"));
+	}
+
+	@Test
+	void testNullsAreOmittedInObjects() {
+		// given
+		Map<String, Object> body = new LinkedHashMap<>();
+		body.put("a", 1);
+		body.put("b", null);
+
+		// when
+		String json = JsonCodec.toJson(body);
+
+		// then
+		assertThat(json).isEqualTo("{\"a\":1}");
+		assertThat(JsonCodec.toJson(null)).isEqualTo("null");
+	}
+}
@@ -0,0 +1,50 @@
+package rs.chat.unit.net.http;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletResponse;
+import rs.chat.net.http.HttpResponse;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HttpResponseTest {
+	private final MockHttpServletResponse response = new MockHttpServletResponse();
+	private final HttpResponse underTest = new HttpResponse(this.response);
+
+	@Test
+	void testSendWritesAnEmptyString() throws Exception {
+		// given
+		this.underTest.ok();
+
+		// when
+		this.underTest.send();
+
+		// then
+		assertThat(this.response.getStatus()).isEqualTo(HttpStatus.OK.value());
+		assertThat(this.response.getContentAsString()).isEqualTo("\"\"");
+	}
+
+	@Test
+	void testSendStatusWritesAnEmptyString() throws Exception {
+		// when
+		this.underTest.sendStatus(HttpStatus.NO_CONTENT);
+
+		// then
+		assertThat(this.response.getStatus()).isEqualTo(HttpStatus.NO_CONTENT.value());
+		assertThat(this.response.getContentAsString()).isEqualTo("\"\"");
+	}
+
+	@Test
+	void testSendWritesTheContentWithoutKey() throws Exception {
+		// given
+		this.underTest.ok();
+
+		// when
+		this.underTest.send(List.of("a", "b"));
+
+		// then
+		assertThat(this.response.getContentAsString()).isEqualTo("[\"a\",\"b\"]");
+	}
+}
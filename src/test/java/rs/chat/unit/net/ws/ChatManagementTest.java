@@ -0,0 +1,149 @@
+package rs.chat.unit.net.ws;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketSession;
+import rs.chat.cache.ChatHistory;
+import rs.chat.cache.ColdPageCache;
+import rs.chat.cache.HistoryFilesCache;
+import rs.chat.net.ws.Chat;
+import rs.chat.net.ws.ChatManagement;
+import rs.chat.net.ws.Client;
+import rs.chat.net.ws.ClientID;
+import rs.chat.net.ws.protocol.EncodedMessage;
+import rs.chat.observability.metrics.Metrics;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ChatManagementTest {
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final Metrics metrics = new Metrics(this.registry);
+	private final List<String> createdChats = new CopyOnWriteArrayList<>();
+	private final ChatManagement underTest = new ChatManagement(this.metrics, chatId -> {
+		this.createdChats.add(chatId);
+		return new Chat(chatId, this.metrics, history(chatId));
+	});
+
+	/**
+	 * @return a history that is never loaded (the messages are not saved by these tests).
+	 */
+	private static ChatHistory history(String chatId) {
+		HistoryFilesCache files = new HistoryFilesCache(1 << 20, Duration.ofHours(1), (id, unsynced) -> {
+			throw new IllegalStateException("The history is not loaded");
+		}, file -> CompletableFuture.completedFuture(null));
+
+		return new ChatHistory(chatId, files, new ColdPageCache(1 << 20, Duration.ofHours(1)), 10, task -> {
+		});
+	}
+
+	private static WebSocketSession session(String sessionId) {
+		WebSocketSession session = mock(WebSocketSession.class);
+		when(session.getId()).thenReturn(sessionId);
+		when(session.isOpen()).thenReturn(true);
+		return session;
+	}
+
+	private Client join(String username, String chatId, WebSocketSession session) {
+		Client client = new Client(session, new ClientID(username, chatId, session.getId().hashCode()));
+		this.underTest.addClientToChat(client);
+		return client;
+	}
+
+	private double deliveredFrames(String path) {
+		return this.registry.counter("chat.outbound.frames.delivered", "path", path).count();
+	}
+
+	@Test
+	void testClientThatLeavesIsRemovedFromTheIndexes() throws Exception {
+		// given
+		WebSocketSession davidSession = session("s1");
+		WebSocketSession mariaSession = session("s2");
+		Client david = this.join("david", "group-1", davidSession);
+		this.join("maria", "group-1", mariaSession);
+
+		// when
+		this.underTest.removeClientFromChat(david.getClientID());
+		this.underTest.sendNotificationTo("david", "{}");
+		this.underTest.sendNotificationTo("maria", "{}");
+
+		// then
+		verify(mariaSession, timeout(5000)).sendMessage(any());
+		verify(davidSession, after(200).never()).sendMessage(any());
+		assertThat(this.underTest.sendToSession("s1", "group-1", new EncodedMessage("{}"))).isFalse();
+		assertThat(this.underTest.getActiveUsernamesOfChat("group-1")).containsExactly("maria");
+		assertThat(this.deliveredFrames("shared")).isEqualTo(1);
+	}
+
+	@Test
+	void testClosedSessionIsRemovedFromAllItsChats() throws Exception {
+		// given
+		WebSocketSession davidSession = session("s1");
+		WebSocketSession mariaSession = session("s2");
+		this.join("david", "group-1", davidSession);
+		this.join("david", "group-2", davidSession);
+		this.join("maria", "group-1", mariaSession);
+
+		// when
+		this.underTest.removeClientsOfSession(davidSession);
+		this.underTest.sendNotificationTo("david", "{}");
+
+		// then
+		verify(davidSession, after(200).never()).sendMessage(any());
+		assertThat(this.underTest.sendToSession("s1", "group-1", new EncodedMessage("{}"))).isFalse();
+		assertThat(this.underTest.sendToSession("s1", "group-2", new EncodedMessage("{}"))).isFalse();
+		assertThat(this.underTest.getActiveUsernamesOfChat("group-1")).containsExactly("maria");
+		this.join("pablo", "group-2", session("s3"));
+		assertThat(this.createdChats).containsExactly("group-1", "group-2", "group-2"); // Finished when it was empty
+	}
+
+	@Test
+	void testNotificationIsSentOncePerChat() throws Exception {
+		// given
+		WebSocketSession firstTab = session("s1");
+		WebSocketSession secondTab = session("s2");
+		WebSocketSession otherChat = session("s3");
+		this.join("david", "group-1", firstTab);
+		this.join("david", "group-1", secondTab);
+		this.join("david", "group-2", otherChat);
+
+		// when
+		this.underTest.sendNotificationTo("david", "{}");
+
+		// then
+		verify(firstTab, timeout(5000)).sendMessage(any());
+		verify(otherChat, timeout(5000)).sendMessage(any());
+		verify(secondTab, after(200).never()).sendMessage(any());
+		assertThat(this.deliveredFrames("shared")).isEqualTo(2);
+		assertThat(this.registry.counter("chat.outbound.frames.allocated", "path", "shared").count()).isEqualTo(1);
+	}
+
+	@Test
+	void testMessageIsSentToTheClientOfTheSessionInTheChat() throws Exception {
+		// given
+		WebSocketSession session = session("s1");
+		this.join("david", "group-1", session);
+		this.join("david", "group-2", session);
+
+		// when
+		boolean sent = this.underTest.sendToSession("s1", "group-2", new EncodedMessage("{}"));
+		boolean unknownChat = this.underTest.sendToSession("s1", "group-3", new EncodedMessage("{}"));
+
+		// then
+		assertThat(sent).isTrue();
+		assertThat(unknownChat).isFalse();
+		verify(session, timeout(5000)).sendMessage(any());
+		assertThat(this.deliveredFrames("direct")).isEqualTo(1);
+	}
+}
@@ -0,0 +1,147 @@
+package rs.chat.unit.net.ws;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketSession;
+import rs.chat.cache.ChatHistory;
+import rs.chat.cache.ColdPageCache;
+import rs.chat.cache.HistoryFilesCache;
+import rs.chat.net.ws.Chat;
+import rs.chat.net.ws.Client;
+import rs.chat.net.ws.ClientID;
+import rs.chat.observability.metrics.Metrics;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ChatTest {
+	private static final String CHAT_ID = "group-1";
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final Chat underTest = new Chat(CHAT_ID, new Metrics(this.registry), history());
+
+	/**
+	 * @return a history that is never loaded (the messages are not saved by these tests).
+	 */
+	private static ChatHistory history() {
+		HistoryFilesCache files = new HistoryFilesCache(1 << 20, Duration.ofHours(1), (id, unsynced) -> {
+			throw new IllegalStateException("The history is not loaded");
+		}, file -> CompletableFuture.completedFuture(null));
+
+		return new ChatHistory(CHAT_ID, files, new ColdPageCache(1 << 20, Duration.ofHours(1)), 10, task -> {
+		});
+	}
+
+	private static Client client(String username, String sessionId) {
+		WebSocketSession session = mock(WebSocketSession.class);
+		when(session.getId()).thenReturn(sessionId);
+		when(session.isOpen()).thenReturn(true);
+		return new Client(session, new ClientID(username, CHAT_ID, sessionId.hashCode()));
+	}
+
+	private double deliveredFrames() {
+		return this.registry.counter("chat.outbound.frames.delivered", "path", "shared").count();
+	}
+
+	@Test
+	void testSessionsOfTheSameUserAreRemovedInTheOrderTheyWereAdded() {
+		// given
+		Client firstTab = client("david", "s1");
+		Client secondTab = client("david", "s2");
+		Client other = client("maria", "s3");
+		this.underTest.addClient(firstTab);
+		this.underTest.addClient(secondTab);
+		this.underTest.addClient(other);
+
+		// when
+		Optional<Client> firstRemoved = this.underTest.removeClient(firstTab.getClientID());
+		boolean davidConnected = this.underTest.hasClientWithUsername("david");
+		Optional<Client> secondRemoved = this.underTest.removeClient(firstTab.getClientID());
+		Optional<Client> noneRemoved = this.underTest.removeClient(firstTab.getClientID());
+
+		// then
+		assertThat(firstRemoved).containsSame(firstTab);
+		assertThat(davidConnected).isTrue();
+		assertThat(secondRemoved).containsSame(secondTab);
+		assertThat(noneRemoved).isEmpty();
+		assertThat(this.underTest.hasClientWithUsername("david")).isFalse();
+		assertThat(this.underTest.getActiveUsernames()).containsExactly("maria");
+		assertThat(this.underTest.hasNoAvailableClients()).isFalse();
+	}
+
+	@Test
+	void testBroadcastsReachTheClientsOfTheChatAfterEachChange() {
+		// given
+		Client david = client("david", "s1");
+		Client maria = client("maria", "s2");
+		this.underTest.addClient(david);
+
+		// when
+		this.underTest.broadcast("{\"n\":1}", false);
+		double afterFirst = this.deliveredFrames();
+		this.underTest.addClient(maria);
+		this.underTest.broadcast("{\"n\":2}", false);
+		double afterJoin = this.deliveredFrames();
+		this.underTest.removeClient(david.getClientID());
+		this.underTest.broadcast("{\"n\":3}", false);
+		double afterLeave = this.deliveredFrames();
+
+		// then
+		assertThat(afterFirst).isEqualTo(1);
+		assertThat(afterJoin).isEqualTo(3);
+		assertThat(afterLeave).isEqualTo(4);
+		assertThat(this.underTest.getActiveUsernames()).containsExactly("maria");
+	}
+
+	@Test
+	void testClosedSessionsDoNotReceiveBroadcasts() throws Exception {
+		// given
+		Client open = client("david", "s1");
+		Client closed = client("maria", "s2");
+		when(closed.getSession().isOpen()).thenReturn(false);
+		this.underTest.addClient(open);
+		this.underTest.addClient(closed);
+
+		// when
+		this.underTest.broadcast("{}", false);
+
+		// then
+		verify(open.getSession(), timeout(5000)).sendMessage(any());
+		verify(closed.getSession(), never()).sendMessage(any());
+		assertThat(this.deliveredFrames()).isEqualTo(1);
+		assertThat(this.underTest.getActiveUsernames()).containsExactly("david");
+	}
+
+	@Test
+	void testExcludedUserDoesNotReceiveTheMessageInAnySession() throws Exception {
+		// given
+		Client sender = client("david", "s1");
+		Client senderOtherTab = client("david", "s2");
+		Client maria = client("maria", "s3");
+		Client pablo = client("pablo", "s4");
+		this.underTest.addClient(sender);
+		this.underTest.addClient(senderOtherTab);
+		this.underTest.addClient(maria);
+		this.underTest.addClient(pablo);
+
+		// when
+		this.underTest.sendWithClientExclusion("{}", sender.getClientID(), false);
+
+		// then
+		verify(maria.getSession(), timeout(5000)).sendMessage(any());
+		verify(pablo.getSession(), timeout(5000)).sendMessage(any());
+		verify(sender.getSession(), after(200).never()).sendMessage(any());
+		verify(senderOtherTab.getSession(), never()).sendMessage(any());
+		assertThat(this.deliveredFrames()).isEqualTo(2);
+	}
+}
@@ -0,0 +1,143 @@
+package rs.chat.unit.net.ws;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import rs.chat.net.ws.JsonMessageWrapper;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static rs.chat.utils.TestConstants.TEST_OBJECT_MAPPER;
+
+class JsonMessageWrapperTest {
+	private static final String MESSAGE = """
+			{"headers":{"username":"david","chatId":"group-1","sessionId":123,"type":"TEXT_MESSAGE","date":1000,"token":"Bearer abc"},\
+			"body":{"content":"Hello \\"world\\" \\u00e1"}}""";
+
+	@Test
+	void testReadsHeadersAndContent() {
+		// given
+		JsonMessageWrapper message = new JsonMessageWrapper(MESSAGE);
+
+		// when
+		boolean correct = message.correctStructure();
+
+		// then
+		assertThat(correct).isTrue();
+		assertThat(message.username()).isEqualTo("david");
+		assertThat(message.chatId()).isEqualTo("group-1");
+		assertThat(message.sessionId()).isEqualTo(123L);
+		assertThat(message.type()).isEqualTo("TEXT_MESSAGE");
+		assertThat(message.date()).isEqualTo(1000L);
+		assertThat(message.token()).isEqualTo("Bearer abc");
+		assertThat(message.hasTextBody()).isTrue();
+		assertThat(message.content()).isEqualTo("Hello \"world\" á");
+	}
+
+	@Test
+	void testUnchangedMessageIsNotReserialized() {
+		// given
+		JsonMessageWrapper message = new JsonMessageWrapper(MESSAGE);
+
+		// when
+		String result = message.toString();
+
+		// then
+		assertThat(result).isSameAs(MESSAGE);
+	}
+
+	@Test
+	void testRemovesSensitiveHeadersAndUpdatesDate() {
+		// given
+		JsonMessageWrapper message = new JsonMessageWrapper(MESSAGE);
+
+		// when
+		message.removeSensitiveHeaders();
+		message.updateDateTime();
+		JsonObject result = JsonParser.parseString(message.toString()).getAsJsonObject();
+
+		// then
+		JsonObject headers = result.getAsJsonObject("headers");
+		assertThat(headers.has("sessionId")).isFalse();
+		assertThat(headers.has("token")).isFalse();
+		assertThat(headers.get("username").getAsString()).isEqualTo("david");
+		assertThat(headers.get("date").getAsLong()).isGreaterThan(1000L);
+		assertThat(result.getAsJsonObject("body").get("content").getAsString()).isEqualTo("Hello \"world\" á");
+	}
+
+	@Test
+	void testReplacesContent() {
+		// given
+		JsonMessageWrapper message = new JsonMessageWrapper(MESSAGE);
+
+		// when
+		message.setContent("New \"content\"");
+		JsonObject result = JsonParser.parseString(message.toString()).getAsJsonObject();
+
+		// then
+		assertThat(message.content()).isEqualTo("New \"content\"");
+		assertThat(result.getAsJsonObject("body").get("content").getAsString()).isEqualTo("New \"content\"");
+		assertThat(result.getAsJsonObject("headers").get("token").getAsString()).isEqualTo("Bearer abc");
+	}
+
+	@Test
+	void testMultilineMessageIsWrittenInOneLine() {
+		// given
+		JsonMessageWrapper message = new JsonMessageWrapper(MESSAGE.replace(",\"body\"", ",\n\"body\""));
+
+		// when
+		message.updateDateTime();
+		String result = message.toString();
+
+		// then
+		assertThat(result).doesNotContain("\n");
+		assertThat(JsonParser.parseString(result).getAsJsonObject().has("body")).isTrue();
+	}
+
+	@Test
+	void testUnquotedContentIsNormalized() throws Exception {
+		// given
+		JsonMessageWrapper message = new JsonMessageWrapper(MESSAGE.replace("\"Hello \\\"world\\\" \\u00e1\"", "hello"));
+
+		// when
+		boolean correct = message.correctStructure();
+		String result = message.toString();
+
+		// then
+		assertThat(correct).isTrue();
+		assertThat(TEST_OBJECT_MAPPER.readTree(result).get("body").get("content").asText()).isEqualTo("hello");
+	}
+
+	@Test
+	void testControlCharactersInStringsAreNormalized() throws Exception {
+		// given
+		JsonMessageWrapper message = new JsonMessageWrapper(MESSAGE.replace("Hello", "Hello\n\t"));
+
+		// when
+		boolean correct = message.correctStructure();
+		String result = message.toString();
+
+		// then
+		assertThat(correct).isTrue();
+		assertThat(result).doesNotContain("\n");
+		assertThat(TEST_OBJECT_MAPPER.readTree(result).get("body").get("content").asText()).startsWith("Hello\n\t");
+	}
+
+	@Test
+	void testIncorrectStructure() {
+		// given
+		JsonMessageWrapper malformed = new JsonMessageWrapper("{\"headers\":");
+		JsonMessageWrapper missingHeader = new JsonMessageWrapper(MESSAGE.replace("\"token\":\"Bearer abc\"", "\"token\":null"));
+		JsonMessageWrapper objectContent = new JsonMessageWrapper(MESSAGE.replace("\"Hello \\\"world\\\" \\u00e1\"", "{\"a\":[1,2]}"));
+
+		// when
+		boolean malformedCorrect = malformed.correctStructure();
+		boolean missingHeaderCorrect = missingHeader.correctStructure();
+		boolean objectContentCorrect = objectContent.correctStructure();
+
+		// then
+		assertThat(malformedCorrect).isFalse();
+		assertThat(missingHeaderCorrect).isFalse();
+		assertThat(objectContentCorrect).isFalse();
+		assertThat(objectContent.hasTextBody()).isFalse();
+	}
+}
@@ -0,0 +1,213 @@
+package rs.chat.unit.net.ws.outbound;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.TextMessage;
+import rs.chat.net.ws.outbound.OutboundDispatcher;
+import rs.chat.net.ws.outbound.OutboundQueue;
+import rs.chat.net.ws.outbound.OverflowPolicy;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OutboundQueueTest {
+	private final Deque<Runnable> pendingTasks = new ArrayDeque<>();
+	private final List<String> written = new ArrayList<>();
+	private final List<String> disconnections = new ArrayList<>();
+
+	@BeforeEach
+	void setUp() {
+		this.pendingTasks.clear();
+		this.written.clear();
+		this.disconnections.clear();
+	}
+
+	private OutboundQueue createQueue(int capacity, OverflowPolicy policy, long maxLagMillis) {
+		return new OutboundQueue(
+				capacity,
+				policy,
+				maxLagMillis,
+				this.pendingTasks::add, // Tasks are run manually to simulate a slow client
+				message -> this.written.add((String) message.getPayload()),
+				this.disconnections::add
+		);
+	}
+
+	private void runPendingTasks() {
+		while (!this.pendingTasks.isEmpty()) {
+			this.pendingTasks.poll().run();
+		}
+	}
+
+	@Test
+	void itShouldWriteFramesInOrder() {
+		// given
+		OutboundQueue underTest = this.createQueue(10, OverflowPolicy.DROP_OLDEST, 60_000);
+
+		// when
+		underTest.offer(new TextMessage("1"), false);
+		underTest.offer(new TextMessage("2"), false);
+		underTest.offer(new TextMessage("3"), false);
+		int scheduledTasks = this.pendingTasks.size();
+		this.runPendingTasks();
+
+		// then
+		assertThat(scheduledTasks).isOne();
+		assertThat(this.written).containsExactly("1", "2", "3");
+		assertThat(underTest.size()).isZero();
+		assertThat(underTest.bufferedBytes()).isZero();
+	}
+
+	@Test
+	void itShouldGiveTheThreadBackAfterABatchOfFrames() {
+		// given
+		OutboundQueue underTest = this.createQueue(100, OverflowPolicy.DROP_OLDEST, 60_000);
+
+		for (int i = 0; i < 70; i++) {
+			underTest.offer(new TextMessage(String.valueOf(i)), false);
+		}
+
+		// when
+		this.pendingTasks.poll().run();
+
+		// then
+		assertThat(this.written).hasSize(64);
+		assertThat(this.pendingTasks).hasSize(1);
+		this.runPendingTasks();
+		assertThat(this.written).hasSize(70).endsWith("69");
+	}
+
+	@Test
+	void itShouldDropOldestFrameWhenFull() {
+		// given
+		OutboundQueue underTest = this.createQueue(2, OverflowPolicy.DROP_OLDEST, 60_000);
+
+		// when
+		underTest.offer(new TextMessage("1"), false);
+		underTest.offer(new TextMessage("2"), true);
+		boolean accepted = underTest.offer(new TextMessage("3"), false);
+		this.runPendingTasks();
+
+		// then
+		assertThat(accepted).isTrue();
+		assertThat(this.written).containsExactly("2", "3");
+		assertThat(this.disconnections).isEmpty();
+	}
+
+	@Test
+	void itShouldDropTransientFramesFirstWhenCoalescing() {
+		// given
+		OutboundQueue underTest = this.createQueue(4, OverflowPolicy.COALESCE, 60_000);
+
+		// when
+		underTest.offer(new TextMessage("1"), false);
+		underTest.offer(new TextMessage("joined"), true);
+		underTest.offer(new TextMessage("2"), false);
+		underTest.offer(new TextMessage("left"), true);
+		underTest.offer(new TextMessage("3"), false);
+		this.runPendingTasks();
+
+		// then
+		assertThat(this.written).containsExactly("1", "2", "3");
+	}
+
+	@Test
+	void itShouldDropOldestFrameWhenCoalescingWithoutTransientFrames() {
+		// given
+		OutboundQueue underTest = this.createQueue(2, OverflowPolicy.COALESCE, 60_000);
+
+		// when
+		underTest.offer(new TextMessage("1"), false);
+		underTest.offer(new TextMessage("2"), false);
+		underTest.offer(new TextMessage("3"), false);
+		this.runPendingTasks();
+
+		// then
+		assertThat(this.written).containsExactly("2", "3");
+		assertThat(this.disconnections).isEmpty();
+	}
+
+	@Test
+	void itShouldDisconnectWhenFull() {
+		// given
+		OutboundQueue underTest = this.createQueue(1, OverflowPolicy.DISCONNECT, 60_000);
+
+		// when
+		boolean first = underTest.offer(new TextMessage("1"), false);
+		boolean second = underTest.offer(new TextMessage("2"), false);
+		boolean third = underTest.offer(new TextMessage("3"), false);
+		this.runPendingTasks();
+
+		// then
+		assertThat(first).isTrue();
+		assertThat(second).isFalse();
+		assertThat(third).isFalse();
+		assertThat(this.written).isEmpty();
+		assertThat(this.disconnections).containsExactly("overflow");
+	}
+
+	@Test
+	void itShouldDisconnectWhenAWriteFails() {
+		// given
+		OutboundQueue underTest = new OutboundQueue(10, OverflowPolicy.DROP_OLDEST, 60_000, this.pendingTasks::add, message -> {
+			throw new IOException("Broken pipe");
+		}, this.disconnections::add);
+
+		// when
+		underTest.offer(new TextMessage("1"), false);
+		underTest.offer(new TextMessage("2"), false);
+		this.runPendingTasks();
+		boolean accepted = underTest.offer(new TextMessage("3"), false);
+
+		// then
+		assertThat(accepted).isFalse();
+		assertThat(underTest.size()).isZero();
+		assertThat(this.disconnections).containsExactly("error");
+	}
+
+	@Test
+	void itShouldDisconnectWhenLagging() throws InterruptedException {
+		// given
+		OutboundQueue underTest = this.createQueue(10, OverflowPolicy.COALESCE, 1);
+
+		// when
+		underTest.offer(new TextMessage("1"), false);
+		Thread.sleep(5);
+		boolean accepted = underTest.offer(new TextMessage("2"), false);
+
+		// then
+		assertThat(accepted).isFalse();
+		assertThat(this.disconnections).containsExactly("lag");
+	}
+
+	@Test
+	void itShouldWriteFramesInTheDispatcherThreads() throws InterruptedException {
+		// given
+		List<String> threads = new CopyOnWriteArrayList<>();
+		List<String> payloads = new CopyOnWriteArrayList<>();
+		CountDownLatch latch = new CountDownLatch(3);
+		OutboundQueue underTest = OutboundDispatcher.newQueue(message -> {
+			threads.add(Thread.currentThread().getName());
+			payloads.add((String) message.getPayload());
+			latch.countDown();
+		}, this.disconnections::add);
+
+		// when
+		underTest.offer(new TextMessage("1"), false);
+		underTest.offer(new TextMessage("2"), false);
+		underTest.offer(new TextMessage("3"), false);
+
+		// then
+		assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(payloads).containsExactly("1", "2", "3");
+		assertThat(threads).allMatch(name -> name.startsWith("ws-outbound-"));
+	}
+}
@@ -0,0 +1,61 @@
+package rs.chat.unit.net.ws.protocol;
+
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import rs.chat.net.ws.protocol.CborTranscoder;
+import rs.chat.net.ws.protocol.EncodedMessage;
+import rs.chat.net.ws.protocol.WireProtocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CborTranscoderTest {
+	private static final String MESSAGE = """
+			{"headers":{"username":"david","chatId":"group-1","sessionId":1234567890,"type":"TEXT_MESSAGE",\
+			"date":1672531200000,"token":"Bearer abc"},"body":{"content":"Hello \\"world\\" á"}}""";
+
+	@Test
+	void testRoundTrip() throws IOException {
+		// given
+		byte[] cbor = CborTranscoder.toCbor(MESSAGE);
+
+		// when
+		String json = CborTranscoder.toJson(ByteBuffer.wrap(cbor));
+
+		// then
+		assertThat(JsonParser.parseString(json)).isEqualTo(JsonParser.parseString(MESSAGE));
+		assertThat(cbor.length).isLessThan(MESSAGE.length());
+	}
+
+	@Test
+	void testInvalidMessage() {
+		// given
+		ByteBuffer empty = ByteBuffer.allocate(0);
+		ByteBuffer truncated = ByteBuffer.wrap(CborTranscoder.toCbor(MESSAGE), 0, 10);
+
+		// when, then
+		assertThatThrownBy(() -> CborTranscoder.toJson(empty)).isInstanceOf(IOException.class);
+		assertThatThrownBy(() -> CborTranscoder.toJson(truncated)).isInstanceOf(IOException.class);
+	}
+
+	@Test
+	void testEncodedMessageIsEncodedOncePerProtocol() {
+		// given
+		EncodedMessage message = new EncodedMessage(MESSAGE);
+
+		// when
+		WebSocketMessage<?> text = message.frameFor(WireProtocol.JSON);
+		WebSocketMessage<?> binary = message.frameFor(WireProtocol.CBOR);
+
+		// then
+		assertThat(text).isInstanceOf(TextMessage.class).isSameAs(message.frameFor(WireProtocol.JSON));
+		assertThat(binary).isInstanceOf(BinaryMessage.class).isSameAs(message.frameFor(WireProtocol.CBOR));
+		assertThat(message.encodedBytes()).isEqualTo(text.getPayloadLength() + binary.getPayloadLength());
+	}
+}
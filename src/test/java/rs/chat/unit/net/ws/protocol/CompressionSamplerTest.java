@@ -0,0 +1,47 @@
+package rs.chat.unit.net.ws.protocol;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.TextMessage;
+import rs.chat.net.ws.protocol.CompressionSampler;
+import rs.chat.observability.metrics.Metrics;
+import rs.chat.utils.Utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompressionSamplerTest {
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final Metrics metrics = new Metrics(this.registry);
+
+	@Test
+	void testSamplesBigMessagesByType() {
+		// given
+		CompressionSampler underTest = new CompressionSampler(this.metrics, 256, 1);
+		String history = Utils.createMessage("message ".repeat(200), "GET_HISTORY_MESSAGE", "group-1");
+
+		// when
+		underTest.sample(new TextMessage(history));
+
+		// then
+		DistributionSummary ratio = this.registry.find("chat.ws.compression.ratio")
+		                                         .tag("type", "GET_HISTORY_MESSAGE")
+		                                         .summary();
+		assertThat(ratio).isNotNull();
+		assertThat(ratio.count()).isEqualTo(1);
+		assertThat(ratio.max()).isLessThan(0.2);
+		assertThat(this.registry.find("chat.ws.compression.time").timer()).isNotNull();
+	}
+
+	@Test
+	void testSkipsSmallMessages() {
+		// given
+		CompressionSampler underTest = new CompressionSampler(this.metrics, 256, 1);
+
+		// when
+		underTest.sample(new TextMessage(Utils.createMessage("pong", "PONG_MESSAGE", "group-1")));
+
+		// then
+		assertThat(this.registry.find("chat.ws.compression.ratio").summary()).isNull();
+	}
+}
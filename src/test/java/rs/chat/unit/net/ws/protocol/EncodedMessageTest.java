@@ -0,0 +1,126 @@
+package rs.chat.unit.net.ws.protocol;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import rs.chat.cache.ChatHistory;
+import rs.chat.cache.ColdPageCache;
+import rs.chat.cache.HistoryFilesCache;
+import rs.chat.net.ws.Chat;
+import rs.chat.net.ws.Client;
+import rs.chat.net.ws.ClientID;
+import rs.chat.net.ws.protocol.CborTranscoder;
+import rs.chat.net.ws.protocol.EncodedMessage;
+import rs.chat.net.ws.protocol.WireProtocol;
+import rs.chat.observability.metrics.Metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class EncodedMessageTest {
+	private static final String MESSAGE = "{\"headers\":{\"type\":\"TEXT_MESSAGE\"},\"body\":{\"content\":\"Hello\"}}";
+
+	@Test
+	void testFramesAreEncodedOncePerProtocol() {
+		// given
+		EncodedMessage underTest = new EncodedMessage(MESSAGE);
+
+		// when
+		WebSocketMessage<?> text = underTest.frameFor(WireProtocol.JSON);
+		WebSocketMessage<?> binary = underTest.frameFor(WireProtocol.CBOR);
+
+		// then
+		assertThat(underTest.frameFor(WireProtocol.JSON)).isSameAs(text);
+		assertThat(underTest.frameFor(WireProtocol.CBOR)).isSameAs(binary);
+		assertThat(text).isInstanceOf(TextMessage.class);
+		assertThat(binary).isInstanceOf(BinaryMessage.class);
+		assertThat(underTest.encodedBytes()).isEqualTo(text.getPayloadLength() + binary.getPayloadLength());
+	}
+
+	@Test
+	void testSerializedMessageIsSentAsItIs() throws Exception {
+		// given
+		byte[] json = MESSAGE.getBytes(StandardCharsets.UTF_8);
+		EncodedMessage underTest = new EncodedMessage(json);
+
+		// when
+		TextMessage text = (TextMessage) underTest.frameFor(WireProtocol.JSON);
+		BinaryMessage binary = (BinaryMessage) underTest.frameFor(WireProtocol.CBOR);
+
+		// then
+		assertThat(text.asBytes()).isSameAs(json);
+		assertThat(CborTranscoder.toJson(binary.getPayload())).isEqualTo(MESSAGE);
+	}
+
+	@Test
+	void testBroadcastSharesOneFramePerProtocol() throws Exception {
+		// given
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		Chat chat = new Chat("group-1", new Metrics(registry), history());
+		WebSocketSession[] sessions = {
+				session("s1", WireProtocol.JSON),
+				session("s2", WireProtocol.JSON),
+				session("s3", WireProtocol.CBOR),
+				session("s4", WireProtocol.CBOR)
+		};
+
+		for (int i = 0; i < sessions.length; i++) {
+			chat.addClient(new Client(sessions[i], new ClientID("user" + i, "group-1", i)));
+		}
+
+		// when
+		chat.broadcast(MESSAGE, false);
+
+		// then
+		WebSocketMessage<?>[] frames = new WebSocketMessage<?>[sessions.length];
+
+		for (int i = 0; i < sessions.length; i++) {
+			frames[i] = sentFrame(sessions[i]);
+		}
+
+		assertThat(frames[0]).isInstanceOf(TextMessage.class).isSameAs(frames[1]);
+		assertThat(frames[2]).isInstanceOf(BinaryMessage.class).isSameAs(frames[3]);
+		assertThat(registry.counter("chat.outbound.frames.allocated", "path", "shared").count()).isEqualTo(1);
+		assertThat(registry.counter("chat.outbound.frames.delivered", "path", "shared").count()).isEqualTo(4);
+		assertThat(registry.counter("chat.outbound.bytes.encoded", "path", "shared").count())
+				.isEqualTo(frames[0].getPayloadLength() + frames[2].getPayloadLength());
+	}
+
+	/**
+	 * @return a history that is never loaded (the messages are not saved by these tests).
+	 */
+	private static ChatHistory history() {
+		HistoryFilesCache files = new HistoryFilesCache(1 << 20, Duration.ofHours(1), (id, unsynced) -> {
+			throw new IllegalStateException("The history is not loaded");
+		}, file -> CompletableFuture.completedFuture(null));
+
+		return new ChatHistory("group-1", files, new ColdPageCache(1 << 20, Duration.ofHours(1)), 10, task -> {
+		});
+	}
+
+	private static WebSocketSession session(String sessionId, WireProtocol protocol) {
+		WebSocketSession session = mock(WebSocketSession.class);
+		when(session.getId()).thenReturn(sessionId);
+		when(session.isOpen()).thenReturn(true);
+		when(session.getAcceptedProtocol()).thenReturn(protocol.getSubprotocol());
+		return session;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static WebSocketMessage<?> sentFrame(WebSocketSession session) throws Exception {
+		ArgumentCaptor<WebSocketMessage<?>> frame = ArgumentCaptor.forClass((Class<WebSocketMessage<?>>) (Class<?>) WebSocketMessage.class);
+		verify(session, timeout(5000)).sendMessage(frame.capture());
+		return frame.getValue();
+	}
+}
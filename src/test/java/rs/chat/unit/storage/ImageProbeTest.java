@@ -0,0 +1,94 @@
+package rs.chat.unit.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import rs.chat.storage.strategies.upload.ImageProbe;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HexFormat;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ImageProbeTest {
+	@TempDir
+	Path tempDir;
+
+	private Path write(String format, int width, int height) throws IOException {
+		int type = format.equals("gif") ? BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_INT_RGB;
+		Path path = this.tempDir.resolve("image." + format);
+		ImageIO.write(new BufferedImage(width, height, type), format, path.toFile());
+		return path;
+	}
+
+	private ImageProbe.Dimensions fromHeader(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return ImageProbe.fromHeader(channel);
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"png", "jpeg", "gif"})
+	void testDimensionsAreParsedFromTheHeader(String format) throws IOException {
+		// given
+		Path path = this.write(format, 321, 123);
+
+		// when
+		ImageProbe.Dimensions dimensions = this.fromHeader(path);
+
+		// then
+		assertThat(dimensions).isEqualTo(new ImageProbe.Dimensions(321, 123));
+		assertThat(ImageProbe.withImageIO(path)).isEqualTo(dimensions);
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {
+			// VP8X chunk, canvas of 400x300
+			"52494646000000005745425056503858" + "0a000000" + "00000000" + "8f0100" + "2b0100",
+			// VP8L chunk, 400x300
+			"5249464600000000574542505650384c" + "00000000" + "2f" + "8fc14a00" + "0000000000",
+			// VP8 chunk (lossy), 400x300
+			"52494646000000005745425056503820" + "00000000" + "000000" + "9d012a" + "9001" + "2c01"
+	})
+	void testDimensionsAreParsedFromTheHeaderOfWebP(String header) throws IOException {
+		// given
+		Path path = Files.write(this.tempDir.resolve("image.webp"), HexFormat.of().parseHex(header));
+
+		// when
+		ImageProbe.Dimensions dimensions = this.fromHeader(path);
+
+		// then
+		assertThat(dimensions).isEqualTo(new ImageProbe.Dimensions(400, 300));
+	}
+
+	@Test
+	void testOtherFormatsAreReadWithImageIO() throws IOException {
+		// given
+		Path path = this.write("bmp", 40, 30);
+
+		// when
+		ImageProbe.Dimensions fromHeader = this.fromHeader(path);
+		ImageProbe.Dimensions dimensions = ImageProbe.dimensions(path);
+
+		// then
+		assertThat(fromHeader).isNull();
+		assertThat(dimensions).isEqualTo(new ImageProbe.Dimensions(40, 30));
+	}
+
+	@Test
+	void testFilesThatAreNotImagesAreRejected() throws IOException {
+		// given
+		Path path = Files.writeString(this.tempDir.resolve("image.png"), "not an image");
+
+		// when, then
+		assertThatThrownBy(() -> ImageProbe.dimensions(path)).isInstanceOf(IOException.class);
+	}
+}
@@ -0,0 +1,94 @@
+package rs.chat.unit.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import rs.chat.storage.strategies.upload.ImageVariants;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ImageVariantsTest {
+	@TempDir
+	Path tempDir;
+
+	private static final URI ORIGINAL = URI.create("https://files.example.com/image/photo.png");
+
+	private final Map<String, BufferedImage> uploaded = new ConcurrentHashMap<>();
+	private final ImageVariants underTest = new ImageVariants(Runnable::run, (original, variant, extension, contentType, content) -> {
+		try {
+			this.uploaded.put(variant, ImageIO.read(new ByteArrayInputStream(content)));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		return URI.create("https://files.example.com/image/photo.%s.%s".formatted(variant, extension));
+	});
+
+	private Path image(int width, int height) throws IOException {
+		Path path = this.tempDir.resolve("photo.png");
+		ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", path.toFile());
+		return path;
+	}
+
+	@Test
+	void testVariantsSmallerThanTheImageAreGenerated() throws Exception {
+		// given
+		Path image = this.image(2000, 1000);
+
+		// when
+		Map<String, URI> variants = this.underTest.generate(image, ORIGINAL).get(5, TimeUnit.SECONDS);
+
+		// then
+		assertThat(variants).containsOnlyKeys("thumbnail", "small", "medium");
+		assertThat(variants.get("thumbnail")).hasToString("https://files.example.com/image/photo.thumbnail.jpg");
+		assertThat(this.uploaded.get("medium").getWidth()).isEqualTo(1024);
+		assertThat(this.uploaded.get("medium").getHeight()).isEqualTo(512);
+		assertThat(this.uploaded.get("small").getWidth()).isEqualTo(480);
+		assertThat(this.uploaded.get("thumbnail").getWidth()).isEqualTo(160);
+		assertThat(this.uploaded.get("thumbnail").getHeight()).isEqualTo(80);
+	}
+
+	@Test
+	void testOnlyVariantsSmallerThanTheImageAreGenerated() throws Exception {
+		// given
+		Path image = this.image(600, 300);
+
+		// when
+		Map<String, URI> variants = this.underTest.generate(image, ORIGINAL).get(5, TimeUnit.SECONDS);
+		Map<String, URI> none = this.underTest.generate(this.image(160, 100), ORIGINAL).get(5, TimeUnit.SECONDS);
+
+		// then
+		assertThat(variants).containsOnlyKeys("thumbnail", "small");
+		assertThat(none).isEmpty();
+	}
+
+	@Test
+	void testVariantsAreNotGeneratedIfTheExecutorIsFull() throws Exception {
+		// given
+		ImageVariants full = new ImageVariants(runnable -> {
+			throw new RejectedExecutionException("Too many images waiting");
+		}, (original, variant, extension, contentType, content) -> ORIGINAL);
+
+		// when
+		CompletableFuture<Map<String, URI>> variants = full.generate(this.image(2000, 1000), ORIGINAL);
+
+		// then
+		assertThatThrownBy(variants::get).isInstanceOf(ExecutionException.class)
+		                                 .hasCauseInstanceOf(RejectedExecutionException.class);
+		assertThat(ImageVariants.supports("png")).isTrue();
+		assertThat(ImageVariants.supports("gif")).isFalse();
+	}
+}
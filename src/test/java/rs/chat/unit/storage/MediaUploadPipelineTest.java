@@ -0,0 +1,172 @@
+package rs.chat.unit.storage;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import rs.chat.domain.entity.File;
+import rs.chat.exceptions.NSFWContentException;
+import rs.chat.net.ws.Message;
+import rs.chat.storage.strategies.upload.FileUploadStrategy;
+import rs.chat.storage.strategies.upload.MediaUploadDTO;
+import rs.chat.storage.strategies.upload.MediaUploadPipeline;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MediaUploadPipelineTest {
+	@TempDir
+	Path tempDir;
+
+	private static final URI URI = java.net.URI.create("https://files.example.com/image/photo.png");
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	private final CompletableFuture<URI> upload = new CompletableFuture<>();
+	private final List<URI> deleted = new CopyOnWriteArrayList<>();
+	private final MediaUploadPipeline underTest = new MediaUploadPipeline(this.executor, new MediaUploadPipeline.Storage() {
+		@Override
+		public CompletableFuture<URI> upload(String mediaType, String fileName, String hash, Path path, JsonObject metadata) {
+			return MediaUploadPipelineTest.this.upload;
+		}
+
+		@Override
+		public void delete(URI uri) {
+			MediaUploadPipelineTest.this.deleted.add(uri);
+		}
+	});
+
+	@AfterEach
+	void tearDown() {
+		this.executor.shutdownNow();
+	}
+
+	private MediaUploadDTO dto() throws Exception {
+		Path path = Files.writeString(this.tempDir.resolve("photo.png"), "content");
+		File file = new File(null, "photo.png", Instant.now(), 7, "", new JsonObject(), "image", null, "hash");
+		return new MediaUploadDTO(path, 7, "png", file);
+	}
+
+	private FileUploadStrategy strategy(CountDownLatch probing) {
+		return new FileUploadStrategy() {
+			@Override
+			public Message messageType() {
+				return Message.IMAGE_MESSAGE;
+			}
+
+			@Override
+			public JsonObject probe(MediaUploadDTO mediaUploadDTO) {
+				probing.countDown();
+				JsonObject metadata = new JsonObject();
+				metadata.addProperty("width", "10");
+				return metadata;
+			}
+		};
+	}
+
+	@Test
+	void testStagesRunWhileTheFileIsUploaded() throws Exception {
+		// given
+		CountDownLatch probing = new CountDownLatch(1);
+		CountDownLatch checking = new CountDownLatch(1);
+		MediaUploadDTO dto = this.dto();
+
+		// when
+		CompletableFuture<File> result = this.underTest.upload(this.strategy(probing), dto, checking::countDown, dto::file, () -> false);
+
+		// then
+		assertThat(probing.await(5, TimeUnit.SECONDS)).isTrue(); // The upload has not finished
+		assertThat(checking.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(result).isNotDone();
+		this.upload.complete(URI);
+		assertThat(result.get(5, TimeUnit.SECONDS)).isSameAs(dto.file());
+		assertThat(dto.file().getPath()).isEqualTo(URI.toString());
+		assertThat(dto.file().getMetadata().get("width").getAsString()).isEqualTo("10");
+		assertThat(dto.file().getMetadata().get("specificType").getAsString()).isEqualTo("png");
+		assertThat(dto.file().getMetadata().get("messageType").getAsString()).isEqualTo(Message.IMAGE_MESSAGE.type());
+		assertThat(this.deleted).isEmpty();
+	}
+
+	private CompletableFuture<File> uploadFailingTheCheck(MediaUploadDTO dto, BooleanSupplier referenced) {
+		return this.underTest.upload(this.strategy(new CountDownLatch(1)), dto, () -> {
+			throw new NSFWContentException("File photo.png is NSFW");
+		}, dto::file, referenced);
+	}
+
+	@Test
+	void testUploadedFileIsDeletedIfTheCheckFails() throws Exception {
+		// given
+		MediaUploadDTO dto = this.dto();
+
+		// when
+		CompletableFuture<File> result = this.uploadFailingTheCheck(dto, () -> false);
+		this.upload.complete(URI);
+
+		// then
+		assertThatThrownBy(() -> result.get(5, TimeUnit.SECONDS))
+				.isInstanceOf(ExecutionException.class)
+				.hasCauseInstanceOf(NSFWContentException.class);
+		this.executor.shutdown();
+		assertThat(this.executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(this.deleted).containsExactly(URI);
+		assertThat(dto.file().getPath()).isEmpty();
+	}
+
+	@Test
+	void testUploadedFileIsKeptIfAnotherFileReferencesIt() throws Exception {
+		// given
+		MediaUploadDTO dto = this.dto();
+
+		// when
+		CompletableFuture<File> result = this.uploadFailingTheCheck(dto, () -> true);
+		this.upload.complete(URI);
+
+		// then
+		assertThatThrownBy(() -> result.get(5, TimeUnit.SECONDS))
+				.isInstanceOf(ExecutionException.class)
+				.hasCauseInstanceOf(NSFWContentException.class);
+		this.executor.shutdown();
+		assertThat(this.executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(this.deleted).isEmpty();
+	}
+
+	@Test
+	void testUploadedFileIsKeptIfTheSameContentIsUploadedAtTheSameTime() throws Exception {
+		// given
+		MediaUploadDTO dto = this.dto();
+		MediaUploadDTO other = this.dto();
+		AtomicBoolean saved = new AtomicBoolean(); // The other file references the object once it is saved
+		CompletableFuture<File> uploading = this.underTest.upload(this.strategy(new CountDownLatch(1)), other, () -> {
+		}, () -> {
+			saved.set(true);
+			return other.file();
+		}, () -> false);
+
+		// when
+		CompletableFuture<File> result = this.uploadFailingTheCheck(dto, saved::get);
+		this.upload.complete(URI);
+
+		// then
+		assertThatThrownBy(() -> result.get(5, TimeUnit.SECONDS))
+				.isInstanceOf(ExecutionException.class)
+				.hasCauseInstanceOf(NSFWContentException.class);
+		assertThat(uploading.get(5, TimeUnit.SECONDS)).isSameAs(other.file());
+		this.executor.shutdown();
+		assertThat(this.executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(this.deleted).isEmpty();
+	}
+}